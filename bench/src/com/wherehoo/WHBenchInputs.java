@@ -0,0 +1,124 @@
+package com.wherehoo;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+
+/**
+ * <tt>WHBenchInputs</tt> makes the inputs of the benchmarks: the places clients search from, and the
+ * areas they search, as the server builds them from LLH, RAD, HDG, WID and LEN.  The places are cities,
+ * some of them near the 0 meridian, and points near the poles; the areas are squares of a city's scale,
+ * long corridors, and squares that cross the 0 meridian.  Each benchmark cycles through arrays of
+ * <tt>COUNT</tt> inputs, so that no single input is measured.
+ */
+final class WHBenchInputs {
+
+    static final int COUNT = 1024;
+
+    //{lat, lon} in the Wherehoo ranges
+    private static final double[][] CITIES = {
+	{42.36, 288.94},        //Boston
+	{40.71, 285.99},        //New York
+	{51.51, 359.87},        //London, west of the 0 meridian
+	{48.86, 2.35},          //Paris
+	{35.68, 139.69},        //Tokyo
+	{-33.87, 151.21},       //Sydney
+	{-23.55, 313.37},       //Sao Paulo
+	{5.60, 359.81},         //Accra, west of the 0 meridian
+	{1.35, 103.82},         //Singapore
+	{64.15, 338.06},        //Reykjavik
+    };
+
+    private WHBenchInputs(){}
+
+    /**
+     * Returns <tt>COUNT</tt> client locations: within a few kilometres of a city, or, one in eight,
+     * within a degree of a pole.
+     */
+    static Point2D.Double[] places(Random random){
+	Point2D.Double[] places = new Point2D.Double[COUNT];
+	for (int i=0;i<COUNT;i++){
+	    if (i % 8 == 7){
+		double lat = (random.nextBoolean() ? 1 : -1) * (89 + 0.99 * random.nextDouble());
+		places[i] = new Point2D.Double(lat, 360 * random.nextDouble());
+	    } else {
+		places[i] = WHBenchInputs.nearCity(random, 0.05);
+	    }
+	}
+	return places;
+    }
+
+    /**
+     * Returns <tt>COUNT</tt> search areas: a third of them squares of 100 m to 5 km radius around a city,
+     * a third of them corridors 50 to 500 m wide and 5 to 50 km long, and a third of them squares that
+     * cross the 0 meridian.
+     */
+    static WHPolygon[] areas(Random random){
+	WHPolygon[] areas = new WHPolygon[COUNT];
+	for (int i=0;i<COUNT;i++){
+	    switch (i % 3){
+	    case 0:
+		areas[i] = WHBenchInputs.square(random);
+		break;
+	    case 1:
+		areas[i] = WHBenchInputs.corridor(random);
+		break;
+	    default:
+		areas[i] = WHBenchInputs.zeroCrossing(random);
+	    }
+	}
+	return areas;
+    }
+
+    //the inputs of the constructors, so that construction can be measured: {lat, lon, heading, width, length}
+    static double[][] corridorParameters(Random random){
+	double[][] parameters = new double[COUNT][];
+	for (int i=0;i<COUNT;i++){
+	    Point2D.Double start = WHBenchInputs.nearCity(random, 0.05);
+	    parameters[i] = new double[]{start.getX(), start.getY(), 360 * random.nextDouble(),
+					 50 + 450 * random.nextDouble(), 5000 + 45000 * random.nextDouble()};
+	}
+	return parameters;
+    }
+
+    //{lat, lon, radius}
+    static double[][] squareParameters(Random random){
+	double[][] parameters = new double[COUNT][];
+	for (int i=0;i<COUNT;i++){
+	    Point2D.Double center = WHBenchInputs.nearCity(random, 0.05);
+	    parameters[i] = new double[]{center.getX(), center.getY(), 100 + 4900 * random.nextDouble()};
+	}
+	return parameters;
+    }
+
+    //the vertices of squares across the 0 meridian, as a client would send them in LLH
+    static Point2D.Double[][] zeroCrossingVertices(Random random){
+	Point2D.Double[][] vertices = new Point2D.Double[COUNT][];
+	for (int i=0;i<COUNT;i++)
+	    vertices[i] = WHBenchInputs.zeroCrossing(random).getVertices();
+	return vertices;
+    }
+
+    static WHPolygon square(Random random){
+	return new WHPolygon(WHBenchInputs.nearCity(random, 0.05), 100 + 4900 * random.nextDouble());
+    }
+
+    static WHPolygon corridor(Random random){
+	return new WHPolygon(WHBenchInputs.nearCity(random, 0.05), 360 * random.nextDouble(),
+			     50 + 450 * random.nextDouble(), 5000 + 45000 * random.nextDouble());
+    }
+
+    //a square of 1 to 10 km radius, centered up to 2 km from the 0 meridian
+    static WHPolygon zeroCrossing(Random random){
+	double lat = -60 + 120 * random.nextDouble();
+	double lon = (360 + 0.02 * (2 * random.nextDouble() - 1)) % 360;
+	return new WHPolygon(new Point2D.Double(lat, lon), 1000 + 9000 * random.nextDouble());
+    }
+
+    //a point up to spread degrees from a city
+    static Point2D.Double nearCity(Random random, double spread){
+	double[] city = CITIES[random.nextInt(CITIES.length)];
+	double lat = city[0] + spread * (2 * random.nextDouble() - 1);
+	double lon = (city[1] + spread * (2 * random.nextDouble() - 1) + 360) % 360;
+	return new Point2D.Double(lat, lon);
+    }
+}
@@ -0,0 +1,74 @@
+package com.wherehoo;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the calculations of <tt>WHGeo</tt> between two points: from a client to a point a few
+ * metres to tens of kilometres away, and from points near the poles.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WHGeoBench {
+
+    private Point2D.Double[] origins;
+    private Point2D.Double[] ends;
+    private double[] headings;
+    private double[] ranges;
+    private Point2D.Double projected;
+    private int i;
+
+    @Setup
+    public void setUp(){
+	Random random = new Random(21);
+	origins = WHBenchInputs.places(random);
+	ends = new Point2D.Double[WHBenchInputs.COUNT];
+	headings = new double[WHBenchInputs.COUNT];
+	ranges = new double[WHBenchInputs.COUNT];
+	for (int k=0;k<WHBenchInputs.COUNT;k++){
+	    double range = Math.pow(10, 1 + 3.7 * random.nextDouble());
+	    headings[k] = 360 * random.nextDouble();
+	    ranges[k] = range;
+	    ends[k] = (Point2D.Double) origins[k].clone();
+	    //past a pole the projection is refused; keep the end where it is
+	    try {
+		WHGeo.project(ends[k], headings[k], range);
+	    } catch (NumberFormatException nfe){}
+	}
+	projected = new Point2D.Double();
+    }
+
+    private int next(){
+	i = (i + 1) & (WHBenchInputs.COUNT - 1);
+	return i;
+    }
+
+    @Benchmark
+    public double heading(){
+	int k = this.next();
+	return WHGeo.heading(origins[k], ends[k]);
+    }
+
+    @Benchmark
+    public double distance(){
+	int k = this.next();
+	return WHGeo.distance(origins[k], ends[k]);
+    }
+
+    @Benchmark
+    public double project(){
+	int k = this.next();
+	projected.setLocation(origins[k]);
+	try {
+	    WHGeo.project(projected, headings[k], ranges[k]);
+	} catch (NumberFormatException nfe){}
+	return projected.getY();
+    }
+}
@@ -0,0 +1,94 @@
+package com.wherehoo;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of <tt>WHPolygon</tt>: building the search areas of RAD and of rect_fwd, building an area
+ * from vertices across the 0 meridian, which splits it, and the tests and measures of an area against a
+ * client nearby.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WHPolygonBench {
+
+    private double[][] squares;
+    private double[][] corridors;
+    private Point2D.Double[][] crossing;
+    private WHPolygon[] areas;
+    private WHPolygon[] others;
+    private Point2D.Double[] clients;
+    private int i;
+
+    @Setup
+    public void setUp(){
+	Random random = new Random(22);
+	squares = WHBenchInputs.squareParameters(random);
+	corridors = WHBenchInputs.corridorParameters(random);
+	crossing = WHBenchInputs.zeroCrossingVertices(random);
+	areas = WHBenchInputs.areas(random);
+	others = WHBenchInputs.areas(random);
+	//a client within a few kilometres of each area, inside it now and then
+	clients = new Point2D.Double[WHBenchInputs.COUNT];
+	for (int k=0;k<WHBenchInputs.COUNT;k++){
+	    Point2D.Double vertex = areas[k].getVertices()[0];
+	    double lat = vertex.getX() + 0.04 * (2 * random.nextDouble() - 1);
+	    double lon = (vertex.getY() + 0.04 * (2 * random.nextDouble() - 1) + 360) % 360;
+	    clients[k] = new Point2D.Double(lat, lon);
+	}
+    }
+
+    private int next(){
+	i = (i + 1) & (WHBenchInputs.COUNT - 1);
+	return i;
+    }
+
+    @Benchmark
+    public WHPolygon constructSquare(){
+	double[] p = squares[this.next()];
+	return new WHPolygon(new Point2D.Double(p[0], p[1]), p[2]);
+    }
+
+    @Benchmark
+    public WHPolygon constructCorridor(){
+	double[] p = corridors[this.next()];
+	return new WHPolygon(new Point2D.Double(p[0], p[1]), p[2], p[3], p[4]);
+    }
+
+    //the constructor checks for the 0 meridian crossing, and splits the area in two
+    @Benchmark
+    public WHPolygon constructZeroCrossing(){
+	return new WHPolygon(crossing[this.next()]);
+    }
+
+    @Benchmark
+    public boolean contains(){
+	int k = this.next();
+	return areas[k].contains(clients[k]);
+    }
+
+    @Benchmark
+    public double distance(){
+	int k = this.next();
+	return areas[k].distance(clients[k]);
+    }
+
+    @Benchmark
+    public double[] distanceAndHeading(){
+	int k = this.next();
+	return areas[k].distanceAndHeading(clients[k]);
+    }
+
+    @Benchmark
+    public boolean overlaps(){
+	int k = this.next();
+	return areas[k].overlaps(others[k]);
+    }
+}
@@ -0,0 +1,74 @@
+package com.wherehoo;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of <tt>WHSearchArea</tt>: the bearing of one result, and the distances, headings and bearings
+ * of a page of results, as a search finds them for its client.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WHSearchAreaBench {
+
+    @Param({"100"})
+    public int page;
+
+    private WHSearchArea[] searches;
+    private WHPolygon[] results;
+    private double[] distances;
+    private double[] headings;
+    private double[] bearings;
+    private WHPolygon[] polies;
+    private int i;
+
+    @Setup
+    public void setUp(){
+	Random random = new Random(23);
+	Point2D.Double[] clients = WHBenchInputs.places(random);
+	WHPolygon[] areas = WHBenchInputs.areas(random);
+	searches = new WHSearchArea[WHBenchInputs.COUNT];
+	results = new WHPolygon[WHBenchInputs.COUNT];
+	for (int k=0;k<WHBenchInputs.COUNT;k++){
+	    searches[k] = new WHSearchArea(areas[k], clients[k], 0, 360 * random.nextDouble());
+	    //a result near the client: a small area within the search radius
+	    Point2D.Double near = (Point2D.Double) clients[k].clone();
+	    try {
+		WHGeo.project(near, 360 * random.nextDouble(), 5000 * random.nextDouble());
+	    } catch (NumberFormatException nfe){}
+	    results[k] = new WHPolygon(near, 10 + 90 * random.nextDouble());
+	}
+	distances = new double[page];
+	headings = new double[page];
+	bearings = new double[page];
+	polies = new WHPolygon[page];
+    }
+
+    private int next(){
+	i = (i + 1) & (WHBenchInputs.COUNT - 1);
+	return i;
+    }
+
+    @Benchmark
+    public double bearing(){
+	int k = this.next();
+	return searches[k].bearing(results[k]);
+    }
+
+    //a page of results of one search
+    @Benchmark
+    public double[] distancesAndHeadings(){
+	int k = this.next();
+	for (int j=0;j<page;j++)
+	    polies[j] = results[(k + j) & (WHBenchInputs.COUNT - 1)];
+	searches[k].distancesAndHeadings(polies, page, distances, headings, bearings);
+	return bearings;
+    }
+}
@@ -0,0 +1,161 @@
+package com.wherehoo;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the in-memory indexes: a search of the live records around a client, in an R-tree and in
+ * a grid holding the same records.<br>
+ * The same search in the database, as the server makes it without an in-memory index, is the type "sql".
+ * It needs a database and the Postgres driver on the class path, so it only runs when asked for:
+ * <pre>
+ *   java -cp target/benchmarks.jar:postgresql.jar org.openjdk.jmh.Main WHSpatialIndexBench \
+ *        -p type=rtree,grid,sql -p url=jdbc:postgresql://host/db -p user=wherehoo -p password=...
+ * </pre>
+ * The records are then loaded into a temporary <tt>wherehoo_polygons</tt> table with the GiST index on
+ * <tt>bbox</tt> of <tt>WHSchema</tt>, and a search runs the query of <tt>WHSearchFilter</tt>: the bounding
+ * boxes in the index, then <tt>poly_overlap</tt>.  The temporary table hides the real one from this
+ * connection only, and is dropped when the connection closes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WHSpatialIndexBench {
+
+    @Param({"rtree", "grid"})
+    public String type;
+
+    @Param({"100000"})
+    public int records;
+
+    //the database of the "sql" type
+    @Param({""})
+    public String url;
+    @Param({""})
+    public String user;
+    @Param({""})
+    public String password;
+
+    private WHSpatialIndex index;
+    private Connection connection;
+    private HashMap<String,PreparedStatement> statements;
+    private WHPolygon[][] searches;
+    private WHSearchFilter[] filters;
+    private HashSet<String> result;
+    private long now;
+    private int i;
+
+    @Setup
+    public void setUp() throws SQLException {
+	Random random = new Random(24);
+	now = System.currentTimeMillis();
+	if (type.equals("sql"))
+	    this.createTable();
+	else
+	    index = WHSpatialIndex.newIndex(type);
+	PreparedStatement insert = null;
+	if (connection != null)
+	    insert = connection.prepareStatement("insert into "+WHSchema.TABLE+" (uniqueidsha,area,bbox,begin_time,end_time) "
+						 +"values (?,polygon(pclose(?::path)),box(polygon(pclose(?::path))),?,?)");
+	for (int k=0;k<records;k++){
+	    //records of places around the cities, ending over the next day; an area across the
+	    //0 meridian is held as its two halves, as it is stored
+	    WHPolygon area = new WHPolygon(WHBenchInputs.nearCity(random, 0.5), 10 + 490 * random.nextDouble());
+	    WHPolygon[] halves = area.splitAlongGreatMeridian();
+	    long end_time = now + (long) (86400000L * random.nextDouble());
+	    for (int h=0;h<halves.length;h++){
+		if (insert == null){
+		    index.insert("uid"+k, halves[h], end_time);
+		    continue;
+		}
+		insert.setString(1, "uid"+k);
+		insert.setString(2, halves[h].toString());
+		insert.setString(3, halves[h].toString());
+		insert.setTimestamp(4, new Timestamp(now - 3600000L));
+		insert.setTimestamp(5, new Timestamp(end_time));
+		insert.addBatch();
+	    }
+	    if (insert != null && (k % 1000 == 999 || k == records - 1))
+		insert.executeBatch();
+	}
+	if (connection != null)
+	    this.createIndexes();
+	//and a search area is searched by its halves, as WHSearchFilter does
+	WHPolygon[] areas = WHBenchInputs.areas(random);
+	searches = new WHPolygon[WHBenchInputs.COUNT][];
+	filters = new WHSearchFilter[WHBenchInputs.COUNT];
+	for (int k=0;k<WHBenchInputs.COUNT;k++){
+	    searches[k] = areas[k].splitAlongGreatMeridian();
+	    filters[k] = new WHSearchFilter(areas[k]);
+	}
+	statements = new HashMap<String,PreparedStatement>();
+	result = new HashSet<String>();
+    }
+
+    //a temporary table of the columns a search reads
+    private void createTable() throws SQLException {
+	if (url.length() == 0)
+	    throw new IllegalArgumentException("the sql type needs a database: -p url=jdbc:postgresql://host/db -p user=... -p password=...");
+	connection = DriverManager.getConnection(url, user, password);
+	Statement s = connection.createStatement();
+	s.executeUpdate("create temporary table "+WHSchema.TABLE+" (uniqueidsha varchar(40), area polygon, bbox box, "
+			+"begin_time timestamp, end_time timestamp, meta text, protocol text, mimetype text)");
+	s.close();
+    }
+
+    //the indexes of WHSchema.migrate()
+    private void createIndexes() throws SQLException {
+	Statement s = connection.createStatement();
+	s.executeUpdate("create index "+WHSchema.BBOX_INDEX+" on "+WHSchema.TABLE+" using gist (bbox)");
+	s.executeUpdate("create index "+WHSchema.TIME_INDEX+" on "+WHSchema.TABLE+" (end_time, begin_time)");
+	s.executeUpdate("analyze "+WHSchema.TABLE);
+	s.close();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+	if (connection != null)
+	    connection.close();
+    }
+
+    private int next(){
+	i = (i + 1) & (WHBenchInputs.COUNT - 1);
+	return i;
+    }
+
+    @Benchmark
+    public int collect() throws SQLException {
+	int k = this.next();
+	result.clear();
+	if (connection != null)
+	    return this.query(filters[k]);
+	WHPolygon[] search = searches[k];
+	for (int h=0;h<search.length;h++)
+	    index.collect(search[h], now, result);
+	return result.size();
+    }
+
+    //the uids the database finds for filter, one statement for each shape of query
+    private int query(WHSearchFilter filter) throws SQLException {
+	String sql = "select uniqueidsha from "+WHSchema.TABLE+" where "+filter.getSQL();
+	PreparedStatement ps = statements.get(sql);
+	if (ps == null){
+	    ps = connection.prepareStatement(sql);
+	    statements.put(sql, ps);
+	}
+	filter.bind(ps, 1);
+	ResultSet rs = ps.executeQuery();
+	while (rs.next())
+	    result.add(rs.getString(1));
+	rs.close();
+	return result.size();
+    }
+}
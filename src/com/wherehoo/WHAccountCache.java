@@ -0,0 +1,315 @@
+package com.wherehoo;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <tt>WHAccountCache</tt> keeps the <tt>users</tt> (userid and secret) and <tt>protocol</tt> tables in memory,
+ * so that validating an insert or a protocol filter does not cost a database round trip.
+ * Both tables are loaded whole, because they are small and hardly ever change.  The copy expires after
+ * <tt>ttl</tt> msec and can be dropped at any time with <tt>invalidate()</tt>.  A name that is not in the
+ * copy is looked up in the database (read-through), so new users and protocols are usable at once.<br>
+ * The copy can also be kept fresh by a background thread started with <tt>startRefresher()</tt>.  The thread
+ * listens for Postgres notifications on the <tt>wherehoo_accounts</tt> channel, which can be raised by a trigger:<br>
+ * <tt>create function wherehoo_accounts_notify() returns trigger as 'begin notify wherehoo_accounts; return null; end;' language 'plpgsql';<br>
+ * create trigger users_notify after insert or update or delete on users for each statement execute procedure wherehoo_accounts_notify();<br>
+ * create trigger protocol_notify after insert or update or delete on protocol for each statement execute procedure wherehoo_accounts_notify();</tt><br>
+ * If the JDBC driver does not deliver notifications, the thread compares a checksum of both tables instead.
+ */
+public class WHAccountCache {
+
+    /** channel the refresher listens on */
+    public static final String NOTIFY_CHANNEL = "wherehoo_accounts";
+
+    private WHConnectionPool connection_pool;
+    private long ttl;
+    private volatile Snapshot snapshot;
+    //serializes reloads and read-through additions; a lock rather than a monitor, since a reload
+    //waits on the database and must not pin the carrier of a virtual thread
+    private ReentrantLock load_lock;
+
+    private long hits;
+    private long misses;
+    private long reloads;
+
+    private Thread refresher;
+
+    /**
+     * Constructs a new, empty <tt>WHAccountCache</tt>.  The tables are loaded on first use.
+     * @param pool the pool the cache takes its database connections from
+     * @param _ttl msec the loaded copy of the tables stays valid
+     */
+    protected WHAccountCache(WHConnectionPool pool, long _ttl){
+	connection_pool = pool;
+	ttl = _ttl;
+	snapshot = null;
+	load_lock = new ReentrantLock();
+    }
+
+    /**
+     * Returns the secret of user <tt>userid</tt>.
+     * @param userid username
+     * @return the secret of <tt>userid</tt>, or <tt>null</tt> if there is no such user.
+     */
+    protected String getSecret(String userid) throws SQLException {
+	Snapshot current = this.currentSnapshot();
+	String secret = current.secrets.get(userid);
+	if (secret != null){
+	    this.countHit();
+	    return secret;
+	}
+	this.countMiss();
+	secret = this.fetchSecret(userid);
+	if (secret != null){
+	    load_lock.lock();
+	    try {
+		if (snapshot != null){
+		    HashMap<String,String> secrets = new HashMap<String,String>(snapshot.secrets);
+		    secrets.put(userid, secret);
+		    snapshot = new Snapshot(secrets, snapshot.protocols, snapshot.loaded_at);
+		}
+	    } finally {
+		load_lock.unlock();
+	    }
+	}
+	return secret;
+    }
+
+    /**
+     * Checks whether <tt>protocol</tt> is listed in the protocol table.
+     * @param protocol protocol name
+     * @return boolean value indicating whether <tt>protocol</tt> is a supported protocol.
+     */
+    protected boolean hasProtocol(String protocol) throws SQLException {
+	Snapshot current = this.currentSnapshot();
+	if (current.protocols.contains(protocol)){
+	    this.countHit();
+	    return true;
+	}
+	this.countMiss();
+	if (this.fetchProtocol(protocol)){
+	    load_lock.lock();
+	    try {
+		if (snapshot != null){
+		    HashSet<String> protocols = new HashSet<String>(snapshot.protocols);
+		    protocols.add(protocol);
+		    snapshot = new Snapshot(snapshot.secrets, protocols, snapshot.loaded_at);
+		}
+	    } finally {
+		load_lock.unlock();
+	    }
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Drops the loaded copy of the tables.  They are read again on the next lookup.
+     */
+    public void invalidate(){
+	load_lock.lock();
+	try {
+	    snapshot = null;
+	} finally {
+	    load_lock.unlock();
+	}
+    }
+
+    /** @return number of lookups answered from memory */
+    public synchronized long getHits(){
+	return hits;
+    }
+    /** @return number of lookups that had to go to the database */
+    public synchronized long getMisses(){
+	return misses;
+    }
+    /** @return number of times the tables were loaded */
+    public synchronized long getReloads(){
+	return reloads;
+    }
+
+    /**
+     * Returns a one line summary of the cache counters.
+     */
+    public synchronized String toString(){
+	return "account cache: hits "+hits+" misses "+misses+" reloads "+reloads;
+    }
+
+    /**
+     * Starts a daemon thread that invalidates this cache when the users or protocol table changes.
+     * The thread keeps its own database connection, since a listening connection cannot be shared.
+     * @param url JDBC url of the database
+     * @param user database user
+     * @param password password of the database user
+     * @param interval msec between checks for changes
+     */
+    public void startRefresher(final String url, final String user, final String password, final long interval){
+	refresher = new Thread("WHAccountCache refresher"){
+		public void run(){
+		    refresh(url, user, password, interval);
+		}
+	    };
+	refresher.setDaemon(true);
+	refresher.start();
+    }
+
+    //
+    //PRIVATE METHODS
+    //
+
+    private Snapshot currentSnapshot() throws SQLException {
+	Snapshot current = snapshot;
+	if (current != null && (System.currentTimeMillis() - current.loaded_at) < ttl)
+	    return current;
+	load_lock.lock();
+	try {
+	    //another thread may have reloaded while this one waited
+	    current = snapshot;
+	    if (current == null || (System.currentTimeMillis() - current.loaded_at) >= ttl){
+		current = this.load();
+		snapshot = current;
+	    }
+	    return current;
+	} finally {
+	    load_lock.unlock();
+	}
+    }
+
+    private Snapshot load() throws SQLException {
+	HashMap<String,String> secrets = new HashMap<String,String>();
+	HashSet<String> protocols = new HashSet<String>();
+	long loaded_at = System.currentTimeMillis();
+	Connection C = connection_pool.getConnection();
+	try {
+	    Statement s = C.createStatement();
+	    ResultSet rs = s.executeQuery("select userid,secret from users");
+	    while (rs.next())
+		secrets.put(rs.getString("userid"), rs.getString("secret"));
+	    rs = s.executeQuery("select protocol from protocol");
+	    while (rs.next())
+		protocols.add(rs.getString("protocol"));
+	    s.close();
+	} finally {
+	    connection_pool.releaseConnection(C);
+	}
+	synchronized (this){
+	    reloads++;
+	}
+	return new Snapshot(secrets, protocols, loaded_at);
+    }
+
+    private String fetchSecret(String userid) throws SQLException {
+	String secret = null;
+	Connection C = connection_pool.getConnection();
+	try {
+	    PreparedStatement ps = C.prepareStatement("select secret from users where userid=?");
+	    ps.setString(1, userid);
+	    ResultSet rs = ps.executeQuery();
+	    if (rs.next())
+		secret = rs.getString("secret");
+	    ps.close();
+	} finally {
+	    connection_pool.releaseConnection(C);
+	}
+	return secret;
+    }
+
+    private boolean fetchProtocol(String protocol) throws SQLException {
+	boolean found;
+	Connection C = connection_pool.getConnection();
+	try {
+	    PreparedStatement ps = C.prepareStatement("select 1 from protocol where protocol=?");
+	    ps.setString(1, protocol);
+	    found = ps.executeQuery().next();
+	    ps.close();
+	} finally {
+	    connection_pool.releaseConnection(C);
+	}
+	return found;
+    }
+
+    private synchronized void countHit(){
+	hits++;
+    }
+    private synchronized void countMiss(){
+	misses++;
+    }
+
+    private void refresh(String url, String user, String password, long interval){
+	Connection C = null;
+	Method get_notifications = null;
+	String version = null;
+	while (true){
+	    try {
+		if (C == null || C.isClosed()){
+		    C = DriverManager.getConnection(url, user, password);
+		    get_notifications = WHAccountCache.notificationMethod(C);
+		    if (get_notifications != null){
+			Statement s = C.createStatement();
+			s.execute("listen "+NOTIFY_CHANNEL);
+			s.close();
+		    }
+		    //changes made while there was no listener are not known
+		    version = null;
+		    this.invalidate();
+		}
+		if (get_notifications != null){
+		    //the driver only picks up notifications while talking to the backend
+		    Statement s = C.createStatement();
+		    s.executeQuery("select 1").close();
+		    s.close();
+		    Object[] notifications = (Object[]) get_notifications.invoke(C, new Object[0]);
+		    if (notifications != null && notifications.length > 0)
+			this.invalidate();
+		} else {
+		    String new_version = WHAccountCache.tableVersion(C);
+		    if (version != null && ! version.equals(new_version))
+			this.invalidate();
+		    version = new_version;
+		}
+	    } catch (Exception e){
+		System.out.println("WHAccountCache refresher: "+e.toString());
+		try { if (C != null) C.close(); } catch (SQLException sqle){}
+		C = null;
+	    }
+	    try {
+		Thread.sleep(interval);
+	    } catch (InterruptedException ie){
+		try { if (C != null) C.close(); } catch (SQLException sqle){}
+		return;
+	    }
+	}
+    }
+
+    private static Method notificationMethod(Connection C){
+	try {
+	    return C.getClass().getMethod("getNotifications", new Class<?>[0]);
+	} catch (NoSuchMethodException nsme){
+	    return null;
+	}
+    }
+
+    private static String tableVersion(Connection C) throws SQLException {
+	Statement s = C.createStatement();
+	ResultSet rs = s.executeQuery("select (select md5(coalesce(string_agg(userid||':'||secret,',' order by userid),'')) from users)"
+				      +"||(select md5(coalesce(string_agg(protocol,',' order by protocol),'')) from protocol)");
+	String version = rs.next() ? rs.getString(1) : "";
+	s.close();
+	return version;
+    }
+
+    private static class Snapshot {
+	HashMap<String,String> secrets;
+	HashSet<String> protocols;
+	long loaded_at;
+
+	Snapshot(HashMap<String,String> _secrets, HashSet<String> _protocols, long _loaded_at){
+	    secrets = _secrets;
+	    protocols = _protocols;
+	    loaded_at = _loaded_at;
+	}
+    }
+}
@@ -0,0 +1,396 @@
+package com.wherehoo;
+
+import java.io.*;
+
+/**
+ * <tt>WHBinaryProtocol</tt> is a compact framing of the Wherehoo protocol.  A client chooses it by sending
+ * the byte <tt>MAGIC</tt> followed by the byte <tt>VERSION</tt> as the first two bytes of the connection;
+ * any other first byte selects the text protocol.<br>
+ * From then on both sides send frames: a one byte opcode, the payload length as an unsigned varint
+ * (7 bits per byte, least significant group first, high bit set on all but the last byte), and the payload.
+ * Numbers are IEEE754 doubles in network byte order, unsigned varints, or signed varints (zigzag encoded).
+ * Strings are ISO-8859-1 bytes; inside a payload that holds more than one they are prefixed by their length.<br>
+ * The client sends one frame per command; the opcodes and payloads are listed with the <tt>OP_</tt> constants.
+ * The command frames are decoded without going through text, and only the values that are text anyway
+ * (identity, mimetype, protocol, metadata, uid, tag) become <tt>String</tt>s.
+ * The server answers with the <tt>R_</tt> frames, in the same order as the text protocol sends its lines.
+ */
+class WHBinaryProtocol extends WHProtocol {
+
+    /** first byte of a binary connection; it cannot start a text command */
+    static final int MAGIC = 0xB7;
+    /** version of the framing, second byte of a binary connection */
+    static final int VERSION = 1;
+
+    /** IDT: identity string */
+    static final int OP_IDT = 0x01;
+    /** ACT: one byte, <tt>ACT_INSERT</tt>, <tt>ACT_QUERY</tt>, <tt>ACT_COUNT</tt> or <tt>ACT_DELETE</tt> */
+    static final int OP_ACT = 0x02;
+    /** LLH: latitude and longitude double pairs, then one height double */
+    static final int OP_LLH = 0x03;
+    /** BEG: six signed varints, offsets in years, months, days, hours, minutes and seconds */
+    static final int OP_BEG = 0x04;
+    /** END: six signed varints, as BEG */
+    static final int OP_END = 0x05;
+    /** HDG: double */
+    static final int OP_HDG = 0x06;
+    /** LEN: double */
+    static final int OP_LEN = 0x07;
+    /** LIM: unsigned varint */
+    static final int OP_LIM = 0x08;
+    /** MET: metadata string */
+    static final int OP_MET = 0x09;
+    /** MIM: mimetype string */
+    static final int OP_MIM = 0x0A;
+    /** PJT: heading double, range double */
+    static final int OP_PJT = 0x0B;
+    /** PRO: protocol string */
+    static final int OP_PRO = 0x0C;
+    /** RAD: double */
+    static final int OP_RAD = 0x0D;
+    /** SHP: one byte, <tt>SHP_RECT_CTR</tt> or <tt>SHP_RECT_FWD</tt> */
+    static final int OP_SHP = 0x0E;
+    /** WID: double */
+    static final int OP_WID = 0x0F;
+    /** DAT: the data, followed by its 20 byte signature */
+    static final int OP_DAT = 0x10;
+    /** UID: uid string */
+    static final int OP_UID = 0x11;
+    /** SHA: string */
+    static final int OP_SHA = 0x12;
+    /** NOP: empty */
+    static final int OP_NOP = 0x13;
+    /** KAL: empty */
+    static final int OP_KAL = 0x14;
+    /** TAG: tag string */
+    static final int OP_TAG = 0x15;
+    /** DBG: empty */
+    static final int OP_DBG = 0x16;
+    /** ORD: one byte, <tt>ORD_NEAREST</tt> or <tt>ORD_HEADING</tt> */
+    static final int OP_ORD = 0x17;
+    /** end of the command block, the "." of the text protocol: empty */
+    static final int OP_DOT = 0x1E;
+    /** BYE: empty */
+    static final int OP_BYE = 0x1F;
+    /** row command NEXT: empty */
+    static final int OP_NEXT = 0x20;
+    /** row command SKIP: empty */
+    static final int OP_SKIP = 0x21;
+    /** row command META: empty */
+    static final int OP_META = 0x22;
+    /** row command DATA: empty */
+    static final int OP_DATA = 0x23;
+    /** row command BATCH: unsigned varint number of records, then a flag byte, <tt>BATCH_META</tt> | <tt>BATCH_DATA</tt>.
+	Each R_RECORD of the batch is followed by its R_META and R_DATA as asked */
+    static final int OP_BATCH = 0x24;
+
+    static final int ACT_INSERT = 1;
+    static final int ACT_QUERY = 2;
+    static final int ACT_COUNT = 3;
+    static final int ACT_DELETE = 4;
+    static final int SHP_RECT_CTR = 1;
+    static final int SHP_RECT_FWD = 2;
+    static final int ORD_NEAREST = 1;
+    static final int ORD_HEADING = 2;
+    static final int BATCH_META = 1;
+    static final int BATCH_DATA = 2;
+    /** most bytes of a varint, holding 64 bits */
+    static final int MAX_VARINT = 10;
+
+    /** server header: version double, then unsigned varints rx timeout in seconds, min record life, max meta, max data */
+    static final int R_HELLO = 0x81;
+    /** ACK: empty */
+    static final int R_ACK = 0x82;
+    /** OK: empty */
+    static final int R_OK = 0x83;
+    /** NAK: the names of the offending commands as a string, space delimited */
+    static final int R_NAK = 0x84;
+    /** TAG: tag string */
+    static final int R_TAG = 0x85;
+    /** result of a count: unsigned varint */
+    static final int R_COUNT = 0x86;
+    /** uid of an inserted record: string */
+    static final int R_UID = 0x87;
+    /** result of a delete: one byte, 1 if the record was deleted */
+    static final int R_DELETED = 0x88;
+    /** search result: bearing, heading and distance doubles, ttl and byte count unsigned varints,
+	a meta flag byte, protocol and mimetype length-prefixed strings */
+    static final int R_RECORD = 0x89;
+    /** metadata of a search result: string */
+    static final int R_META = 0x8A;
+    /** data of a search result: raw bytes */
+    static final int R_DATA = 0x8B;
+    /** end of the response to a command block on a kept-alive session: unsigned varint operations left */
+    static final int R_END = 0x8C;
+    /** end of the session: empty */
+    static final int R_BYE = 0x8D;
+    /** the server is saturated: unsigned varint seconds after which the client may try again */
+    static final int R_BUSY = 0x8E;
+
+    //command index of each request opcode, -1 for opcodes that are not commands
+    private static final int[] command_index = new int[0x20];
+    static {
+	for (int i=0;i<command_index.length;i++)
+	    command_index[i] = -1;
+	command_index[OP_IDT] = WHServer.IDT;
+	command_index[OP_ACT] = WHServer.ACT;
+	command_index[OP_LLH] = WHServer.LLH;
+	command_index[OP_BEG] = WHServer.BEG;
+	command_index[OP_END] = WHServer.END;
+	command_index[OP_HDG] = WHServer.HDG;
+	command_index[OP_LEN] = WHServer.LEN;
+	command_index[OP_LIM] = WHServer.LIM;
+	command_index[OP_MET] = WHServer.MET;
+	command_index[OP_MIM] = WHServer.MIM;
+	command_index[OP_PJT] = WHServer.PJT;
+	command_index[OP_PRO] = WHServer.PRO;
+	command_index[OP_RAD] = WHServer.RAD;
+	command_index[OP_SHP] = WHServer.SHP;
+	command_index[OP_WID] = WHServer.WID;
+	command_index[OP_DAT] = WHServer.DAT;
+	command_index[OP_UID] = WHServer.UID;
+	command_index[OP_SHA] = WHServer.SHA;
+	command_index[OP_NOP] = WHServer.NOP;
+	command_index[OP_KAL] = WHServer.KAL;
+	command_index[OP_TAG] = WHServer.TAG;
+	command_index[OP_DBG] = WHServer.DBG;
+	command_index[OP_ORD] = WHServer.ORD;
+	command_index[OP_DOT] = WHServer.DOT;
+	command_index[OP_BYE] = WHServer.BYE;
+    }
+
+    private OutputStream raw_out;
+    private WHLineInputStream in;
+    //the frame being written
+    private ByteArrayOutputStream frame;
+    //the stream to the client while a batch is collected in batch
+    private OutputStream live_out;
+    private ByteArrayOutputStream batch;
+
+    /**
+     * Constructs a new <tt>WHBinaryProtocol</tt>.
+     * @param _raw_out the stream the frames are written to
+     * @param _in the stream the client frames are read from
+     */
+    WHBinaryProtocol(OutputStream _raw_out, WHLineInputStream _in){
+	//a frame goes out with one write
+	raw_out = new BufferedOutputStream(_raw_out, 8192);
+	in = _in;
+	frame = new ByteArrayOutputStream(64);
+    }
+
+    /**
+     * Returns the command index of a request opcode.
+     * @return an index as returned by <tt>WHServer.commandIndex()</tt>, or -1 if <tt>opcode</tt> is not a command.
+     */
+    static int commandIndex(int opcode){
+	return (opcode >= 0 && opcode < command_index.length) ? command_index[opcode] : -1;
+    }
+
+    void header() throws IOException {
+	this.writeDouble(WHServer.VERSION);
+	this.writeVarint(WHServer.RXTIMEOUT/1000);
+	this.writeVarint(WHServer.RECORD_MIN_LIFE);
+	this.writeVarint(WHServer.MAXMETA);
+	this.writeVarint(WHServer.MAXDATA);
+	this.send(R_HELLO);
+    }
+    void ack() throws IOException {
+	this.send(R_ACK);
+    }
+    void ok() throws IOException {
+	this.send(R_OK);
+    }
+    void nak(String reason) throws IOException {
+	this.writeString(reason);
+	this.send(R_NAK);
+    }
+    void tag(String tag) throws IOException {
+	this.writeString(tag);
+	this.send(R_TAG);
+    }
+    void count(int count) throws IOException {
+	this.writeVarint(count);
+	this.send(R_COUNT);
+    }
+    void uid(String uid) throws IOException {
+	this.writeString(uid);
+	this.send(R_UID);
+    }
+    void deleted(boolean deleted) throws IOException {
+	frame.write(deleted ? 1 : 0);
+	this.send(R_DELETED);
+    }
+    void record(double bearing, double heading, double distance, long ttl, int bytes,
+		String protocol, String mimetype, boolean has_meta) throws IOException {
+	this.writeDouble(bearing);
+	this.writeDouble(heading);
+	this.writeDouble(distance);
+	this.writeVarint(ttl);
+	this.writeVarint(bytes);
+	frame.write(has_meta ? 1 : 0);
+	this.writeVarint(protocol.length());
+	this.writeString(protocol);
+	this.writeVarint(mimetype.length());
+	this.writeString(mimetype);
+	this.send(R_RECORD);
+    }
+    void meta(String meta) throws IOException {
+	this.writeString(meta);
+	this.send(R_META);
+    }
+    void data(byte[] data) throws IOException {
+	//the payload goes straight out, without a copy into the frame buffer
+	raw_out.write(R_DATA);
+	WHBinaryProtocol.writeVarint(raw_out, data.length);
+	raw_out.write(data);
+	raw_out.flush();
+    }
+
+    int readRowCommand() throws IOException {
+	int opcode = in.read();
+	if (opcode < 0)
+	    throw new EOFException();
+	long length = WHBinaryProtocol.readVarint(in);
+	if (opcode == OP_BATCH && length >= 2 && length <= 11){
+	    byte[] payload = new byte[(int) length];
+	    in.readFully(payload);
+	    ByteArrayInputStream fields = new ByteArrayInputStream(payload);
+	    batch_size = (int) Math.min(WHBinaryProtocol.readVarint(fields),WHServer.MAXBATCH);
+	    int flags = fields.read();
+	    batch_meta = (flags & BATCH_META) != 0;
+	    batch_data = (flags & BATCH_DATA) != 0;
+	    return (batch_size > 0 && flags >= 0) ? ROW_BATCH : ROW_STOP;
+	}
+	in.skipFully(length);
+	switch (opcode){
+	case OP_NEXT:
+	    return ROW_NEXT;
+	case OP_SKIP:
+	    return ROW_SKIP;
+	case OP_META:
+	    return ROW_META;
+	case OP_DATA:
+	    return ROW_DATA;
+	default:
+	    return ROW_STOP;
+	}
+    }
+
+    void beginBatch(){
+	live_out = raw_out;
+	batch = new ByteArrayOutputStream(8192);
+	raw_out = batch;
+    }
+    void endBatch() throws IOException {
+	raw_out = live_out;
+	batch.writeTo(raw_out);
+	raw_out.flush();
+	batch = null;
+    }
+
+    void end(int operations_left) throws IOException {
+	this.writeVarint(operations_left);
+	this.send(R_END);
+    }
+    void bye() throws IOException {
+	this.send(R_BYE);
+    }
+
+    /**
+     * Returns the complete frame telling a binary client that the server is saturated.
+     * @param retry_after seconds after which the client may try again
+     */
+    static byte[] busyFrame(int retry_after){
+	ByteArrayOutputStream busy = new ByteArrayOutputStream(8);
+	ByteArrayOutputStream payload = new ByteArrayOutputStream(4);
+	try {
+	    WHBinaryProtocol.writeVarint(payload, retry_after);
+	    busy.write(R_BUSY);
+	    WHBinaryProtocol.writeVarint(busy, payload.size());
+	    payload.writeTo(busy);
+	} catch (IOException ioe){}
+	return busy.toByteArray();
+    }
+
+    //
+    //DECODING
+    //
+
+    /**
+     * Reads an unsigned varint.
+     * @exception EOFException if the stream ends in the middle of the varint.
+     */
+    static long readVarint(InputStream in) throws IOException {
+	long value = 0;
+	for (int shift=0; shift<64; shift+=7){
+	    int b = in.read();
+	    if (b < 0)
+		throw new EOFException();
+	    value |= ((long) (b & 0x7F)) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+	throw new IOException("varint too long");
+    }
+    /**
+     * Reads a signed (zigzag encoded) varint.
+     */
+    static long readSignedVarint(InputStream in) throws IOException {
+	long value = WHBinaryProtocol.readVarint(in);
+	return (value >>> 1) ^ -(value & 1);
+    }
+    /**
+     * Reads an IEEE754 double in network byte order.
+     */
+    static double readDouble(InputStream in) throws IOException {
+	long bits = 0;
+	for (int i=0;i<8;i++){
+	    int b = in.read();
+	    if (b < 0)
+		throw new EOFException();
+	    bits = (bits << 8) | b;
+	}
+	return Double.longBitsToDouble(bits);
+    }
+    /**
+     * Reads <tt>length</tt> bytes as an ISO-8859-1 string.
+     */
+    static String readString(WHLineInputStream in, int length) throws IOException {
+	byte[] bytes = new byte[length];
+	in.readFully(bytes);
+	return new String(bytes, "ISO-8859-1");
+    }
+
+    //
+    //ENCODING
+    //
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+	while ((value & ~0x7FL) != 0){
+	    out.write((int) ((value & 0x7F) | 0x80));
+	    value >>>= 7;
+	}
+	out.write((int) value);
+    }
+    private void writeVarint(long value) throws IOException {
+	WHBinaryProtocol.writeVarint(frame, value);
+    }
+    private void writeDouble(double value){
+	long bits = Double.doubleToLongBits(value);
+	for (int shift=56; shift>=0; shift-=8)
+	    frame.write((int) (bits >>> shift));
+    }
+    private void writeString(String value){
+	for (int i=0;i<value.length();i++)
+	    frame.write(value.charAt(i));
+    }
+    //writes the frame buffered so far with opcode, and starts a new one
+    private void send(int opcode) throws IOException {
+	raw_out.write(opcode);
+	WHBinaryProtocol.writeVarint(raw_out, frame.size());
+	frame.writeTo(raw_out);
+	raw_out.flush();
+	frame.reset();
+    }
+}
@@ -9,51 +9,195 @@ package com.wherehoo;
 import java.io.*;
 import java.net.*;
 import java.sql.SQLException;
-class WHClientProcess extends Thread {
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+class WHClientProcess implements Runnable {
    
     
     private Socket client_socket;
+    private WHSession session;
+    private byte[] command_block;
     private WHDataCollector data_collector;
-    private WHOperation operation;
    
     // constructor for the new process
     WHClientProcess (Socket s) { 
 	client_socket = s; 
     }
+
+    // constructor for a process whose commands were already read by the non-blocking front end;
+    // the commands are replayed from command_block, and the replies to them have already been sent.
+    // The session is not closed: the caller runs runCommandBlocks() and decides what happens next
+    WHClientProcess (WHSession s, byte[] _command_block) {
+	session = s;
+	client_socket = s.getSocket();
+	command_block = _command_block;
+    }
     
     public void run() {
 	try {
-	    PrintWriter out=new PrintWriter(client_socket.getOutputStream(),true);
-	    data_collector=new WHDataCollector(client_socket);
-	    data_collector.setVerbose(true);
-	    data_collector.setVeryVerbose(false);
-	    if (data_collector.readDataFromClient()){
-		if (data_collector.getVeryVerbose())
-		    System.out.println("sucessfully read data from client");
-		try {
-		    operation=data_collector.createWHOperation();
-		    operation.setVerbose(data_collector.getVerbose());
-		    operation.setVeryVerbose(data_collector.getVeryVerbose());
-		    if (data_collector.getVeryVerbose())
-			System.out.println("Created WHOperation");
-		    out.println("OK");
-		    operation.executeAndOutputToClient(client_socket);
-		}
-		catch (WHClientCommandException bce){	    
-		    System.out.println("NAK "+bce.getMessage());
-		    out.println("NAK "+bce.getMessage());
-		}
-		catch (Exception e){
-		    System.out.println(e.toString());
+	    session = new WHSession(client_socket);
+	} catch (IOException ioe){
+	    System.out.println("IOE Exception: "+ioe.getMessage());
+	    return;
+	}
+	this.serve();
+    }
+
+    // finds out the protocol of the client, runs command blocks for as long as the client keeps
+    // the session alive, and closes the session
+    void serve() {
+	try {
+	    if (session.negotiate()) {
+		while (this.runCommandBlocks()) {
+		    if (! session.awaitNextBlock())
+			break;
 		}
 	    }
-	    System.out.println("Client disconnecting");
-	    out.println(".");
-	    out.println("BYE");
-	    out.close();
 	} catch (IOException ioe){
 	    System.out.println("IOE Exception: "+ioe.getMessage());
 	}
+	System.out.println("Client disconnecting");
+	session.close();
+    }
+
+    // runs the command block that is replayed or coming in, and the blocks the client pipelined behind it.
+    // returns true if the session stays open for another command block
+    boolean runCommandBlocks() {
+	// tagged read-only operations still running, with the responses they are writing to
+	LinkedList<Object[]> pending = new LinkedList<Object[]>();
+	boolean continuing;
+	try {
+	    do {
+		continuing = this.runCommandBlock(pending);
+	    } while (continuing && session.getInput().inputWaiting());
+	    this.finishPending(pending,0);
+	} catch (IOException ioe){
+	    System.out.println("IOE Exception: "+ioe.getMessage());
+	    return false;
+	}
+	return continuing;
+    }
+
+    // reads one command block and runs the operation it describes, or starts it if it may run ahead.
+    // returns true if the session stays open for another command block
+    private boolean runCommandBlock(LinkedList<Object[]> pending) throws IOException {
+	WHOperation operation = null;
+	String nak = null;
+	// while earlier operations are still running, the replies to this block wait their turn
+	WHSession response = pending.isEmpty() ? session : session.bufferedResponse();
+	if (command_block == null) {
+	    data_collector=new WHDataCollector(session,WHServer.getDatabaseCheck(),session.getInput(),response.getProtocol());
+	} else {
+	    WHLineInputStream replay_in = new WHLineInputStream(new ByteArrayInputStream(command_block));
+	    OutputStream replay_sink = new OutputStream(){
+		    public void write(int b){}
+		};
+	    WHProtocol replay_out = new WHTextProtocol(new PrintWriter(replay_sink),replay_sink,replay_in);
+	    data_collector=new WHDataCollector(session,WHServer.getDatabaseCheck(),replay_in,replay_out);
+	    command_block = null;
+	}
+	data_collector.setVerbose(true);
+	data_collector.setVeryVerbose(false);
+	if (! data_collector.readDataFromClient())
+	    return false;
+	if (data_collector.getVeryVerbose())
+	    System.out.println("sucessfully read data from client");
+	session.countOperation();
+	String tag = data_collector.getTag();
+	// operations left on a kept-alive session, -1 if the session ends after this block
+	int operations_left = session.isContinuing() ? session.getOperationsLeft() : -1;
+	try {
+	    operation=data_collector.createWHOperation();
+	    operation.setVerbose(data_collector.getVerbose());
+	    operation.setVeryVerbose(data_collector.getVeryVerbose());
+	    operation.setConnectionPool(WHServer.getConnectionPool());
+	    if (data_collector.getVeryVerbose())
+		System.out.println("Created WHOperation");
+	}
+	catch (WHClientCommandException bce){	    
+	    System.out.println("NAK "+bce.getMessage());
+	    nak = bce.getMessage();
+	}
+	catch (Exception e){
+	    System.out.println(e.toString());
+	}
+	if (operation != null && tag != null && operation.isReadOnly()) {
+	    // a tagged query or count runs ahead; its response is sent once the blocks before it have answered
+	    if (response == session)
+		response = session.bufferedResponse();
+	    operation.setInteractive(false);
+	    this.finishPending(pending,WHServer.PIPELINE_DEPTH-1);
+	    pending.add(WHClientProcess.startOperation(operation,response,tag,operations_left));
+	} else {
+	    this.finishPending(pending,0);
+	    if (response != session)
+		response.writeTo(session);
+	    WHClientProcess.respond(operation,nak,session,tag,operations_left);
+	}
+	return operations_left >= 0;
+    }
+
+    // sends the response to one command block: the tag, OK and the results or the NAK, and the end of
+    // the response if the session stays open
+    private static void respond(WHOperation operation, String nak, WHSession target, String tag, int operations_left) throws IOException {
+	WHProtocol out = target.getProtocol();
+	if (tag != null)
+	    out.tag(tag);
+	if (nak != null)
+	    out.nak(nak);
+	if (operation != null) {
+	    out.ok();
+	    try {
+		operation.executeAndOutputToClient(target);
+	    }
+	    catch (IOException ioe){
+		throw ioe;
+	    }
+	    catch (Exception e){
+		System.out.println(e.toString());
+	    }
+	}
+	if (operations_left >= 0)
+	    out.end(operations_left);
+    }
+
+    // runs a pipelined operation on the pipeline executor, writing its response to a buffer
+    private static Object[] startOperation(final WHOperation operation, final WHSession response,
+					   final String tag, final int operations_left) {
+	FutureTask<Object> task = new FutureTask<Object>(new Runnable(){
+		public void run(){
+		    try {
+			WHClientProcess.respond(operation,null,response,tag,operations_left);
+		    } catch (IOException ioe){
+			System.out.println("IOE Exception: "+ioe.getMessage());
+		    }
+		}
+	    },null);
+	Executor executor = WHServer.getPipelineExecutor();
+	if (executor == null)
+	    task.run();
+	else
+	    executor.execute(task);
+	return new Object[]{task,response};
+    }
+
+    // waits for the oldest pipelined operations and sends their responses, until only keep are left running
+    private void finishPending(LinkedList<Object[]> pending, int keep) throws IOException {
+	while (pending.size() > keep) {
+	    Object[] entry = pending.removeFirst();
+	    try {
+		((FutureTask<?>) entry[0]).get();
+	    }
+	    catch (InterruptedException ie){
+		throw new InterruptedIOException();
+	    }
+	    catch (ExecutionException ee){
+		System.out.println(ee.getCause().toString());
+	    }
+	    ((WHSession) entry[1]).writeTo(session);
+	}
     }
 }
 	
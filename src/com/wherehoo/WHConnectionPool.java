@@ -0,0 +1,450 @@
+package com.wherehoo;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <tt>WHConnectionPool</tt> keeps a bounded set of open connections to the database behind Wherehoo,
+ * so that the operations and the database checks do not open a new Postgres backend for every query.
+ * A connection is taken with <tt>getConnection()</tt> and must be given back with <tt>releaseConnection()</tt>.
+ * Connections that sat unused for longer than the idle timeout are closed by a background thread,
+ * and connections that were idle for a while are validated before they are handed out again.
+ * The pool state is guarded by a <tt>ReentrantLock</tt> rather than a monitor, so a virtual thread waiting
+ * for a connection does not pin its carrier thread.<br>
+ * Each connection keeps the statements prepared on it with <tt>prepareStatement()</tt>, so a query that is
+ * run again with other parameters is parsed and planned once per connection rather than once per run.
+ */
+public class WHConnectionPool {
+
+    private String url;
+    private String user;
+    private String password;
+
+    private int max_size;
+    private int statement_cache_size;
+    private long idle_timeout;
+    private long wait_timeout;
+    private long validate_after;
+
+    //idle connections, most recently released first
+    private LinkedList<PooledConnection> idle;
+    //connections handed out (or being opened) at the moment
+    private int active;
+    //clients waiting for a connection
+    private int waiters;
+    private boolean closed;
+    private ReentrantLock lock;
+    //signalled whenever a connection is released or a slot frees up
+    private Condition available;
+    //connection -> its prepared statements, by SQL text
+    private HashMap<Connection,StatementCache> statement_caches;
+
+    //metrics
+    private long acquire_count;
+    private long acquire_nanos;
+    private long acquire_max_nanos;
+    private long timeout_count;
+    private long created_count;
+    private long evicted_count;
+    private long prepared_count;
+    private long statement_hits;
+
+    private Thread evictor;
+
+    /**
+     * Creates a new <tt>WHConnectionPool</tt>.  No connections are opened until they are needed.
+     * @param _url JDBC url of the database
+     * @param _user database user
+     * @param _password password of the database user
+     * @param _max_size maximum number of connections open at the same time
+     * @param _idle_timeout msec an unused connection is kept open
+     * @param _wait_timeout msec <tt>getConnection()</tt> waits for a free connection before it gives up
+     * @param _validate_after msec of idleness after which a connection is tested before it is handed out
+     */
+    public WHConnectionPool(String _url, String _user, String _password, int _max_size,
+			    long _idle_timeout, long _wait_timeout, long _validate_after){
+	url = _url;
+	user = _user;
+	password = _password;
+	max_size = _max_size;
+	idle_timeout = _idle_timeout;
+	wait_timeout = _wait_timeout;
+	validate_after = _validate_after;
+	statement_cache_size = WHServer.STATEMENT_CACHE_SIZE;
+	idle = new LinkedList<PooledConnection>();
+	statement_caches = new HashMap<Connection,StatementCache>();
+	active = 0;
+	waiters = 0;
+	closed = false;
+	lock = new ReentrantLock();
+	available = lock.newCondition();
+
+	evictor = new Thread("WHConnectionPool evictor"){
+		public void run(){
+		    evictIdleConnections();
+		}
+	    };
+	evictor.setDaemon(true);
+	evictor.start();
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one if the pool is not full yet.  If all
+     * connections are in use, waits up to the wait timeout for one to be released.
+     * @return an open connection with autocommit on.  It has to be given back with <tt>releaseConnection()</tt>.
+     * @exception SQLException if no connection became available in time, or a new connection could not be opened.
+     */
+    public Connection getConnection() throws SQLException {
+	long start = System.nanoTime();
+	long deadline = System.currentTimeMillis() + wait_timeout;
+	PooledConnection pc = null;
+
+	lock.lock();
+	try {
+	    while (active >= max_size){
+		if (closed)
+		    throw new SQLException("Connection pool is closed");
+		if (! idle.isEmpty())
+		    break;
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0){
+		    timeout_count++;
+		    throw new SQLException("Timed out waiting for a database connection");
+		}
+		waiters++;
+		try {
+		    available.await(remaining, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie){
+		    throw new SQLException("Interrupted while waiting for a database connection");
+		} finally {
+		    waiters--;
+		}
+	    }
+	    if (closed)
+		throw new SQLException("Connection pool is closed");
+	    if (! idle.isEmpty())
+		pc = idle.removeFirst();
+	    //reserve the slot, the connection itself is opened outside of the lock
+	    active++;
+	} finally {
+	    lock.unlock();
+	}
+
+	Connection C = null;
+	try {
+	    if (pc != null){
+		if ((System.currentTimeMillis() - pc.last_used) < validate_after
+		    || WHConnectionPool.isValid(pc.connection))
+		    C = pc.connection;
+		else
+		    this.discard(pc.connection);
+	    }
+	    if (C == null){
+		C = DriverManager.getConnection(url, user, password);
+		lock.lock();
+		try {
+		    created_count++;
+		} finally {
+		    lock.unlock();
+		}
+	    }
+	} catch (SQLException sqle){
+	    lock.lock();
+	    try {
+		active--;
+		available.signal();
+	    } finally {
+		lock.unlock();
+	    }
+	    throw sqle;
+	}
+
+	long elapsed = System.nanoTime() - start;
+	lock.lock();
+	try {
+	    acquire_count++;
+	    acquire_nanos += elapsed;
+	    if (elapsed > acquire_max_nanos)
+		acquire_max_nanos = elapsed;
+	} finally {
+	    lock.unlock();
+	}
+	return C;
+    }
+
+    /**
+     * Gives a connection back to the pool. Uncommitted work is rolled back and autocommit is turned back on.
+     * A connection that is closed or broken is dropped from the pool.
+     * @param C connection obtained from <tt>getConnection()</tt>. <tt>null</tt> is ignored.
+     */
+    public void releaseConnection(Connection C){
+	if (C == null) return;
+	boolean reusable;
+	try {
+	    if (! C.getAutoCommit()){
+		C.rollback();
+		C.setAutoCommit(true);
+	    }
+	    reusable = ! C.isClosed();
+	} catch (SQLException sqle){
+	    reusable = false;
+	}
+	lock.lock();
+	try {
+	    active--;
+	    if (reusable && ! closed){
+		idle.addFirst(new PooledConnection(C, System.currentTimeMillis()));
+		C = null;
+	    }
+	    available.signal();
+	} finally {
+	    lock.unlock();
+	}
+	if (C != null)
+	    this.discard(C);
+    }
+
+    /**
+     * Returns a statement for <tt>sql</tt> prepared on connection <tt>C</tt>, which was obtained from
+     * <tt>getConnection()</tt>.  The statement is cached with the connection: it must not be closed by the
+     * caller, and must not be used after the connection is released.  Its parameters are cleared.
+     * @param C a connection of this pool
+     * @param sql text of the statement, with parameters
+     */
+    public PreparedStatement prepareStatement(Connection C, String sql) throws SQLException {
+	StatementCache cache;
+	lock.lock();
+	try {
+	    cache = statement_caches.get(C);
+	    if (cache == null){
+		cache = new StatementCache(statement_cache_size);
+		statement_caches.put(C, cache);
+	    }
+	} finally {
+	    lock.unlock();
+	}
+	//a connection is used by one thread at a time, and so is its cache
+	PreparedStatement ps = cache.get(sql);
+	boolean hit = (ps != null);
+	if (hit){
+	    ps.clearParameters();
+	} else {
+	    ps = C.prepareStatement(sql);
+	    cache.put(sql, ps);
+	}
+	lock.lock();
+	try {
+	    if (hit)
+		statement_hits++;
+	    else
+		prepared_count++;
+	} finally {
+	    lock.unlock();
+	}
+	return ps;
+    }
+
+    /**
+     * Closes all idle connections and stops handing out new ones.  Connections in use are closed
+     * as they are released.
+     */
+    public void close(){
+	LinkedList<PooledConnection> to_close;
+	lock.lock();
+	try {
+	    closed = true;
+	    to_close = idle;
+	    idle = new LinkedList<PooledConnection>();
+	    available.signalAll();
+	} finally {
+	    lock.unlock();
+	}
+	evictor.interrupt();
+	while (! to_close.isEmpty())
+	    this.discard(to_close.removeFirst().connection);
+    }
+
+    /** @return number of connections handed out at the moment */
+    public int getActiveCount(){
+	lock.lock();
+	try {
+	    return active;
+	} finally {
+	    lock.unlock();
+	}
+    }
+    /** @return number of open connections waiting in the pool */
+    public int getIdleCount(){
+	lock.lock();
+	try {
+	    return idle.size();
+	} finally {
+	    lock.unlock();
+	}
+    }
+    /** @return number of clients waiting for a free connection */
+    public int getWaiterCount(){
+	lock.lock();
+	try {
+	    return waiters;
+	} finally {
+	    lock.unlock();
+	}
+    }
+    /** @return number of connections handed out since the pool was created */
+    public long getAcquireCount(){
+	lock.lock();
+	try {
+	    return acquire_count;
+	} finally {
+	    lock.unlock();
+	}
+    }
+    /** @return average time spent in <tt>getConnection()</tt>, in msec */
+    public double getAverageAcquireMillis(){
+	lock.lock();
+	try {
+	    return (acquire_count == 0) ? 0 : (acquire_nanos / (double) acquire_count) / 1000000.0;
+	} finally {
+	    lock.unlock();
+	}
+    }
+    /** @return longest time spent in <tt>getConnection()</tt>, in msec */
+    public double getMaxAcquireMillis(){
+	lock.lock();
+	try {
+	    return acquire_max_nanos / 1000000.0;
+	} finally {
+	    lock.unlock();
+	}
+    }
+    /** @return number of times <tt>getConnection()</tt> gave up waiting */
+    public long getTimeoutCount(){
+	lock.lock();
+	try {
+	    return timeout_count;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Returns a one line summary of the pool metrics.
+     */
+    public String toString(){
+	lock.lock();
+	try {
+	    return "db pool: active "+active
+		+" idle "+idle.size()
+		+" waiters "+waiters
+		+" acquired "+acquire_count
+		+" avg_acquire_ms "+Math.round(this.getAverageAcquireMillis()*1000)/1000.0
+		+" max_acquire_ms "+Math.round(this.getMaxAcquireMillis()*1000)/1000.0
+		+" timeouts "+timeout_count
+		+" opened "+created_count
+		+" evicted "+evicted_count
+		+" prepared "+prepared_count
+		+" statement_hits "+statement_hits;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    //
+    //PRIVATE METHODS
+    //
+
+    private void evictIdleConnections(){
+	long interval = Math.max(idle_timeout/2, 1000);
+	while (true){
+	    try {
+		Thread.sleep(interval);
+	    } catch (InterruptedException ie){
+		return;
+	    }
+	    LinkedList<PooledConnection> expired = new LinkedList<PooledConnection>();
+	    lock.lock();
+	    try {
+		if (closed) return;
+		long now = System.currentTimeMillis();
+		//the oldest connections are at the end of the list
+		while (! idle.isEmpty()
+		       && (now - idle.getLast().last_used) > idle_timeout){
+		    expired.add(idle.removeLast());
+		    evicted_count++;
+		}
+	    } finally {
+		lock.unlock();
+	    }
+	    while (! expired.isEmpty())
+		this.discard(expired.removeFirst().connection);
+	}
+    }
+
+    private static boolean isValid(Connection C){
+	Statement s = null;
+	try {
+	    if (C.isClosed()) return false;
+	    s = C.createStatement();
+	    s.executeQuery("select 1").close();
+	    return true;
+	} catch (SQLException sqle){
+	    return false;
+	} finally {
+	    try { if (s != null) s.close(); } catch (SQLException sqle){}
+	}
+    }
+
+    //closes a connection that leaves the pool, with its prepared statements
+    private void discard(Connection C){
+	lock.lock();
+	try {
+	    statement_caches.remove(C);
+	} finally {
+	    lock.unlock();
+	}
+	WHConnectionPool.closeQuietly(C);
+    }
+
+    private static void closeQuietly(Connection C){
+	try {
+	    C.close();
+	} catch (SQLException sqle){}
+    }
+
+    //the statements prepared on one connection, the least recently used is closed when the cache is full
+    private static class StatementCache extends LinkedHashMap<String,PreparedStatement> {
+	private static final long serialVersionUID = 1L;
+	private int max_size;
+
+	StatementCache(int _max_size){
+	    super(16, 0.75f, true);
+	    max_size = _max_size;
+	}
+
+	protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest){
+	    if (this.size() <= max_size)
+		return false;
+	    try {
+		eldest.getValue().close();
+	    } catch (SQLException sqle){}
+	    return true;
+	}
+    }
+
+    private static class PooledConnection {
+	Connection connection;
+	long last_used;
+
+	PooledConnection(Connection _connection, long _last_used){
+	    connection = _connection;
+	    last_used = _last_used;
+	}
+    }
+}
@@ -102,77 +102,95 @@ public class WHCountOperation extends WHOperation {
 	protocol_is_set=true;
     } 
  
- /**
-     * Returns an SQL query string.
-     * @return SQL query string of this <tt>WHSearchOperation</tt>
+    //the record selection of this operation, with the values to bind
+    private WHSearchFilter getFilter(){
+	WHSearchFilter filter = new WHSearchFilter(search_poly);
+	if (begin_is_set)
+	    filter.setBegin(begin);
+	if (end_is_set)
+	    filter.setEnd(end);
+	if (meta_is_set)
+	    filter.setMeta(meta);
+	if (protocol_is_set)
+	    filter.setProtocol(protocol);
+	if (mimetype_is_set)
+	    filter.setMimetype(mimetype);
+	filter.setLimit(limit);
+	filter.useIndex(WHServer.getSpatialIndex(),System.currentTimeMillis());
+	return filter;
+    }
+
+    /**
+     * Returns the SQL query string.  The criteria are left as parameters of a prepared statement,
+     * so counts with the same kinds of criteria share one query string.
+     * @return SQL query string of this <tt>WHCountOperation</tt>
      */ 
     public String getQueryString(){
+	return this.getQueryString(this.getFilter());
+    }
+
+    private String getQueryString(WHSearchFilter filter){
 	String queryString;
-	//must check for zero-crossing, in which case we will have two adjacent search polies
 	if (this.getVeryVerbose()) System.out.println("Composing SQL query string");
 	
 	queryString  = "select count(distinct uniqueidsha) ";
 	queryString += "from wherehoo_polygons where "; 
-
-	if (! search_poly.zeroCrossing()){
-	    if (this.getVeryVerbose()) System.out.println("No zero crossing");
-	    //it either intersects
-	    queryString += "poly_overlap(polygon(pclose(path'"+search_poly.toString()+"')),area) ";	 
-	}	
-	else {
-	    if (this.getVeryVerbose()) System.out.println("Zero crossing");
-	    WHPolygon[] search_polies = search_poly.splitAlongGreatMeridian();
-	    queryString += "(poly_overlap(polygon(pclose(path'"+search_polies[0].toString()+"')),area) ";
-	    queryString += " OR poly_overlap(polygon(pclose(path'"+search_polies[1].toString()+"')),area)) ";
-	}
-
-	queryString +=  (begin_is_set) ? " AND begin_time >= '"+begin+"' " 
-	    : "AND begin_time <= now() ";
-	queryString += (end_is_set) ? "AND end_time <= '"+end+"' " 
-	    : "AND end_time >= now() ";	
-	queryString += (meta_is_set) ? "AND meta like '%"+meta+"%' " : "";
-	queryString += (protocol_is_set) ? "AND protocol like '"+protocol+"' " : "";
-	queryString += (mimetype_is_set) ? "AND mimetype like '"+mimetype+"' " : "";
-	queryString += (limit==0) ? " " : "limit "+limit+" ";
+	queryString += filter.getSQL();
 	
 	if (this.getVerbose()||this.getVeryVerbose()) System.out.println("The query:");
 	if (this.getVerbose()||this.getVeryVerbose()) System.out.println(queryString);
 	return queryString;
     } 
 
+    /**
+     * A count only reads the database, so it may run alongside other pipelined operations.
+     */
+    protected boolean isReadOnly(){
+	return true;
+    }
+
     /**
      * Searches the database for entries that are within set search area, in the set time interval, 
      *and satisfying other optional criteria, such as mimetype, protocol or metadata. <tt>executeAndOutputToClient</tt> 
      * then returns
-     * the count of all found results to the client via <tt>client_socket</tt>
-     * @param client_socket a socket of the connecting client.  After executing a search operation, this method sends
-     * the results to the client via <tt>client_socket</tt>
+     * the count of all found results to the client via <tt>session</tt>
+     * @param session the session of the connecting client.  After executing a search operation, this method sends
+     * the results to the client via <tt>session</tt>
      */ 
-    public synchronized void executeAndOutputToClient(Socket client_socket) throws IOException{
+    protected void executeOperation(WHSession session) throws IOException{
 	
 	ResultSet rs=null;
-	Connection C;
-	Statement s;
-	PrintWriter out;
+	Connection C=null;
+	PreparedStatement s;
+	WHProtocol out;
 	String queryString;
+	WHSearchFilter filter;
 	int count;
 	
-	out = new PrintWriter(client_socket.getOutputStream(),true);
+	out = session.getProtocol();
+	filter = this.getFilter();
+	//the in-memory index knows there is nothing to count
+	if (filter.isEmpty()){
+	    out.count(0);
+	    return;
+	}
 	try{
-            C = DriverManager.getConnection("jdbc:"+WHServer.DB,"postgres","");
+	    C = this.getConnectionPool().getConnection();
 	    C.setAutoCommit(false);
 	    
-	    queryString=this.getQueryString();
+	    queryString=this.getQueryString(filter);
 	    
-	    s = C.createStatement();
-	    rs = s.executeQuery(queryString);
-	    C.commit();
+	    s = this.getConnectionPool().prepareStatement(C,queryString);
+	    filter.bind(s,1);
+	    rs = s.executeQuery();
 	    if(rs.next()){
 		count=rs.getInt("count");
 	    } else {
 		count=0;
 	    }
-	    out.println(count);
+	    rs.close();
+	    C.commit();
+	    out.count(count);
 	    //out.close();
 	}
 	catch (SQLException sqle) {
@@ -180,6 +198,9 @@ public class WHCountOperation extends WHOperation {
 	    System.out.println("SQLState:     " + sqle.getSQLState());
 	    System.out.println("VendorError:  " + sqle.getErrorCode());
 	}
+	finally {
+	    this.getConnectionPool().releaseConnection(C);
+	}
     }
      
     /**
@@ -12,10 +12,24 @@ import java.awt.geom.Point2D;
 
 public class WHDataCollector{
 
+    /** immediate reply: none, the command is answered with its command block */
+    static final int REPLY_NONE = 0;
+    /** immediate reply: the server header */
+    static final int REPLY_HEADER = 1;
+    /** immediate reply: ACK */
+    static final int REPLY_ACK = 2;
+    /** immediate reply: ACK once the payload and its signature are in, if <tt>isDataLength()</tt> accepts its length */
+    static final int REPLY_DATA = 3;
+    /** immediate reply: none, the command completes the command block */
+    static final int REPLY_END = 4;
+    /** immediate reply: none, the client is leaving or sent something that is not a command */
+    static final int REPLY_LEAVE = 5;
+
     private boolean verbose;
     private boolean very_verbose;
     
-    private Socket client_socket;
+    private WHSession session;
+    private WHDatabaseCheck database_check;
    
     private String act;
     private String idt;
@@ -25,6 +39,8 @@ public class WHDataCollector{
     private String protocol;
     private String shape;
     private String meta;
+    private String tag;
+    private String order;
     
     private Point2D.Double[] coordinates;
     private double height;
@@ -43,22 +59,48 @@ public class WHDataCollector{
    
     private WHFields errors;
     private WHFields received;
-    private PrintWriter out;
-    private BufferedReader in;
+    private WHProtocol replies;
+    private WHLineInputStream in;
     
     /**
-     * Initializes the new <tt>WHDataCollector</tt> object. It
+     * Initializes the new <tt>WHDataCollector</tt> object. It reads one command block from the session.
+     * If the client gave its identity in an earlier block of the same session, it need not repeat IDT.
+     * @param _session the session of the connecting client
+     * @param _database_check the service used to verify client data against the database
      */
     
-    protected  WHDataCollector(Socket _clientSocket){
+    protected  WHDataCollector(WHSession _session, WHDatabaseCheck _database_check){
 	
-	client_socket=_clientSocket;
+	session=_session;
+	database_check=_database_check;
+	in=session.getInput();
+	replies=session.getProtocol();
 
 	coordinates=new Point2D.Double[0];	
 	time_interval = new WHTimeInterval();
 
 	errors = new WHFields();
 	received = new WHFields();
+	if (session.getIdentity() != null){
+	    idt = session.getIdentity();
+	    received.set(WHServer.IDT,true);
+	}
+    }
+
+    /**
+     * Initializes the new <tt>WHDataCollector</tt> object that reads the client commands from <tt>_in</tt>
+     * and sends its replies through <tt>_replies</tt>, rather than to the session.  This is used when the
+     * commands were already received by the non-blocking front end and are replayed from memory, and
+     * when the replies have to wait for the responses to pipelined command blocks.
+     * @param _session the session of the connecting client
+     * @param _database_check the service used to verify client data against the database
+     * @param _in source of the client commands
+     * @param _replies destination of the replies to the client commands
+     */
+    protected  WHDataCollector(WHSession _session, WHDatabaseCheck _database_check, WHLineInputStream _in, WHProtocol _replies){
+	this(_session,_database_check);
+	in=_in;
+	replies=_replies;
     }
 
     protected void setVerbose(boolean verbosity){
@@ -77,9 +119,17 @@ public class WHDataCollector{
     protected boolean getVeryVerbose(){
 	return very_verbose;
     }
+    /**
+     * Returns the tag the client gave this command block with TAG, or <tt>null</tt> if it is not tagged.
+     * The response to a tagged block starts with <tt>TAG tag</tt>, and a tagged query or count may be
+     * run ahead of the client, before it reads the responses to its earlier blocks.
+     */
+    protected String getTag(){
+	return tag;
+    }
 	
     /**
-     * Collects data from the client.  <tt>readDataFromClient() listens on the <tt>client_socket</tt> and records
+     * Collects data from the client.  <tt>readDataFromClient() listens on the <tt>session</tt> and records
      * the commands and the values as they come in. It does not check these commands nor data for correctness.
      * @return boolean value that indicates whether commands were read succesfully and the client wants to proceed.  
      * It does <i>not</i> indicate whether there were any errors in commands or their parameters. <tt>readDataFromClient()
@@ -91,19 +141,24 @@ public class WHDataCollector{
 
 	boolean proceed = false;
 	try {
-	    PrintWriter out = new PrintWriter(client_socket.getOutputStream(),true);
-	    BufferedReader in = new BufferedReader(new InputStreamReader(client_socket.getInputStream()));
-	    
 	    String line;
 	    String cmd;
  
 	    if (verbose || very_verbose)
 		if (very_verbose) System.out.println("READING DATA FROM CLIENT:");
 	    do {
-		//read one line sent by the client
-		line = in.readLine();
-		//interpret the command
-		cmd= this.interpretLine(line,in,out);
+		if (session.isBinary()) {
+		    //read and interpret one frame sent by the client
+		    cmd= this.interpretFrame();
+		} else {
+		    //read one line sent by the client
+		    line = in.readLine();
+		    //interpret the command; a client that closed the connection is treated as if it said bye
+		    if (line == null)
+			cmd = "bye";
+		    else
+			cmd= this.interpretLine(line);
+		}
 		if (very_verbose) System.out.println("returned command: "+cmd);
 	    } while (! cmd.equals(".") && ! cmd.equals("bye"));
 	    //return false if the client wishes to disconnect or there was a fatal error
@@ -152,6 +207,8 @@ public class WHDataCollector{
 		    whq.setMimetype(mimetype);
 		if (received.get(WHServer.PRO))
 		    whq.setProtocol(protocol);
+		if (received.get(WHServer.ORD))
+		    whq.setOrder(order);
 		return whq;
 	    } 
 	    else { 
@@ -190,6 +247,8 @@ public class WHDataCollector{
 	    System.out.println(this.toString());
 	}
 	
+	if (errors.get(WHServer.TAG))
+	    throw new WHClientCommandException("TAG");
 	if ((!received.get(WHServer.ACT))||
 	    errors.get(WHServer.ACT)){
 	    throw new WHClientCommandException("ACT");
@@ -200,7 +259,7 @@ public class WHDataCollector{
 	    if (act.equals("insert")){
 		//check idt
 		if (! received.get(WHServer.IDT)
-		    || (! WHDatabaseCheck.checkUser(idt)))
+		    || (! database_check.checkUser(idt)))
 		    errors.set(WHServer.IDT,true);
 		if (errors.get(WHServer.IDT)) bad_variables+="IDT ";
 		if (very_verbose) 
@@ -209,7 +268,7 @@ public class WHDataCollector{
 		if (errors.get(WHServer.MIM)) 
 		    bad_variables+="MIM ";
 		//check protocol
-		if (! WHDatabaseCheck.checkProtocol(protocol))
+		if (! database_check.checkProtocol(protocol))
 		    errors.set(WHServer.PRO,true);
 		if (errors.get(WHServer.PRO)) 
 		    bad_variables+="PRO ";
@@ -240,7 +299,7 @@ public class WHDataCollector{
 		    bad_variables+="DAT ";
 		//check sha
 		if (! received.get(WHServer.SHA) 
-		    || (!WHDatabaseCheck.checkSignature(data,dataSHA,idt)))  
+		    || (!database_check.checkSignature(data,dataSHA,idt)))  
 		    errors.set(WHServer.SHA,true); 
 		if (errors.get(WHServer.SHA)) 
 		    bad_variables+="SHA ";
@@ -298,7 +357,7 @@ public class WHDataCollector{
 		if (very_verbose) System.out.println("mimetype checked");
 		//check protocol
 		if (errors.get(WHServer.PRO)
-		    ||((!WHDatabaseCheck.checkProtocol(protocol))&&(received.get(WHServer.PRO))))
+		    ||((!database_check.checkProtocol(protocol))&&(received.get(WHServer.PRO))))
 		    bad_variables+="PRO ";
 		if (very_verbose) System.out.println("protocol checked");
 		//check beg and end
@@ -307,6 +366,9 @@ public class WHDataCollector{
 		//check pjt 
 		if (errors.get(WHServer.PJT))
 		    bad_variables+="PJT ";
+		//check ord
+		if (errors.get(WHServer.ORD))
+		    bad_variables+="ORD ";
 		
 		//check llh, should be set
 		//then set search area description string
@@ -334,12 +396,12 @@ public class WHDataCollector{
 		//check idt
 		if ((! received.get(WHServer.IDT)) 
 		    || errors.get(WHServer.IDT)
-		    ||(! WHDatabaseCheck.checkUser(idt)))
+		    ||(! database_check.checkUser(idt)))
 		    bad_variables += "IDT ";
 		//check uid
 		if ((! received.get(WHServer.UID))
 		    || errors.get(WHServer.UID)
-		    ||(! WHDatabaseCheck.checkUID(uniqueidSHA)))
+		    ||(! database_check.checkUID(uniqueidSHA)))
 		    bad_variables += "UID ";
 		//throw exception if there were any errors
 		if (bad_variables.length()!=0)
@@ -349,10 +411,7 @@ public class WHDataCollector{
     }
     
 	
-    private String interpretLine(String line,BufferedReader in, PrintWriter out){
-	
-	StringTokenizer line_tokens;
-	StringTokenizer param_tokens;
+    private String interpretLine(String line) throws IOException {
 	
 	// get the command portion
 	String cmd;
@@ -362,24 +421,33 @@ public class WHDataCollector{
 	    System.out.println("INTERPRETING LINE: "+line);
 
 
-	line_tokens = new StringTokenizer(line," ",false);
-
-	if (line_tokens.hasMoreTokens()) {
-	    cmd=((String)line_tokens.nextToken()).toLowerCase(); 
-	} else { 
-	    cmd="";
-	}
+	String[] command = WHDataCollector.splitLine(line);
+	cmd = command[0];
 	if (very_verbose) System.out.println("COMMAND: "+cmd);
 	// get the parameters
-	if (line_tokens.hasMoreTokens()) {
-	    param = (String) line.substring(cmd.length()).trim();
-	} else {
-	    param = "";
-	}
+	param = command[1];
 	if (very_verbose) System.out.println("PARAMS: "+param);
+	return this.interpretCommand(WHServer.commandIndex(cmd),cmd,param);
+    }
+
+    //sets the variables for command command_index with text parameters param.
+    //returns the command, "." if the command block is complete, or "bye" if the client is leaving
+    private String interpretCommand(int command_index, String cmd, String param) throws IOException {
+
+	StringTokenizer param_tokens;
+
+	//answer the commands that are answered as soon as they are read
+	switch (WHDataCollector.immediateReply(command_index)){
+	case REPLY_HEADER:
+	    replies.header();
+	    break;
+	case REPLY_ACK:
+	    replies.ack();
+	    break;
+	}
 
 	//set appropriate variables
-	switch(WHServer.commandIndex(cmd)){
+	switch(command_index){
 	    
 	    //IDT
 	case WHServer.IDT:
@@ -387,7 +455,7 @@ public class WHDataCollector{
 	    idt=param.toLowerCase();
 	    errors.set(WHServer.IDT,(idt.equals("") 
 					  || (idt.length() > WHServer.MAXIDT)));
-	    out.println(WHServer.serverHeader());	    
+	    session.setIdentity(errors.get(WHServer.IDT) ? null : idt);
 	    if (very_verbose) {
 		System.out.println("Interpreting IDT ="+ idt);
 		System.out.println("Sent: "+WHServer.serverHeader());
@@ -416,47 +484,29 @@ public class WHDataCollector{
 	    
 	    //LLH
 	case WHServer.LLH: 
-	    received.set(WHServer.LLH,true);
-	    //read the values for lat, lon, h into respective vectors
+	    //read the values for lat, lon, h; all points have to be at the same height
 	    param_tokens= new StringTokenizer(param);
-	    height=-1;
 	    if (verbose || very_verbose) 
 		System.out.println("Interpreting LLH: "+param);
 	    try {
-		Point2D.Double[] temp_array=new Point2D.Double[0];
-		coordinates= new Point2D.Double[0];
-		double temp_height;
-		int counter=0;
-		do {
-		    temp_array= new Point2D.Double[counter+1];
-		    //copy coordinates to temp_array
-		    System.arraycopy(coordinates,0,temp_array,0,counter);				     
+		if (param_tokens.countTokens() == 0 || param_tokens.countTokens() % 3 != 0)
+		    throw new WHClientCommandException();
+		Point2D.Double[] points=new Point2D.Double[param_tokens.countTokens()/3];
+		double point_height=0;
+		for (int i=0;i<points.length;i++){
 		    //read latitudude and longitude
-		    temp_array[counter]=new Point2D.Double(
-							   Double.parseDouble(param_tokens.nextToken()),
-							   Double.parseDouble(param_tokens.nextToken()));
-		    //convert to proper wherehoo ranges
-		    WHGeo.toWHFormat(temp_array[counter]);
-		    //read height
-		    temp_height=(Double.parseDouble(param_tokens.nextToken()));
-		    if (counter==0)
-			height=temp_height;
-		    //check if the height is the same as in previous point that was read
-		    if (height!=temp_height)
+		    points[i]=new Point2D.Double(Double.parseDouble(param_tokens.nextToken()),
+						 Double.parseDouble(param_tokens.nextToken()));
+		    //read height, it has to be the same as the height of the previous point
+		    double temp_height=Double.parseDouble(param_tokens.nextToken());
+		    if (i==0)
+			point_height=temp_height;
+		    if (point_height!=temp_height)
 			throw new WHClientCommandException();
-		    //create new coordinates array, one element larger than before
-		    coordinates= new Point2D.Double[counter+1];
-		    //copy temp_array into coordinates
-		    System.arraycopy(temp_array,0,coordinates,0,counter+1);
-		    //increase counter
-		    counter=counter+1;
-		    if (very_verbose) {
-			System.out.println("COORDINATES: "+coordinates.toString());
-			System.out.println("HEIGHT: "+height);}
-		} while (param_tokens.hasMoreElements());
-		errors.set(WHServer.LLH,false);
+		}
+		this.receiveCoordinates(points,point_height);
 	    } catch (Exception e){
-		errors.set(WHServer.LLH,true);
+		this.reject(WHServer.LLH);
 	    }
 	    return cmd;
 	    
@@ -479,7 +529,7 @@ public class WHDataCollector{
 	    if (very_verbose) 
 		System.out.println("Interpreting END ="+param);
 	    try{
-		time_interval.setBegin(param);
+		time_interval.setEnd(param);
 		errors.set(WHServer.END,false);
 	    } catch (WHTimeException e){
 		errors.set(WHServer.END,true);
@@ -488,40 +538,34 @@ public class WHDataCollector{
 	    
 	    //HDG 
 	case WHServer.HDG: 
-	    received.set(WHServer.HDG,true);
 	    if (very_verbose) 
 		System.out.println("Interpreting HDG ="+param);
 	    try{
-		heading = (((Double.parseDouble(param))%360)+360)%360;
-		errors.set(WHServer.HDG,false);
+		this.receiveHeading(Double.parseDouble(param));
 	    } catch(NumberFormatException nfe) {
-		errors.set(WHServer.HDG,true);
+		this.reject(WHServer.HDG);
 	    }
 	    return cmd;
 	    
 	    //LEN
 	case WHServer.LEN: 
-	    received.set(WHServer.LEN ,true);
 	    if (very_verbose) 
 		System.out.println("Interpreting LEN ="+param);
 	    try{
-		length = Double.parseDouble(param);
-		errors.set(WHServer.LEN,(length<1));
+		this.receiveLength(Double.parseDouble(param));
 	    } catch (NumberFormatException nfe){
-		errors.set(WHServer.LEN,true);
+		this.reject(WHServer.LEN);
 	    }
 	    return cmd;
 	    
 	    //LIM
 	case WHServer.LIM: 
-	    received.set(WHServer.LIM ,true);
 	    if (very_verbose) 
 		System.out.println("Interpreting LIM ="+param);
 	    try{
-		limit = Integer.parseInt(param);
-		errors.set(WHServer.LIM,(limit<0));
+		this.receiveLimit(Integer.parseInt(param));
 	    } catch (NumberFormatException nfe){
-		errors.set(WHServer.LIM, true);
+		this.reject(WHServer.LIM);
 	    }
 	    return cmd;
 	    
@@ -544,17 +588,14 @@ public class WHDataCollector{
 	    
 	    //PJT
 	case WHServer.PJT: 
-	    received.set(WHServer.PJT,true);
 	    if (very_verbose) 
 		System.out.println("Interpreting PJT ="+param);
 	    try {
 		param_tokens = new StringTokenizer(param); 
-		//normalize the project angle
-		project_heading = (((Float.parseFloat(param_tokens.nextToken()))%360)+360)%360; 
-		project_range = Float.parseFloat(param_tokens.nextToken());
-		errors.set(WHServer.PJT,(project_range<0));
+		this.receiveProjection(Float.parseFloat(param_tokens.nextToken()),
+				       Float.parseFloat(param_tokens.nextToken()));
 	    } catch(Exception e) {
-		errors.set(WHServer.PJT,true);
+		this.reject(WHServer.PJT);
 	    }
 	    return cmd;
 	    
@@ -569,21 +610,12 @@ public class WHDataCollector{
 	    
 	    //RAD
 	case WHServer.RAD: 
-	    received.set(WHServer.RAD ,true);
 	    if (very_verbose) 
 		System.out.println("Interpreting RAD ="+param);
 	    try{
-		radius=Float.parseFloat(param);
-		if (radius<1)
-		    errors.set(WHServer.RAD,true);
-		else {
-		    received.set(WHServer.WID,true);
-		    width = radius;
-		    received.set(WHServer.LEN,true);
-		    length = radius;
-		}
+		this.receiveRadius(Float.parseFloat(param));
 	    } catch (NumberFormatException nfe){
-		errors.set(WHServer.RAD,true);
+		this.reject(WHServer.RAD);
 	    }
 	    return cmd;
 	    
@@ -598,86 +630,26 @@ public class WHDataCollector{
 	    
 	    //WID
 	case WHServer.WID: 
-	    received.set(WHServer.WID,true);
 	    if (very_verbose) 
 		System.out.println("Interpreting WID ="+param);
 	    try{
-		width=Float.parseFloat(param);
-		//set the error field true if width is less than 1 
-		errors.set(WHServer.WID,(width<1));
+		this.receiveWidth(Float.parseFloat(param));
 	    } catch (NumberFormatException nfe){
-		errors.set(WHServer.WID,true);
+		this.reject(WHServer.WID);
 	    }
 	    return cmd;
 	    
 	    //DAT
 	case WHServer.DAT: 
-	    received.set(WHServer.DAT ,true);
 	    if (very_verbose) 
 		System.out.println("Interpreting DAT ");
-	    int datalen;
 	    try { 
-		datalen = Integer.parseInt(param); 
+		this.receiveData(Integer.parseInt(param));
 	    } catch(NumberFormatException nfe) {
-		errors.set(WHServer.DAT,true);
-		return cmd;
-	    }
-	    if (very_verbose) 
-		System.out.println("got datalen");
-	    if ((datalen < 1) || (datalen > WHServer.MAXDATA)){
-		errors.set(WHServer.DAT,true);
-		return cmd; 
-	    } else {
-		try{
-		    data = new byte[datalen];
-		    dataSHA = new byte[WHServer.SIGNATUREBYTECOUNT]; 
-		    //read the data
-		    for (int _j=0; _j < datalen; _j++) {
-			int _timer = WHServer.RXTIMEOUT;
-			while (! in.ready()) { 
-			    if (very_verbose) System.out.println("not ready");
-			    try { Thread.sleep(WHServer.RXLOOPTIMEOUT);
-			    } catch (Exception e) { }
-			    _timer -= WHServer.RXLOOPTIMEOUT;
-			    if (_timer < 0) {
-				errors.set(WHServer.DAT,true);
-				throw new java.io.InterruptedIOException(); 
-			    }
-			}
-			data[_j] = (byte) in.read();
-		    }
-		    if (very_verbose) 
-			System.out.println("read data");
-		    //read the signature	
-		    for (int _j=0; _j < WHServer.SIGNATUREBYTECOUNT; _j++) {
-			int _timer = WHServer.RXTIMEOUT;
-			while (! in.ready()) { 
-			    try { Thread.sleep(WHServer.RXLOOPTIMEOUT);
-			    } catch (Exception e) { } 
-			    _timer -= WHServer.RXLOOPTIMEOUT;
-			    if (_timer < 0) {
-				errors.set(WHServer.DAT, true);
-				throw new java.io.InterruptedIOException(); 
-			    }
-			}
-			dataSHA[_j] = (byte) in.read();
-		    }
-		    if (very_verbose) 
-			System.out.println("read signature");
-		    out.println("ACK");
-		    if (very_verbose) 
-			System.out.println("printed ack");
-		    errors.set(WHServer.DAT,false);
-		} catch (Exception e){
-		    errors.set(WHServer.DAT,true);
-		}
-		if (very_verbose) {
-		    System.out.println("Returning cmd");
-		    System.out.println("Data :"+data.length);
-		    System.out.println("SHA :"+dataSHA.length);
-		}
-		return cmd;
+		this.reject(WHServer.DAT);
 	    }
+	    return cmd;
+	    
 	    //UID
 	case WHServer.UID: 
 	    received.set(WHServer.UID,true);
@@ -700,9 +672,36 @@ public class WHDataCollector{
 	    received.set(WHServer.NOP,true);
 	    if (very_verbose) 
 		System.out.println("Interpreting NOP");
-	    out.println("ACK");
 	    return cmd;
 	    
+	    //KAL
+	case WHServer.KAL:
+	    received.set(WHServer.KAL,true);
+	    if (very_verbose) 
+		System.out.println("Interpreting KAL");
+	    session.setKeepAlive(true);
+	    return cmd;
+	    
+	    //TAG
+	case WHServer.TAG:
+	    received.set(WHServer.TAG,true);
+	    if (very_verbose) 
+		System.out.println("Interpreting TAG ="+param);
+	    tag = param;
+	    errors.set(WHServer.TAG,(tag.equals("") || tag.length() > WHServer.MAXTAG || tag.indexOf(' ') >= 0));
+	    if (errors.get(WHServer.TAG))
+		tag = null;
+	    return cmd;
+	    
+	    //ORD
+	case WHServer.ORD:
+	    received.set(WHServer.ORD,true);
+	    if (very_verbose) 
+		System.out.println("Interpreting ORD ="+param);
+	    order=param.toLowerCase();
+	    errors.set(WHServer.ORD,(!(order.equals("nearest")||order.equals("heading"))));
+	    return cmd;
+
 	    //BYE
 	case WHServer.BYE:   
 	    received.set(WHServer.BYE,true);
@@ -720,6 +719,342 @@ public class WHDataCollector{
 	    return "bye";
 	}
     }
+
+    /**
+     * Splits a command line into its command, in lower case, and its parameters.
+     * @return {command, parameters}; both are "" for an empty line.
+     */
+    static String[] splitLine(String line){
+	String trimmed = line.trim();
+	int space = trimmed.indexOf(' ');
+	if (space < 0)
+	    return new String[] {trimmed.toLowerCase(), ""};
+	return new String[] {trimmed.substring(0,space).toLowerCase(), trimmed.substring(space).trim()};
+    }
+
+    /**
+     * Returns what a command is answered with as soon as it is read, before its command block is complete.
+     * The data collector and the event loops of <tt>WHNioServer</tt> both answer by it.
+     * @param command_index the index of the command, see <tt>WHServer.commandIndex()</tt>
+     * @return one of the <tt>REPLY_</tt> constants.
+     */
+    static int immediateReply(int command_index){
+	switch (command_index){
+	case WHServer.IDT:
+	    return REPLY_HEADER;
+	case WHServer.NOP:
+	    return REPLY_ACK;
+	case WHServer.DAT:
+	    return REPLY_DATA;
+	case WHServer.DOT:
+	    return REPLY_END;
+	case -1:
+	case WHServer.BYE:
+	    return REPLY_LEAVE;
+	default:
+	    return REPLY_NONE;
+	}
+    }
+
+    /** @return <tt>true</tt> if a DAT payload of <tt>datalen</tt> bytes is accepted */
+    static boolean isDataLength(int datalen){
+	return datalen >= 1 && datalen <= WHServer.MAXDATA;
+    }
+
+    //reads one frame of the binary protocol and sets the variables for its command.
+    //returns the command, "." if the command block is complete, or "bye" if the client is leaving
+    private String interpretFrame() throws IOException {
+
+	int opcode = in.read();
+	//a client that closed the connection is treated as if it said bye
+	if (opcode < 0)
+	    return "bye";
+	long length = WHBinaryProtocol.readVarint(in);
+	int command_index = WHBinaryProtocol.commandIndex(opcode);
+	if (very_verbose)
+	    System.out.println("INTERPRETING FRAME: "+opcode+", "+length+" bytes");
+	//an unknown opcode ends the session, like an unknown text command
+	if (command_index < 0 || length > Integer.MAX_VALUE){
+	    in.skipFully(length);
+	    return "bye";
+	}
+	String cmd = WHServer.commandName(command_index);
+	int len = (int) length;
+
+	switch(command_index){
+
+	    //commands with a string parameter go through the text interpreter;
+	    //a string longer than its command allows is not read into memory
+	case WHServer.IDT:
+	case WHServer.MET:
+	case WHServer.MIM:
+	case WHServer.PRO:
+	case WHServer.UID:
+	case WHServer.SHA:
+	case WHServer.TAG:
+	    if (len > WHDataCollector.maxStringFrame(command_index))
+		return this.skipFrame(command_index,len);
+	    return this.interpretCommand(command_index,cmd,WHBinaryProtocol.readString(in,len).trim());
+
+	    //ACT, SHP and ORD are enumerated
+	case WHServer.ACT:
+	case WHServer.SHP:
+	case WHServer.ORD:
+	    if (len != 1)
+		return this.skipFrame(command_index,len);
+	    int value = in.read();
+	    String param = "";
+	    if (command_index == WHServer.ACT){
+		switch (value){
+		case WHBinaryProtocol.ACT_INSERT: param = "insert"; break;
+		case WHBinaryProtocol.ACT_QUERY: param = "query"; break;
+		case WHBinaryProtocol.ACT_COUNT: param = "count"; break;
+		case WHBinaryProtocol.ACT_DELETE: param = "delete"; break;
+		}
+	    } else if (command_index == WHServer.SHP){
+		switch (value){
+		case WHBinaryProtocol.SHP_RECT_CTR: param = "rect_ctr"; break;
+		case WHBinaryProtocol.SHP_RECT_FWD: param = "rect_fwd"; break;
+		}
+	    } else {
+		switch (value){
+		case WHBinaryProtocol.ORD_NEAREST: param = "nearest"; break;
+		case WHBinaryProtocol.ORD_HEADING: param = "heading"; break;
+		}
+	    }
+	    return this.interpretCommand(command_index,cmd,param);
+
+	    //LLH: lat, lon pairs and one height
+	case WHServer.LLH:
+	    if (len < 24 || (len - 8) % 16 != 0)
+		return this.skipFrame(command_index,len);
+	    Point2D.Double[] points = new Point2D.Double[(len - 8) / 16];
+	    for (int i=0;i<points.length;i++)
+		points[i] = new Point2D.Double(WHBinaryProtocol.readDouble(in),WHBinaryProtocol.readDouble(in));
+	    this.receiveCoordinates(points,WHBinaryProtocol.readDouble(in));
+	    return cmd;
+
+	    //BEG and END: six offsets
+	case WHServer.BEG:
+	case WHServer.END:
+	    ByteArrayInputStream time_fields = this.readFields(len,6*WHBinaryProtocol.MAX_VARINT);
+	    if (time_fields == null)
+		return this.skipFrame(command_index,len);
+	    int[] offsets = new int[6];
+	    try {
+		for (int i=0;i<offsets.length;i++)
+		    offsets[i] = (int) WHBinaryProtocol.readSignedVarint(time_fields);
+	    } catch (IOException ioe){
+		//the frame ended in the middle of the offsets
+		this.reject(command_index);
+		return cmd;
+	    }
+	    if (time_fields.available() > 0){
+		this.reject(command_index);
+		return cmd;
+	    }
+	    this.receiveTime(command_index,offsets);
+	    return cmd;
+
+	    //commands with one double
+	case WHServer.HDG:
+	case WHServer.LEN:
+	case WHServer.RAD:
+	case WHServer.WID:
+	    if (len != 8)
+		return this.skipFrame(command_index,len);
+	    double number = WHBinaryProtocol.readDouble(in);
+	    if (command_index == WHServer.HDG)
+		this.receiveHeading(number);
+	    else if (command_index == WHServer.LEN)
+		this.receiveLength(number);
+	    else if (command_index == WHServer.RAD)
+		this.receiveRadius(number);
+	    else
+		this.receiveWidth(number);
+	    return cmd;
+
+	    //PJT: heading and range
+	case WHServer.PJT:
+	    if (len != 16)
+		return this.skipFrame(command_index,len);
+	    this.receiveProjection(WHBinaryProtocol.readDouble(in),WHBinaryProtocol.readDouble(in));
+	    return cmd;
+
+	case WHServer.LIM:
+	    ByteArrayInputStream limit_field = this.readFields(len,WHBinaryProtocol.MAX_VARINT);
+	    if (limit_field == null)
+		return this.skipFrame(command_index,len);
+	    try {
+		long limit_value = WHBinaryProtocol.readVarint(limit_field);
+		if (limit_field.available() > 0)
+		    this.reject(command_index);
+		else
+		    this.receiveLimit(limit_value);
+	    } catch (IOException ioe){
+		this.reject(command_index);
+	    }
+	    return cmd;
+
+	    //DAT: the payload is the data followed by its signature
+	case WHServer.DAT:
+	    int datalen = len - WHServer.SIGNATUREBYTECOUNT;
+	    if ((datalen < 1) || (datalen > WHServer.MAXDATA))
+		return this.skipFrame(command_index,len);
+	    this.receiveData(datalen);
+	    return cmd;
+
+	    //NOP, KAL, DBG, BYE and the end of the block have no parameters
+	default:
+	    in.skipFully(len);
+	    return this.interpretCommand(command_index,cmd,"");
+	}
+    }
+
+    //reads the payload of a frame of numbers, so that a malformed frame cannot take the stream out of step.
+    //returns null if the payload is empty or longer than max
+    private ByteArrayInputStream readFields(int len, int max) throws IOException {
+	if (len < 1 || len > max)
+	    return null;
+	byte[] payload = new byte[len];
+	in.readFully(payload);
+	return new ByteArrayInputStream(payload);
+    }
+
+    //the longest string payload accepted for a command
+    private static int maxStringFrame(int command_index){
+	switch (command_index){
+	case WHServer.IDT:
+	    return WHServer.MAXIDT;
+	case WHServer.MET:
+	    return WHServer.MAXMETA;
+	case WHServer.TAG:
+	    return WHServer.MAXTAG;
+	default:
+	    return WHServer.MAXFIELD;
+	}
+    }
+
+    //skips the payload of a frame that has the wrong length for its command, and rejects the command
+    private String skipFrame(int command_index, int len) throws IOException {
+	in.skipFully(len);
+	this.reject(command_index);
+	return WHServer.commandName(command_index);
+    }
+
+    //
+    //VALUES OF THE COMMANDS, as sent by the text and the binary protocol
+    //
+
+    //marks the command as received with a bad parameter
+    private void reject(int command_index){
+	received.set(command_index,true);
+	errors.set(command_index,true);
+    }
+
+    private void receiveCoordinates(Point2D.Double[] points, double point_height){
+	received.set(WHServer.LLH,true);
+	//convert to proper wherehoo ranges
+	for (int i=0;i<points.length;i++)
+	    WHGeo.toWHFormat(points[i]);
+	coordinates = points;
+	height = point_height;
+	errors.set(WHServer.LLH,(points.length == 0));
+	if (very_verbose) {
+	    System.out.println("COORDINATES: "+points.length+" points");
+	    System.out.println("HEIGHT: "+height);
+	}
+    }
+
+    private void receiveTime(int command_index, int[] offsets){
+	received.set(command_index,true);
+	try {
+	    if (command_index == WHServer.BEG)
+		time_interval.setBegin(offsets);
+	    else
+		time_interval.setEnd(offsets);
+	    errors.set(command_index,false);
+	} catch (WHTimeException e){
+	    errors.set(command_index,true);
+	}
+    }
+
+    private void receiveHeading(double _heading){
+	received.set(WHServer.HDG,true);
+	heading = ((_heading%360)+360)%360;
+	errors.set(WHServer.HDG,Double.isNaN(heading));
+    }
+
+    private void receiveLength(double _length){
+	received.set(WHServer.LEN,true);
+	length = _length;
+	errors.set(WHServer.LEN,!(length>=1));
+    }
+
+    private void receiveLimit(long _limit){
+	received.set(WHServer.LIM,true);
+	limit = (int) Math.min(_limit,Integer.MAX_VALUE);
+	errors.set(WHServer.LIM,(limit<0));
+    }
+
+    private void receiveProjection(double _heading, double range){
+	received.set(WHServer.PJT,true);
+	//normalize the project angle
+	project_heading = ((_heading%360)+360)%360;
+	project_range = range;
+	errors.set(WHServer.PJT,!(project_range>=0) || Double.isNaN(project_heading));
+    }
+
+    private void receiveRadius(double _radius){
+	received.set(WHServer.RAD,true);
+	radius = _radius;
+	if (!(radius>=1))
+	    errors.set(WHServer.RAD,true);
+	else {
+	    received.set(WHServer.WID,true);
+	    width = radius;
+	    received.set(WHServer.LEN,true);
+	    length = radius;
+	}
+    }
+
+    private void receiveWidth(double _width){
+	received.set(WHServer.WID,true);
+	width = _width;
+	//set the error field true if width is less than 1 
+	errors.set(WHServer.WID,!(width>=1));
+    }
+
+    //reads datalen bytes of data and the signature that follows them
+    private void receiveData(int datalen){
+	received.set(WHServer.DAT ,true);
+	if (! WHDataCollector.isDataLength(datalen)){
+	    errors.set(WHServer.DAT,true);
+	    return;
+	}
+	try{
+	    data = new byte[datalen];
+	    dataSHA = new byte[WHServer.SIGNATUREBYTECOUNT]; 
+	    //read the data; a client that stalls for RXTIMEOUT msec runs into the socket timeout
+	    in.readFully(data);
+	    if (very_verbose) 
+		System.out.println("read data");
+	    //read the signature	
+	    in.readFully(dataSHA);
+	    if (very_verbose) 
+		System.out.println("read signature");
+	    replies.ack();
+	    if (very_verbose) 
+		System.out.println("sent ack");
+	    errors.set(WHServer.DAT,false);
+	} catch (Exception e){
+	    errors.set(WHServer.DAT,true);
+	}
+	if (very_verbose) {
+	    System.out.println("Data :"+data.length);
+	    System.out.println("SHA :"+dataSHA.length);
+	}
+    }
     /** Returns the <tt>String</tt> representation of this <tt>WHDataCollector.</tt> 
      * @return <tt>String</tt> object representing this <tt>WHDataCollector</tt>. It lists the fields that correspond to
      * parameters of defined Wherehoo commands.
@@ -735,7 +1070,11 @@ public class WHDataCollector{
 	s+=",  SHAPE: "+shape;
 	s+=",  META: "+meta;
 	
-	s+=",  COORDINATES: "+coordinates.toString();
+	s+=",  TAG: "+tag;
+	s+=",  ORDER: "+order;
+	s+=",  COORDINATES:";
+	for (int i=0;i<coordinates.length;i++)
+	    s+=" "+coordinates[i].x+" "+coordinates[i].y;
 	s+=",  HEIGHT: "+height;
 	s+=",  WIDTH: "+width; //width of the search field.
 	s+=",  LENGTH: "+length; //length of the search field.
@@ -744,6 +1083,9 @@ public class WHDataCollector{
 	s+=",  PROJECT: "+project_heading;
 	s+=",  PROJECT RANGE: "+project_range;
 	s+=",  LIMIT: "+limit;
+	s+=",  DATA: "+((data == null) ? "null" : data.length+" bytes");
+	s+=",  RECEIVED: "+received.toString();
+	s+=",  ERRORS: "+errors.toString();
 	return s;
     }
 
@@ -8,60 +8,56 @@ import java.security.*;
  * <tt>WHDatabaseCheck</tt> supplies methods to verify incoming client data against data already stored in Wherehoo.
  * Specifically, it provides methods for testing usernames, protocols, uids of data,  
  * and a signatures of data to be inserted.
+ * One <tt>WHDatabaseCheck</tt> is shared by all client threads.  It holds no state of its own besides the 
+ * connection pool and the account cache, so the checks run concurrently.  Users, secrets and protocols 
+ * are answered by the account cache; only uids go to the database, each on its own pooled connection.
  */
 
-public abstract class WHDatabaseCheck {
+public class WHDatabaseCheck {
 
-    private static synchronized boolean checkTable(String tablename, String fieldname, String fieldvalue) throws SQLException{
-	String tn="";
-	String fn="";
+    private WHConnectionPool connection_pool;
+    private WHAccountCache account_cache;
+
+    /**
+     * Constructs a new <tt>WHDatabaseCheck</tt>.
+     * @param pool the pool the checks take their database connections from
+     * @param cache the in-memory copy of the users and protocol tables
+     */
+    protected WHDatabaseCheck(WHConnectionPool pool, WHAccountCache cache){
+	connection_pool = pool;
+	account_cache = cache;
+    }
+
+    private boolean checkTable(String tablename, String fieldname, String fieldvalue) throws SQLException{
 	ResultSet rs=null;
 	boolean result=false;
 	String queryString;
        
-	Connection C = DriverManager.getConnection("jdbc:"+WHServer.DB,"postgres","");
-	Statement stmt = C.createStatement();
-	// construct and run a SELECT query
-	queryString  = "select * from "+tablename+" ";
-	queryString += "where "+fieldname+"='";
-	queryString += fieldvalue;
-	queryString += "' ";
-	rs = stmt.executeQuery(queryString);
-	result = rs.next();
-	C.close();
+	Connection C = connection_pool.getConnection();
+	try {
+	    // construct and run a SELECT query
+	    queryString  = "select 1 from "+tablename+" ";
+	    queryString += "where "+fieldname+"=? ";
+	    PreparedStatement stmt = C.prepareStatement(queryString);
+	    stmt.setString(1,fieldvalue);
+	    rs = stmt.executeQuery();
+	    result = rs.next();
+	    stmt.close();
+	} finally {
+	    connection_pool.releaseConnection(C);
+	}
 	return (result);
     }
     
     
-    private static synchronized String fetchFromTable(String tablename, String keyfieldname, String keyfieldvalue, String targetfieldname) throws SQLException{
-	ResultSet rs=null;
-	String result="";
-	String queryString;
-	Connection C;
-	
-	C = DriverManager.getConnection("jdbc:"+WHServer.DB,"postgres","");
-	Statement stmt = C.createStatement();
-	queryString  = "select "+targetfieldname+" from "+tablename+" ";
-	queryString += "where "+keyfieldname+"='";
-	queryString += keyfieldvalue;
-	queryString += "' ";
-	rs = stmt.executeQuery(queryString);
-	//System.out.println("fetchFromTable query string: "+queryString); 
-	if (rs.next()) { 
-	    result = rs.getString(targetfieldname); 
-	}
-	C.close();
-	return (result) ;
-    }
-
     /**
      * Verifies that user with <tt>idt</tt> username is registered.
      * @param idt username to be checked
      * @return boolean value indicating whether <tt>idt</tt> is a registered username.
      */
-    protected static synchronized boolean checkUser(String idt){
+    protected boolean checkUser(String idt){
 	try {
-	    return checkTable("users","userid",idt);
+	    return (account_cache.getSecret(idt) != null);
 	}
 	catch (SQLException sqle){
 	    return false;
@@ -73,9 +69,9 @@ public abstract class WHDatabaseCheck {
      * @param pro protocol name to be verified
      * @return boolean value indicating whether <tt>pro</tt> is a supported protocol.
      */
-    protected static synchronized boolean checkProtocol(String pro){
+    protected boolean checkProtocol(String pro){
 	try{
-	    return checkTable("protocol","protocol",pro);
+	    return account_cache.hasProtocol(pro);
 	}
 	catch (SQLException sqle){
 	    return false;
@@ -89,10 +85,12 @@ public abstract class WHDatabaseCheck {
      * @param idt client's username
      * @return boolean value indicating whether <tt>datSHA</tt> is a valid signature
      */
-    protected static synchronized boolean checkSignature(byte[] data, byte[] datSHA, String idt){  
+    protected boolean checkSignature(byte[] data, byte[] datSHA, String idt){  
 	try{
 	    byte[] databaseSHA;
-	    databaseSHA = WHDatabaseCheck.SHAhash(data,fetchFromTable("users","userid",idt,"secret"));
+	    String secret = account_cache.getSecret(idt);
+	    if (secret == null) return false;
+	    databaseSHA = WHDatabaseCheck.SHAhash(data,secret);
 	    return (java.util.Arrays.equals(databaseSHA,datSHA));
 	}
 	catch (SQLException sqle){
@@ -105,7 +103,7 @@ public abstract class WHDatabaseCheck {
      * @param uid unique ID of some Wherehoo entry.
      * @return boolean value indicating whether there exists Wherehoo entry that has <tt>uid</tt> parameter value.
      */
-    protected static synchronized boolean checkUID(String uid){
+    protected boolean checkUID(String uid){
 	try {
 	    return checkTable("wherehoo_polygons","uniqueidsha",uid);
 	}
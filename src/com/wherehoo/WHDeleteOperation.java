@@ -25,20 +25,20 @@ public class WHDeleteOperation extends WHOperation {
     /**
      * Attempts to remove the wherehoo entry that has <tt>uid</tt> with which this <tt>WHDeleteOperation</tt> 
      * was initialized. If the attempt to remove was successful, <tt>executeAndOutputToClient</tt> sends a confirmation 
-     * to the client via <tt>client_socket</tt>. In case failure, NAK is sent. 
-     * @param client_socket the socket of connecting client.
+     * to the client via <tt>session</tt>. In case failure, NAK is sent. 
+     * @param session the session of the connecting client.
      */
-    public synchronized void executeAndOutputToClient(Socket client_socket) throws IOException {
+    protected void executeOperation(WHSession session) throws IOException {
 	
-	Connection C;
+	Connection C=null;
 	Statement s;
-	PrintWriter out;
+	WHProtocol out;
 	String queryString;
-	String result="NAK";
+	boolean result=false;
 
-	out = new PrintWriter(client_socket.getOutputStream(),true);
+	out = session.getProtocol();
 	try {
-	    C = DriverManager.getConnection("jdbc:"+WHServer.DB,"postgres","");
+	    C = this.getConnectionPool().getConnection();
 	    C.setAutoCommit(false);
 	    
 	    // delete an existing record given a valid uniqueidSHA and companion idt (its creator)
@@ -46,17 +46,23 @@ public class WHDeleteOperation extends WHOperation {
 	    queryString  = "delete from wherehoo_polygons where ";
 	    queryString += "uniqueidSHA ='"+uid+"'";
 	    // System.out.println(queryString);
-	    if (s.executeUpdate(queryString) == 1)
-		result="ACK";
+	    int deleted = s.executeUpdate(queryString);
+	    if (deleted == 1)
+		result=true;
 	    C.commit();
+	    s.close();
+	    if (deleted > 0 && WHServer.getSpatialIndex() != null)
+		WHServer.getSpatialIndex().remove(uid);
 	}
 	catch (SQLException sqle) {
 	    System.out.println("SQLException: " + sqle.getMessage());
 	    System.out.println("SQLState:     " + sqle.getSQLState());
 	    System.out.println("VendorError:  " + sqle.getErrorCode());
 	}
-	out.println(result);
-	out.close();
+	finally {
+	    this.getConnectionPool().releaseConnection(C);
+	}
+	out.deleted(result);
     }
     /**
      * Returns the <tt>String</tt> representation of <tt>WHDeleteOperation</tt>
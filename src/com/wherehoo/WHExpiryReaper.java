@@ -0,0 +1,146 @@
+package com.wherehoo;
+
+import java.sql.*;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * <tt>WHExpiryReaper</tt> deletes the records whose <tt>end_time</tt> has passed from <tt>wherehoo_polygons</tt>.
+ * No search or count selects them, but they used to stay in the table forever.<br>
+ * A daemon thread started with <tt>start()</tt> wakes up every <tt>interval</tt> msec and deletes the expired
+ * records, oldest first, in batches of at most <tt>batch</tt>, with a pause of <tt>pause</tt> msec between two batches.
+ * A batch is put off while clients are waiting for a database connection, so the reaper never holds up a
+ * client.  The records deleted are also removed from the in-memory index of the live records.<br>
+ * The progress is printed after every round that deleted something, and is given by <tt>toString()</tt>:
+ * the number of rows reaped, how far the oldest expired record left is behind now, and how long the last
+ * batch took.
+ */
+class WHExpiryReaper {
+
+    private WHConnectionPool connection_pool;
+    private int batch;
+    private long interval;
+    private long pause;
+
+    private long reaped;
+    private long lag;
+    private long batch_millis;
+    private long batches;
+
+    private Thread reaper;
+
+    /**
+     * Constructs a new <tt>WHExpiryReaper</tt>.
+     * @param pool the pool the reaper takes its database connection from
+     * @param _batch max number of records deleted by one statement
+     * @param _interval msec between two rounds
+     * @param _pause msec between two batches of a round
+     */
+    WHExpiryReaper(WHConnectionPool pool, int _batch, long _interval, long _pause){
+	connection_pool = pool;
+	batch = _batch;
+	interval = _interval;
+	pause = _pause;
+    }
+
+    /**
+     * Starts the daemon thread that reaps the expired records.
+     */
+    void start(){
+	reaper = new Thread("WHExpiryReaper"){
+		public void run(){
+		    reap();
+		}
+	    };
+	reaper.setDaemon(true);
+	reaper.start();
+    }
+
+    /**
+     * Deletes one batch of expired records.
+     * @return the number of rows deleted.
+     */
+    int reapBatch() throws SQLException {
+	long started = System.currentTimeMillis();
+	HashSet<String> uids = new HashSet<String>(batch*2);
+	long oldest = 0;
+	int deleted = 0;
+	Connection C = connection_pool.getConnection();
+	try {
+	    C.setAutoCommit(false);
+	    //the oldest first, through the end_time index; both rows of a record crossing the 0 meridian go together
+	    PreparedStatement select = connection_pool.prepareStatement(C,"select uniqueidsha,end_time from "+WHSchema.TABLE
+									+" where end_time < now() order by end_time limit ?");
+	    select.setInt(1,batch);
+	    ResultSet rs = select.executeQuery();
+	    StringBuffer list = new StringBuffer(batch*41);
+	    while (rs.next()){
+		if (oldest == 0)
+		    oldest = rs.getTimestamp("end_time").getTime();
+		String uid = rs.getString("uniqueidsha");
+		if (! uids.add(uid))
+		    continue;
+		if (list.length() > 0)
+		    list.append(',');
+		list.append(uid);
+	    }
+	    rs.close();
+	    if (! uids.isEmpty()){
+		PreparedStatement delete = connection_pool.prepareStatement(C,"delete from "+WHSchema.TABLE
+									    +" where uniqueidsha = any(string_to_array(?,','))");
+		delete.setString(1,list.toString());
+		deleted = delete.executeUpdate();
+	    }
+	    C.commit();
+	} finally {
+	    connection_pool.releaseConnection(C);
+	}
+	WHSpatialIndex index = WHServer.getSpatialIndex();
+	if (index != null){
+	    for (Iterator<String> it=uids.iterator();it.hasNext();)
+		index.remove(it.next());
+	}
+	synchronized (this){
+	    reaped += deleted;
+	    lag = (oldest == 0) ? 0 : Math.max(0, started - oldest);
+	    batch_millis = System.currentTimeMillis() - started;
+	    batches++;
+	}
+	return deleted;
+    }
+
+    public synchronized String toString(){
+	return "expiry reaper: "+reaped+" rows reaped, "+lag+" msec behind, last batch "+batch_millis+" msec, "
+	    +batches+" batches";
+    }
+
+    //
+    //PRIVATE METHODS
+    //
+
+    private void reap(){
+	while (true){
+	    try {
+		Thread.sleep(interval);
+		long round = 0;
+		int deleted;
+		do {
+		    //leave the connections to the clients while any are waiting for one
+		    while (connection_pool.getWaiterCount() > 0)
+			Thread.sleep(pause);
+		    deleted = this.reapBatch();
+		    round += deleted;
+		    Thread.sleep(pause);
+		} while (deleted > 0);
+		if (round > 0)
+		    System.out.println("Reaped "+round+" expired rows, "+this.toString());
+	    }
+	    catch (InterruptedException ie) {
+		return;
+	    }
+	    catch (SQLException sqle) {
+		System.out.println("Reaping expired records failed: "+sqle.getMessage());
+	    }
+	}
+    }
+}
@@ -8,7 +8,8 @@ public class WHFields{
 				    WHServer.IDT,WHServer.PRO,WHServer.UID,WHServer.MIM,
 				    WHServer.LLH,WHServer.PJT,WHServer.LIM,WHServer.BEG,
 				    WHServer.END,WHServer.MET,WHServer.DBG,WHServer.NOP,
-				    WHServer.BYE,WHServer.DOT};
+				    WHServer.BYE,WHServer.DOT,WHServer.KAL,WHServer.TAG,
+				    WHServer.ORD};
 
     protected  WHFields (){
 	values = new boolean[command_fields.length];
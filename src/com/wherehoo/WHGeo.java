@@ -2,7 +2,6 @@ package com.wherehoo;
 
 import java.awt.geom.Point2D;
 import java.awt.geom.Line2D;
-import java.math.BigDecimal;
 
 
 /**
@@ -29,177 +28,7 @@ public abstract class WHGeo{
      *If <tt>origin</tt> is a pole then return -1.
      */	
     public static double heading(Point2D.Double origin, Point2D.Double end){
-
-	double lat1;
-	double lat2;
-	double lon1;
-	double lon2;
-
-	double dlat;
-	double dlon;
-
-	double rlat1;
-	double rlat2;
-	double rlon1;
-	double rlon2;
-	
-	double drlat;
-	double drlon;
-	//longitudinal difference translated to angular difference along great circle
-	double drlon_gc;
-	
-	double pre_theta1=0;
-	double pre_theta2=0;
-
-	boolean zero_lon_crossing;
-
-	//these are helper variables that will help with quadrant calculations, will take -1,0,1 values;
-	int w_e;
-	int s_n;
-	
-	// measures come in as degrees, the trig functions want radians
-	lat1=origin.getX();
-	lat2=end.getX();
-	lon1=origin.getY();
-	lon2=end.getY();
-
-	rlat1=Math.toRadians(lat1); 
-	rlat2=Math.toRadians(lat2);
-	rlon1=Math.toRadians(lon1);
-	rlon2=Math.toRadians(lon2);
-
-	//check if we have pole origin, if so, return -1
-	
-	if (lat1==90 || rlat1==-90) return -1;
-	
-	//zero crossings?
- 	
-        zero_lon_crossing=(Math.abs(lon1-lon2)>(360-Math.abs(lon1-lon2)));
-	
-	//calculate differences
-	dlat=Math.min(Math.abs(lat2-lat1),360-Math.abs(lat2-lat1));
-	dlon=Math.min(Math.abs(lon2-lon1),360-Math.abs(lon2-lon1));
-	//System.out.println("dlat dlon :" + dlat +" "+dlon);
-
-	drlat = Math.toRadians(dlat);
-	drlon = Math.toRadians(dlon);
-	//check if origin==end if so, return 0
-	if (drlat==0 && drlon==0)
-	    return 0;
-	
-	//System.out.println("Zero lon crossing "+zero_lon_crossing); 
-	
-	//calculate helper vars for determining quadrant (mathematical, has nothing to do with Earth coordinates)
-
-	//s_n
-	if (rlat2>rlat1){
-	    s_n=1;
-	} else {
-	    if (rlat2==rlat1){
-		s_n=0;
-	    } else {
-		s_n=-1;
-	    }
-	}
-	//w_e
-	if (rlon2>rlon1){
-	    w_e=1;
-	} else {
-	    if (rlon2==rlon1){
-		w_e=0;
-	    } else {
-		w_e=-1;
-	    }
-	}
-	if (zero_lon_crossing) {
-	    w_e=w_e*-1;
-	}
-
-	try{
-	    /*
-	      double H=Math.asin(Math.sin(rlat1)*Math.sin(rlat2)+{Math.cos(rlat1)*Math.cos(rlat2)*Math.cos(drlon)});
-	      //System.out.println("H :"+H);
-	      double Z=Math.abs(Math.asin(Math.cos(rlat2)*Math.sin(drlon)/Math.cos(H)));
-	      //System.out.println("Z :"+Z);
-	      pre_theta1=Math.toDegrees(Z);
-	    */
-	    BigDecimal pre_h_1= (new BigDecimal(Math.sin(rlat1))).multiply(new BigDecimal(Math.sin(rlat2)));
-	    BigDecimal pre_h_2= (new BigDecimal(Math.cos(rlat1))).multiply(new BigDecimal(Math.cos(rlat2))).multiply(new BigDecimal(Math.cos(drlon)));
-	    double H=Math.asin((pre_h_1.add(pre_h_2)).doubleValue());
-	    //System.out.println("pre_h_2 :"+pre_h_2.doubleValue());
-	    double pre_z=((new BigDecimal(Math.cos(rlat2))).multiply(new BigDecimal(Math.sin(drlon))).divide( new BigDecimal(Math.cos(H)),50,BigDecimal.ROUND_HALF_UP)).doubleValue();
-	    //System.out.println("pre_z: "+pre_z);
-	    double Z=Math.abs(Math.asin(pre_z));
-	    //System.out.println("Z :"+Z);
-	    pre_theta1=Math.toDegrees(Z);
-	} catch (Exception e){
-	    System.out.println(e);
-	    pre_theta1=90;
-	}
-	if (!(pre_theta1>=0 && pre_theta1<=360)){
-	    pre_theta1=90;
-	}
-	//System.out.println("pre_theta1  :"+pre_theta1);    
-
-	//System.out.println("Pre_theta1: "+pre_theta1);
-	/*adjust according to mathematical quadrant of the end point
-	 *cartesian ccordinates with "origin" point at the origin
-	 *and y axis is parallel to a meridian passing through "origin" point
-	 */
-	 //0 degrees
-	if(s_n==1 && w_e==0) {
-	    pre_theta2=pre_theta1;
-	    //System.out.println("zero degrees");
-	}
-	//first quadrant
-	if(s_n==1 && w_e==1){ 
-	    //System.out.println("first quadrant");
-	    pre_theta2=pre_theta1;
-	}
-	//90 degrees
-	if(s_n==0 && w_e==1) {
-	    pre_theta2=pre_theta1;
-	    //System.out.println("90 degrees");
-	}
-	//second quadrant
-	if(s_n==-1 && w_e==1) {
-	    //System.out.println("second quadrant");
-	    pre_theta2=180-pre_theta1;
-	}
-	//180 degrees
-	if(s_n==-1 && w_e==0) {
-	    //System.out.println("180 degrees");
-	    pre_theta2=180;
-	}
-	//third quadrant
-	if(s_n==-1 && w_e==-1) {
-	    //System.out.println("third quadrant");
-	    pre_theta2=180+pre_theta1;
-	}
-	//270 degrees
-	if(s_n==0 && w_e==-1) {
-	    //System.out.println("270 degrees");
-	    pre_theta2=180+pre_theta1;
-	}
-	//fourth quadrant
-	if(s_n==1 && w_e==-1) {
-	    //System.out.println("fourth quadrant");
-	    pre_theta2=360-pre_theta1;
-	}
-	/**
-	 *calculate the precision of the result
-	 *the precision is such that for a given set of coordinates
-	 *if a client travels towards end point with resulting heading 
-	 *returned with given precision, the client will end up no more than 1m off the end point
-	 *it should really be calculated by asin(1/distance(origin,end))and finding order of first non zero digit
-	 *but I found out that (log base 10 of distance)-1 is very close approximation
-	 */
-	double dist=Math.max(WHGeo.distance(origin,end),1);
-	int precision = Math.max(((int) Math.rint(Math.log(dist)/Math.log(10))),0);
-	//System.out.println("Precision: "+precision);
-	
-	//round off the result
-	return ((new BigDecimal(pre_theta2)).divide(new BigDecimal(1),precision,BigDecimal.ROUND_HALF_UP)).doubleValue();
+	return WHGeo.heading(origin.getX(),origin.getY(),end.getX(),end.getY());
     }
 
     /**
@@ -294,48 +123,25 @@ public abstract class WHGeo{
 	double drlon;
 	double rpjheading;
 	
-	BigDecimal rangeBD;
-	BigDecimal rlatBD;
-	BigDecimal rlonBD;
-	BigDecimal dxBD;
-	BigDecimal dyBD;
-	BigDecimal drlatBD;
-	BigDecimal drlonBD;
-	BigDecimal rBD;
-	BigDecimal bd_of_2=new BigDecimal(2);
-	
 	// need radians
 	rlat = Math.toRadians(location.getX());
 	rlon = Math.toRadians(location.getY());
 	rpjheading = Math.toRadians(angle);
-	//create corresponding BDs
-	rlatBD=new BigDecimal(rlat);
-	rlonBD=new BigDecimal(rlon);
-	rangeBD=new BigDecimal(range);
 	// calculate r - the earth's radius at this latitude
 	// r = (GEO_A * Math.sqrt(1 - GEO_E2)) / (1 - (GEO_E2 * Math.pow(Math.sin(Math.toRadians(this.lat)),2)));
 	// solved first part of this (see class static vars), to save clocks
-	rBD =new BigDecimal(Ra / (1 - (GEO_E2 * Math.pow(Math.sin(rlat),2))));
-	//System.out.println("Earth radius   : "+(int)r);
+	r = Ra / (1 - (GEO_E2 * Math.pow(Math.sin(rlat),2)));
 	// distance in meters
-    
-	dxBD = rangeBD.multiply(new BigDecimal(Math.cos(rpjheading)));
-	dyBD = rangeBD.multiply(new BigDecimal(Math.sin(rpjheading)));
-	//System.out.println("dx,dy          : "+dxBD.doubleValue()+","+dyBD.doubleValue());
+	dx = range * Math.cos(rpjheading);
+	dy = range * Math.sin(rpjheading);
 	// translate into distance in radians around the spherical earth
-	drlatBD = dxBD.divide(rBD,20,BigDecimal.ROUND_HALF_EVEN);
-	
+	drlat = dx / r;
+	double rlat1 = rlat + drlat;
+	drlon = 2 * Math.asin(Math.sin(dy / (2*r)) / Math.cos(rlat1));
+	double rlon1 = rlon + drlon;
 	// set location's coordinates.
-	double rlat1 = rlatBD.add(drlatBD).doubleValue();
-        //dlon = 2 * Math.sin(Math.sin(dx / (2*r))/Math.cos(rlat));
-	drlonBD = bd_of_2.multiply(new BigDecimal(Math.asin(((new BigDecimal(Math.sin((dyBD.divide(bd_of_2.multiply(rBD),20,BigDecimal.ROUND_HALF_EVEN).doubleValue())))).divide((new BigDecimal(Math.cos(rlat1))),20,BigDecimal.ROUND_HALF_EVEN)).doubleValue())));
-	double rlon1= rlonBD.add(drlonBD).doubleValue();
-	//System.out.println("drlat,drlon    : "+drlatBD.doubleValue()+","+drlonBD.doubleValue());
-      
 	location.setLocation(Math.toDegrees(rlat1),Math.toDegrees(rlon1));
-	//System.out.println("Location set at: "+location.getX()+","+location.getY());
 	WHGeo.toWHFormat(location);
-	//System.out.println("Loc after conv : "+location.getX()+","+location.getY());
     }
 
     /**
@@ -363,26 +169,11 @@ public abstract class WHGeo{
 	double rlon1;
 	double rlat2;
 	double rlon2;
-	
-	BigDecimal drlonBD;
-	BigDecimal drlatBD;
-	BigDecimal drlonBD_half;
-	BigDecimal drlatBD_half;
-
-	BigDecimal rlat1BD;
-	BigDecimal rlon1BD;
-	BigDecimal rlat2BD;
-	BigDecimal rlon2BD;
-  
-	BigDecimal bd_of_2 = new BigDecimal(2);
-	BigDecimal bd_of_2PI = bd_of_2.multiply(new BigDecimal(Math.PI));
-	
-	BigDecimal rBD;
-	BigDecimal aBD;
+	double sin_half_lat;
+	double sin_half_lon;
+	double r;
 	double a;
 	double c;
-	double d;
-	
 	
 	// measures come in as degrees, the trig functions want radians
 	rlat1=Math.toRadians(origin.getX()); 
@@ -390,32 +181,31 @@ public abstract class WHGeo{
 	rlon1=Math.toRadians(origin.getY());
 	rlon2=Math.toRadians(end.getY());
 
-	rlat1BD= new BigDecimal(rlat1);
-	rlat2BD= new BigDecimal(rlat2);
-	rlon1BD= new BigDecimal(rlon1);
-	rlon2BD= new BigDecimal(rlon2);
 	/* calculate r - the earth's radius at this latitude
 	 * r = (GEO_A * Math.sqrt(1 - GEO_E2)) / (1 - (GEO_E2 * Math.pow(Math.sin(Math.toRadians(this.lat)),2)));
 	 * solved first part of this (see class static vars), to save clocks
 	 */
-	rBD = new BigDecimal(Ra / (1 - (GEO_E2 * Math.pow(Math.sin(rlat1),2))));
+	r = Ra / (1 - (GEO_E2 * Math.pow(Math.sin(rlat1),2)));
 	
-	drlatBD=((rlat2BD.subtract(rlat1BD)).abs()).min(bd_of_2PI.subtract(rlat2BD.subtract(rlat1BD).abs()));
-	drlonBD=((rlon2BD.subtract(rlon1BD)).abs()).min(bd_of_2PI.subtract(rlon2BD.subtract(rlon1BD).abs()));
-	drlatBD_half=drlatBD.divide(bd_of_2,20,BigDecimal.ROUND_HALF_EVEN);
-	drlonBD_half=drlonBD.divide(bd_of_2,20,BigDecimal.ROUND_HALF_EVEN);
-       
-	//////System.out.println("rlat1 rlon1 rlat2 rlon2: "+rlat1+" "+rlon1+" "+rlat2+" "+rlon2);
-	//////System.out.println("drlat, drlon : "+drlat+" "+drlon);
+	drlat=Math.min(Math.abs(rlat2-rlat1),2*Math.PI-Math.abs(rlat2-rlat1));
+	drlon=Math.min(Math.abs(rlon2-rlon1),2*Math.PI-Math.abs(rlon2-rlon1));
+	sin_half_lat=Math.sin(drlat/2);
+	sin_half_lon=Math.sin(drlon/2);
 	
-	//a = Math.pow(Math.sin(drlat/2),2) + Math.cos(rlat1) * Math.cos(rlat2) * Math.pow(Math.sin(drlon/2),2); 
-	aBD = (new BigDecimal(Math.sin(drlatBD_half.doubleValue()))).multiply(new BigDecimal(Math.sin(drlatBD_half.doubleValue()))).add((new BigDecimal(Math.cos(rlat1))).multiply(new BigDecimal(Math.cos(rlat2))).multiply(new BigDecimal(Math.sin(drlonBD_half.doubleValue()))).multiply(new BigDecimal(Math.sin(drlonBD_half.doubleValue())))); 
-	//go back to a, since BigDecimal does not support square roots...
-	a = aBD.doubleValue();
+	a = sin_half_lat*sin_half_lat + Math.cos(rlat1) * Math.cos(rlat2) * sin_half_lon*sin_half_lon; 
 	c = 2 * Math.asin(Math.min(1,Math.sqrt(a))); 
-	d = rBD.doubleValue() * c;
-
-	return d;
+	return r * c;
+    }
+    /**
+     * Calculates the distance from <tt>origin</tt> to a parallel <tt>dlat</tt> degrees of latitude away, along
+     * its meridian.  No point on that parallel or beyond it is nearer to <tt>origin</tt>, as measured by <tt>distance()</tt>.
+     *@param origin start point
+     *@param dlat difference of latitude in degrees
+     *@return Geographical distance from <tt>origin</tt> to the parallel, given with double precision
+     */
+    public static double latitudeDistance(Point2D.Double origin, double dlat){
+	double rlat1 = Math.toRadians(origin.getX());
+	return (Ra / (1 - (GEO_E2 * Math.pow(Math.sin(rlat1),2)))) * Math.toRadians(Math.abs(dlat));
     }
     /**
      * Calculates the distance between an <tt>origin</tt> point and a line segment described by <tt>end_line</tt> 
@@ -448,10 +238,10 @@ public abstract class WHGeo{
 	//System.out.println("hp2p1: "+headingP2P1);
 	headingP2O = WHGeo.heading(p2,origin);
 	//System.out.println("hp2o: "+headingP2O);
-	angleOP1P2 = Math.abs((new BigDecimal(headingP1P2).subtract(new BigDecimal(headingP1O))).doubleValue());
+	angleOP1P2 = Math.abs(headingP1P2-headingP1O);
 	if (angleOP1P2>180)
 	    angleOP1P2 = 360-angleOP1P2;
-	angleOP2P1 = Math.abs(new BigDecimal(headingP2P1-headingP2O).doubleValue());
+	angleOP2P1 = Math.abs(headingP2P1-headingP2O);
 	if (angleOP2P1>180)
 	    angleOP2P1 = 360-angleOP2P1;
 	//System.out.println("angles: "+angleOP1P2+","+angleOP2P1);
@@ -467,9 +257,7 @@ public abstract class WHGeo{
 	    //return the distance to P1P2 line
 	    //System.out.println("distance: "+WHGeo.distance(origin,p1));
 	    //System.out.println("sin : "+Math.sin(Math.toRadians(angleOP1P2)));
-	    BigDecimal temp_dist = new BigDecimal(WHGeo.distance(origin,p1));
-	    BigDecimal sin = new BigDecimal(Math.sin(Math.toRadians(angleOP1P2)));
-	    return ((temp_dist.multiply(sin)).doubleValue());
+	    return WHGeo.distance(origin,p1) * Math.sin(Math.toRadians(angleOP1P2));
 	}
     }
     /**
@@ -481,6 +269,64 @@ public abstract class WHGeo{
     public static double distance(Point2D.Double origin, WHPolygon poly_end){
 	return poly_end.distance(origin);
     }
+    /**
+     * Calculates, for many points at once, their distance from <tt>origin</tt> and the heading from each of them back
+     * to <tt>origin</tt>.  The radians, sine, cosine and Earth radius of <tt>origin</tt> are found once for all of
+     * them, and the sine and cosine of each point once for both results; the points may be the vertices of many
+     * areas, packed one after the other.  The results are those of <tt>distance(origin, point)</tt> and
+     * <tt>heading(point, origin)</tt>.
+     *@param origin the point the distances are measured from, and the headings point to
+     *@param lats latitudes of the points
+     *@param lons longitudes of the points
+     *@param count number of points
+     *@param distances the array the distances are written to, at indexes 0 to <tt>count</tt>-1
+     *@param headings the array the headings are written to, at indexes 0 to <tt>count</tt>-1
+     */
+    public static void distancesAndHeadings(Point2D.Double origin, double[] lats, double[] lons, int count,
+					    double[] distances, double[] headings){
+	double lat0 = origin.getX();
+	double lon0 = origin.getY();
+	double rlat0 = Math.toRadians(lat0);
+	double rlon0 = Math.toRadians(lon0);
+	double sin0 = Math.sin(rlat0);
+	double cos0 = Math.cos(rlat0);
+	double r = Ra / (1 - (GEO_E2 * sin0*sin0));
+	for (int i=0;i<count;i++){
+	    double rlat = Math.toRadians(lats[i]);
+	    double sin = Math.sin(rlat);
+	    double cos = Math.cos(rlat);
+	    double drlat = Math.abs(rlat-rlat0);
+	    double drlon = Math.abs(Math.toRadians(lons[i])-rlon0);
+	    double sin_half_lat = Math.sin(Math.min(drlat,2*Math.PI-drlat)/2);
+	    double sin_half_lon = Math.sin(Math.min(drlon,2*Math.PI-drlon)/2);
+	    double a = sin_half_lat*sin_half_lat + cos0*cos*sin_half_lon*sin_half_lon;
+	    distances[i] = r * 2 * Math.asin(Math.min(1,Math.sqrt(a)));
+	    headings[i] = WHGeo.heading(lats[i],lons[i],sin,cos,lat0,lon0,sin0,cos0);
+	}
+    }
+    /**
+     * Calculates the headings along the sides of a closed ring of points, such as the vertices of a polygon,
+     * in both directions.
+     *@param lats latitudes of the points
+     *@param lons longitudes of the points
+     *@param count number of points
+     *@param forth the array the headings from point i to point i+1 are written to; the last one is to point 0
+     *@param back the array the headings from point i+1 to point i are written to
+     */
+    public static void sideHeadings(double[] lats, double[] lons, int count, double[] forth, double[] back){
+	double[] sin = new double[count];
+	double[] cos = new double[count];
+	for (int i=0;i<count;i++){
+	    double rlat = Math.toRadians(lats[i]);
+	    sin[i] = Math.sin(rlat);
+	    cos[i] = Math.cos(rlat);
+	}
+	for (int i=0;i<count;i++){
+	    int j = (i+1)%count;
+	    forth[i] = WHGeo.heading(lats[i],lons[i],sin[i],cos[i],lats[j],lons[j],sin[j],cos[j]);
+	    back[i] = WHGeo.heading(lats[j],lons[j],sin[j],cos[j],lats[i],lons[i],sin[i],cos[i]);
+	}
+    }
     /**
      * Finds a quadrant of a given <tt>angle</tt>.
      *@param angle  an angle, ranging from 0 to 360.
@@ -509,37 +355,125 @@ public abstract class WHGeo{
      */
 
     public static void toWHFormat(Point2D.Double point){
-	BigDecimal x= new BigDecimal(point.getX());
-	BigDecimal y= new BigDecimal(point.getY());
-	BigDecimal _360 = new BigDecimal(360);
-	double lat,lon;
+	double x=point.getX();
+	double y=point.getY();
+	double lat;
+	//a coordinate that is not a number cannot be converted
+	if (Double.isNaN(x) || Double.isInfinite(x) || Double.isNaN(y) || Double.isInfinite(y))
+	    throw new NumberFormatException("coordinates "+x+","+y);
 	//if latitude has values outside (-90,90), convert
 	//convert to (0,360) range
-	BigDecimal adjustX=x.divide(_360,BigDecimal.ROUND_FLOOR);
-	adjustX=new BigDecimal(adjustX.intValue());
-      	x=x.subtract(adjustX.multiply(_360));
+	x=WHGeo.turnsOff(x);
 	//convert to (-90,90) range
-	lat=x.doubleValue();
+	lat=x;
 	if (lat<=180 && lat>90){
-	    //System.out.println("lat between 90 and 180");
-	    x=x.negate();
-	    x=x.add(new BigDecimal(180));
-	   
+	    x=180-x;
 	} else {
 	    if (!(lat<90)){
-		x=x.subtract(_360);
+		x=x-360;
 		if(lat>180 && lat<270){
-		    //System.out.println("lat between 180 and 270");
-		    x=x.negate();
-		    x=x.add(new BigDecimal(-180));
+		    x=-x-180;
 		}
 	    }   
 	}
 	//if longitude has values outside (0,360), convert
-	BigDecimal adjustY=y.divide(_360,BigDecimal.ROUND_FLOOR);
-	adjustY=new BigDecimal(adjustY.intValue());
-	y=y.subtract(adjustY.multiply(_360));
-	point.setLocation(x.doubleValue(),y.doubleValue());
+	y=WHGeo.turnsOff(y);
+	point.setLocation(x,y);
+    }
+
+    /*
+     * x less its whole turns of 360, as the conversion took them off with BigDecimal: the quotient by 360 was
+     * floored to as many decimal places as x has, then truncated.  So a negative x keeps its sign, unless it is
+     * a whole number, or has at most 3 binary places and lies just above a turn, as -359.5 does.
+     * The quirk is kept for compatibility only.  The LLH points of a client go through toWHFormat(), and the
+     * areas stored and searched for before must come out the same now.  A plain x%360 would move some of them.
+     * % is exact on doubles.
+     */
+    private static double turnsOff(double x){
+	double r=x%360;
+	if (r<0){
+	    int places=WHGeo.binaryPlaces(x);
+	    if (places==0 || (places<=3 && (r+360)*(1<<places) < 360/Math.pow(5,places)))
+		r+=360;
+	}
+	//no -0
+	return r+0.0;
+    }
+
+    //the number of binary digits after the point of x, which is the scale of new BigDecimal(x).  Only turnsOff()
+    //needs it, to floor where the BigDecimal conversion did
+    private static int binaryPlaces(double x){
+	if (x==Math.rint(x))
+	    return 0;
+	long bits=Double.doubleToLongBits(x);
+	int exponent=(int) ((bits>>52) & 0x7ff);
+	long mantissa=bits & 0xfffffffffffffL;
+	if (exponent==0)
+	    exponent=1;
+	else
+	    mantissa|=1L<<52;
+	return 1075-exponent-Long.numberOfTrailingZeros(mantissa);
+    }
+
+    //heading(origin, end), for a single point as well as for the batch methods
+    static double heading(double lat1, double lon1, double lat2, double lon2){
+	double rlat1=Math.toRadians(lat1);
+	double rlat2=Math.toRadians(lat2);
+	return WHGeo.heading(lat1,lon1,Math.sin(rlat1),Math.cos(rlat1),lat2,lon2,Math.sin(rlat2),Math.cos(rlat2));
+    }
+
+    //heading(origin, end); sin and cos are of the latitudes of the points, in radians
+    private static double heading(double lat1, double lon1, double sin1, double cos1,
+				  double lat2, double lon2, double sin2, double cos2){
+	//pole origin
+	if (lat1==90) return -1;
+	double dlat=Math.min(Math.abs(lat2-lat1),360-Math.abs(lat2-lat1));
+	double dlon=Math.min(Math.abs(lon2-lon1),360-Math.abs(lon2-lon1));
+	if (dlat==0 && dlon==0)
+	    return 0;
+	double drlon=Math.toRadians(dlon);
+	int s_n=(lat2>lat1) ? 1 : ((lat2==lat1) ? 0 : -1);
+	int w_e=(lon2>lon1) ? 1 : ((lon2==lon1) ? 0 : -1);
+	if (Math.abs(lon1-lon2)>(360-Math.abs(lon1-lon2)))
+	    w_e=-w_e;
+	//the haversine of the central angle c between the points; the cosine of H=asin(sin1*sin2+cos1*cos2*cos(drlon))
+	//is sin(c), found from it without the cancellation of that sum near 1 for points a few metres apart
+	double drlat=Math.toRadians(dlat);
+	double sin_half_lat=Math.sin(drlat/2);
+	double sin_half_lon=Math.sin(drlon/2);
+	double a=sin_half_lat*sin_half_lat + cos1*cos2*sin_half_lon*sin_half_lon;
+	double pre_theta1=Math.toDegrees(Math.abs(Math.asin(cos2*Math.sin(drlon)/(2*Math.sqrt(a*(1-a))))));
+	if (!(pre_theta1>=0 && pre_theta1<=360))
+	    pre_theta1=90;
+	/*adjust according to mathematical quadrant of the end point
+	 *cartesian ccordinates with "origin" point at the origin
+	 *and y axis is parallel to a meridian passing through "origin" point
+	 */
+	double pre_theta2=0;
+	if (s_n==1 && w_e>=0)
+	    pre_theta2=pre_theta1;
+	else if (s_n==0 && w_e==1)
+	    pre_theta2=pre_theta1;
+	else if (s_n==-1 && w_e==1)
+	    pre_theta2=180-pre_theta1;
+	else if (s_n==-1 && w_e==0)
+	    pre_theta2=180;
+	else if (w_e==-1 && s_n<=0)
+	    pre_theta2=180+pre_theta1;
+	else if (s_n==1 && w_e==-1)
+	    pre_theta2=360-pre_theta1;
+	/**
+	 *calculate the precision of the result
+	 *the precision is such that for a given set of coordinates
+	 *if a client travels towards end point with resulting heading 
+	 *returned with given precision, the client will end up no more than 1m off the end point
+	 *it should really be calculated by asin(1/distance(origin,end))and finding order of first non zero digit
+	 *but I found out that (log base 10 of distance)-1 is very close approximation
+	 */
+	double dist=Math.max((Ra / (1 - (GEO_E2 * sin1*sin1))) * 2 * Math.asin(Math.min(1,Math.sqrt(a))),1);
+	int precision = Math.max(((int) Math.rint(Math.log(dist)/Math.log(10))),0);
+	double scale = Math.pow(10,precision);
+	return Math.floor(pre_theta2*scale+0.5)/scale;
     }
 }
 	
@@ -0,0 +1,215 @@
+package com.wherehoo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <tt>WHGridIndex</tt> is a <tt>WHSpatialIndex</tt> that files the areas of the live records, by their bounding boxes, in
+ * the cells of a hierarchy of grids over the Wherehoo ranges.  The cells of level 0 are
+ * <tt>LEVEL_0_CELL</tt> degrees square, and each level halves the side of the cells of the level above,
+ * down to <tt>MAX_LEVEL</tt>.<br>
+ * A row is filed at the finest level whose cells are at least as large as its bounding box, so it is
+ * in at most 4 cells, whatever its size: a point or a small area sits in small cells, a large area in
+ * large ones.  A search looks up the cells overlapping its bounding box at each level that holds rows,
+ * so the cost of a search depends on the number of rows near the search area, not on the number of
+ * records.  Where the search area would cover more cells of a level than the level has in use, the
+ * cells in use are scanned instead.<br>
+ * Searches share a read lock, updates take the write lock.
+ */
+class WHGridIndex extends WHSpatialIndex {
+
+    /** side of the cells of level 0, in degrees */
+    static final double LEVEL_0_CELL = 90.0;
+    /** finest level, its cells are about 150 m square at the equator */
+    static final int MAX_LEVEL = 16;
+
+    //one map per level, cell key -> the entries filed in the cell
+    private ArrayList<HashMap<Long,ArrayList<Entry>>> levels;
+    //uniqueidsha -> the entries of the record
+    private HashMap<String,LinkedList<Entry>> records;
+    private int size;
+    private ReentrantReadWriteLock lock;
+
+    /**
+     * Constructs a new, empty <tt>WHGridIndex</tt>.
+     */
+    WHGridIndex(){
+	levels = new ArrayList<HashMap<Long,ArrayList<Entry>>>(MAX_LEVEL + 1);
+	for (int i=0;i<=MAX_LEVEL;i++)
+	    levels.add(new HashMap<Long,ArrayList<Entry>>());
+	records = new HashMap<String,LinkedList<Entry>>();
+	size = 0;
+	lock = new ReentrantReadWriteLock();
+    }
+
+    void insert(String uniqueidsha, WHPolygon area, long end_time){
+	Entry entry = new Entry(uniqueidsha, area, end_time);
+	lock.writeLock().lock();
+	try {
+	    LinkedList<Entry> entries = records.get(uniqueidsha);
+	    if (entries == null){
+		entries = new LinkedList<Entry>();
+		records.put(uniqueidsha, entries);
+	    }
+	    entries.add(entry);
+	    HashMap<Long,ArrayList<Entry>> cells = levels.get(entry.level);
+	    int[] range = WHGridIndex.cellRange(entry.level, entry.bounds);
+	    for (int row=range[0];row<=range[2];row++){
+		for (int col=range[1];col<=range[3];col++){
+		    Long key = WHGridIndex.cellKey(row, col);
+		    ArrayList<Entry> cell = cells.get(key);
+		    if (cell == null){
+			cell = new ArrayList<Entry>(4);
+			cells.put(key, cell);
+		    }
+		    cell.add(entry);
+		}
+	    }
+	    size++;
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    boolean remove(String uniqueidsha){
+	lock.writeLock().lock();
+	try {
+	    LinkedList<Entry> entries = records.remove(uniqueidsha);
+	    if (entries == null)
+		return false;
+	    while (! entries.isEmpty()){
+		Entry entry = entries.removeFirst();
+		HashMap<Long,ArrayList<Entry>> cells = levels.get(entry.level);
+		int[] range = WHGridIndex.cellRange(entry.level, entry.bounds);
+		for (int row=range[0];row<=range[2];row++){
+		    for (int col=range[1];col<=range[3];col++){
+			Long key = WHGridIndex.cellKey(row, col);
+			ArrayList<Entry> cell = cells.get(key);
+			cell.remove(entry);
+			if (cell.isEmpty())
+			    cells.remove(key);
+		    }
+		}
+		size--;
+	    }
+	    return true;
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    void collect(WHPolygon search, long now, Set<String> result){
+	double[] bounds = search.getBounds();
+	lock.readLock().lock();
+	try {
+	    for (int level=0;level<=MAX_LEVEL;level++){
+		HashMap<Long,ArrayList<Entry>> cells = levels.get(level);
+		if (cells.isEmpty())
+		    continue;
+		int[] range = WHGridIndex.cellRange(level, bounds);
+		long covered = (long) (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+		if (covered > cells.size()){
+		    for (Iterator<ArrayList<Entry>> it=cells.values().iterator();it.hasNext();)
+			WHGridIndex.collectCell(it.next(), search, bounds, now, result);
+		} else {
+		    for (int row=range[0];row<=range[2];row++){
+			for (int col=range[1];col<=range[3];col++){
+			    ArrayList<Entry> cell = cells.get(WHGridIndex.cellKey(row, col));
+			    if (cell != null)
+				WHGridIndex.collectCell(cell, search, bounds, now, result);
+			}
+		    }
+		}
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    int size(){
+	lock.readLock().lock();
+	try {
+	    return size;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    public String toString(){
+	lock.readLock().lock();
+	try {
+	    int cells = 0;
+	    for (int i=0;i<levels.size();i++)
+		cells += levels.get(i).size();
+	    return "grid: "+records.size()+" records, "+size+" rows, "+cells+" cells";
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    //
+    //PRIVATE METHODS
+    //
+
+    private static void collectCell(ArrayList<Entry> cell, WHPolygon search, double[] bounds, long now, Set<String> result){
+	for (int i=0;i<cell.size();i++){
+	    Entry entry = cell.get(i);
+	    if (entry.end_time >= now && entry.overlaps(bounds) && entry.area.overlaps(search))
+		result.add(entry.uniqueidsha);
+	}
+    }
+
+    //the finest level whose cells are at least as large as bounds
+    private static int levelOf(double[] bounds){
+	double extent = Math.max(bounds[2] - bounds[0], bounds[3] - bounds[1]);
+	int level = 0;
+	double side = LEVEL_0_CELL / 2;
+	while (level < MAX_LEVEL && side >= extent){
+	    level++;
+	    side /= 2;
+	}
+	return level;
+    }
+
+    //{first row, first col, last row, last col} of the cells of level overlapping bounds
+    private static int[] cellRange(int level, double[] bounds){
+	double side = LEVEL_0_CELL / (1 << level);
+	int rows = (int) (180.0 / LEVEL_0_CELL) << level;
+	int cols = (int) (360.0 / LEVEL_0_CELL) << level;
+	return new int[]{WHGridIndex.clamp((int) Math.floor((bounds[0] + 90) / side), rows),
+			 WHGridIndex.clamp((int) Math.floor(bounds[1] / side), cols),
+			 WHGridIndex.clamp((int) Math.floor((bounds[2] + 90) / side), rows),
+			 WHGridIndex.clamp((int) Math.floor(bounds[3] / side), cols)};
+    }
+
+    private static int clamp(int i, int count){
+	return Math.max(0, Math.min(count - 1, i));
+    }
+
+    private static Long cellKey(int row, int col){
+	return Long.valueOf(((long) row << 32) | col);
+    }
+
+    private static class Entry {
+	String uniqueidsha;
+	WHPolygon area;
+	double[] bounds;
+	long end_time;
+	int level;
+
+	Entry(String _uniqueidsha, WHPolygon _area, long _end_time){
+	    uniqueidsha = _uniqueidsha;
+	    area = _area;
+	    bounds = area.getBounds();
+	    end_time = _end_time;
+	    level = WHGridIndex.levelOf(bounds);
+	}
+	boolean overlaps(double[] b){
+	    return bounds[0] <= b[2] && b[0] <= bounds[2] && bounds[1] <= b[3] && b[1] <= bounds[3];
+	}
+    }
+}
@@ -66,31 +66,34 @@ public class WHInsertOperation extends WHOperation {
     public String getQueryString(int type){
 	   
 	String queryString;
-	queryString =  "insert into wherehoo_polygons (";
-	queryString += "area,height,begin_time,end_time,";
-	queryString += "authority,data,mimetype,protocol,uniqueidsha";
-	if (meta_is_set)
-	    queryString+=",meta";
-	queryString += ") values (polygon(pclose(path'";
+	String area = "polygon(pclose(path'";
 	switch (type){
 	    //180<lon<540
 	case -1: {
-	    queryString +=poly.toString(360);
+	    area +=poly.toString(360);
 	    break;
 	}
 	//no zero crossing case, 0<lon<360
 	case 0: {
  
-	    queryString += poly.toString();
+	    area += poly.toString();
 	    break;
 	}
 	//-180<lon<180
 	case 1: {
-	    queryString += poly.toString(0);
+	    area += poly.toString(0);
 	    break;
 	}
 	}
-	queryString +="')),"+height+",?,?,'"+idt+"',?,'"+mimetype+"','"+protocol+"','"+uniqueidSHA+"'";
+	area += "'))";
+	queryString =  "insert into wherehoo_polygons (";
+	queryString += "area,bbox,height,begin_time,end_time,";
+	queryString += "authority,data,mimetype,protocol,uniqueidsha";
+	if (meta_is_set)
+	    queryString+=",meta";
+	//the bounding box is what the spatial index of the searches is built on
+	queryString += ") values ("+area+",box("+area+"),";
+	queryString += height+",?,?,'"+idt+"',?,'"+mimetype+"','"+protocol+"','"+uniqueidSHA+"'";
 	if (meta_is_set)
 	    queryString+=",?";	queryString += ")";
 	if (this.getVerbose()||this.getVeryVerbose()) System.out.println(queryString);
@@ -98,27 +101,26 @@ public class WHInsertOperation extends WHOperation {
     }
     /**
      * Inserts an entry into the database, and sends an uid to the client as a confirmation
-     * @param client_socket a socket of the connecting client.  After executing an insert operation, this method sends
-     * uid to the client via client_socket.
+     * @param session the session of the connecting client.  After executing an insert operation, this method sends
+     * uid to the client via <tt>session</tt>.
      */
-    public synchronized void executeAndOutputToClient(Socket client_socket) throws IOException{
+    protected void executeOperation(WHSession session) throws IOException{
 	
 	
 	String queryString;
  
-	Connection C;
+	Connection C=null;
 	PreparedStatement pps;
 	
-	String client_address = client_socket.getInetAddress().getHostAddress();
+	String client_address = session.getClientAddress();
 	int st;
-	PrintWriter out;
+	WHProtocol out;
 	
-	if (this.getVeryVerbose()) System.out.println("Opening PrintWriter");
-	out = new PrintWriter(client_socket.getOutputStream(),true);
+	out = session.getProtocol();
 	try {
 	    uniqueidSHA=getUniqueID(client_address);
 	    if (this.getVeryVerbose()) System.out.println("Calculated uniqueID :"+uniqueidSHA);
-	    C = DriverManager.getConnection("jdbc:"+WHServer.DB,"postgres","");
+	    C = this.getConnectionPool().getConnection();
 	    if (this.getVeryVerbose()) System.out.println("Connected to database");
 	    C.setAutoCommit(false);
 	
@@ -137,11 +139,13 @@ public class WHInsertOperation extends WHOperation {
 		    if (this.getVeryVerbose()) System.out.println("Set meta in SQL query string");
 		}
 		st = pps.executeUpdate();
+		pps.close();
 		if (this.getVeryVerbose()) System.out.println("Executed query, result : "+st);
 		C.commit();
 		if (this.getVeryVerbose()) System.out.println("Commited changes");
 		if (st == 1){
-		    out.println(uniqueidSHA);
+		    this.addToIndex(poly.toString());
+		    out.uid(uniqueidSHA);
 		    if (this.getVeryVerbose())System.out.println("Sent UID to client");
 		}
 	    } else {
@@ -159,6 +163,7 @@ public class WHInsertOperation extends WHOperation {
 		    pps.setString(4,meta);
 		
 		st = pps.executeUpdate();
+		pps.close();
 		if (this.getVeryVerbose()) System.out.println("Executed statement");
 		//object represented by polygon with -180<lon<180
 		queryString=this.getQueryString(1);
@@ -171,14 +176,17 @@ public class WHInsertOperation extends WHOperation {
 		    pps.setString(4,meta);
 		
 		st = st + pps.executeUpdate();
+		pps.close();
 		if (this.getVeryVerbose()) System.out.println("Executed statement");
 		C.commit();
 		
-		if (st == 2)
-		    out.println(uniqueidSHA);
+		if (st == 2){
+		    this.addToIndex(poly.toString(360));
+		    this.addToIndex(poly.toString(0));
+		    out.uid(uniqueidSHA);
+		}
 		if (this.getVeryVerbose()) System.out.println("Insert fully sucessfull, sent uniqueidSHA to client");
 	    }
-	    C.close();
 	}
 	catch (SQLException sqle) {
 	    System.out.println("SQLException: " + sqle.getMessage());
@@ -191,9 +199,19 @@ public class WHInsertOperation extends WHOperation {
 	catch (UnknownHostException uhe){
 	    System.out.println("UnknownHostException: "+uhe.getMessage());
 	}
+	finally {
+	    this.getConnectionPool().releaseConnection(C);
+	}
 	//out.close();
     }
     
+    //adds a row just inserted, with the area area_descriptor, to the in-memory index of the live records
+    private void addToIndex(String area_descriptor){
+	WHSpatialIndex index = WHServer.getSpatialIndex();
+	if (index != null)
+	    index.insert(uniqueidSHA,new WHPolygon(area_descriptor),time.getEnd().getTime());
+    }
+
     private String getUniqueID(String client_address) throws NoSuchAlgorithmException , UnknownHostException{
 	
 	String server_address=InetAddress.getLocalHost().getHostAddress();
@@ -0,0 +1,142 @@
+package com.wherehoo;
+
+import java.io.*;
+
+/**
+ * <tt>WHLineInputStream</tt> reads the Wherehoo protocol off a byte stream: command lines, which are text,
+ * and DAT payloads, which are raw bytes that follow a command line.  Both are read from the same buffer, so
+ * no byte is lost to a character decoder reading ahead, and a payload is copied in bulk rather than byte by byte.
+ * Command lines are decoded as ISO-8859-1, which maps every byte to exactly one character.
+ * A read that blocks longer than the socket timeout fails with <tt>SocketTimeoutException</tt>.
+ */
+class WHLineInputStream extends BufferedInputStream {
+
+    //the last line ended with "\r", so a "\n" right after it belongs to that line
+    private boolean skip_lf = false;
+
+    /**
+     * Constructs a new <tt>WHLineInputStream</tt> reading from <tt>_in</tt>.
+     * @param _in the socket input stream, or any other source of client commands
+     */
+    WHLineInputStream(InputStream _in){
+	super(_in, 8192);
+    }
+
+    /**
+     * Reads one line, ended by "\n", "\r" or "\r\n".
+     * @return the line without its end, or <tt>null</tt> if the stream ended before any byte was read.
+     */
+    synchronized String readLine() throws IOException {
+	StringBuffer line = new StringBuffer(64);
+	int b = this.read();
+	if (skip_lf && b == '\n')
+	    b = this.read();
+	skip_lf = false;
+	if (b == -1)
+	    return null;
+	while (b != -1 && b != '\n' && b != '\r'){
+	    line.append((char) b);
+	    b = this.read();
+	}
+	skip_lf = (b == '\r');
+	return line.toString();
+    }
+
+    /**
+     * Waits until at least one byte can be read, without taking it from the stream.
+     * @return <tt>false</tt> if the stream ended.
+     */
+    synchronized boolean awaitInput() throws IOException {
+	return this.peek() != -1;
+    }
+
+    /**
+     * Returns the next byte without taking it from the stream, waiting for it if necessary.
+     * @return the next byte, or -1 if the stream ended.
+     */
+    synchronized int peek() throws IOException {
+	int b = this.read();
+	//the byte just read is still in the buffer
+	if (b != -1)
+	    pos--;
+	return b;
+    }
+
+    /**
+     * Skips exactly <tt>n</tt> bytes.
+     * @exception EOFException if the stream ends first.
+     */
+    synchronized void skipFully(long n) throws IOException {
+	while (n > 0){
+	    if (this.read() < 0)
+		throw new EOFException();
+	    n--;
+	}
+    }
+
+    /**
+     * Tells whether the client has already sent more input, without waiting for it.
+     * @return <tt>true</tt> if a read would not block.
+     */
+    synchronized boolean inputWaiting() throws IOException {
+	if (skip_lf && pos < count && buf[pos] == '\n'){
+	    pos++;
+	    skip_lf = false;
+	}
+	return this.available() > 0;
+    }
+
+    /**
+     * Takes the bytes that were read ahead from the underlying stream but not consumed yet.
+     * @return the buffered bytes, possibly none.
+     */
+    synchronized byte[] takeBuffered(){
+	if (skip_lf && pos < count && buf[pos] == '\n')
+	    pos++;
+	skip_lf = false;
+	byte[] rest = new byte[Math.max(0, count - pos)];
+	System.arraycopy(buf, pos, rest, 0, rest.length);
+	pos = count;
+	return rest;
+    }
+
+    /**
+     * Puts bytes back in front of the stream, to be read before anything else.
+     * @param b bytes that were received elsewhere, but belong to this stream
+     */
+    synchronized void pushBack(byte[] b){
+	if (b.length == 0)
+	    return;
+	byte[] joined = new byte[Math.max(buf.length, b.length + count - pos)];
+	System.arraycopy(b, 0, joined, 0, b.length);
+	System.arraycopy(buf, pos, joined, b.length, count - pos);
+	count = b.length + count - pos;
+	pos = 0;
+	markpos = -1;
+	buf = joined;
+    }
+
+    /**
+     * Reads exactly <tt>b.length</tt> bytes.
+     * @param b buffer to fill
+     * @exception EOFException if the stream ends before the buffer is full.
+     */
+    synchronized void readFully(byte[] b) throws IOException {
+	int done = 0;
+	if (skip_lf && b.length > 0){
+	    //the line before the bytes ended with "\r", its "\n" may still be coming
+	    int first = this.read();
+	    if (first < 0)
+		throw new EOFException();
+	    if (first != '\n')
+		b[done++] = (byte) first;
+	}
+	skip_lf = false;
+	while (done < b.length){
+	    int n = this.read(b, done, b.length - done);
+	    if (n < 0)
+		throw new EOFException();
+	    done += n;
+	}
+    }
+}
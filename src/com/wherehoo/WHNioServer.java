@@ -0,0 +1,472 @@
+package com.wherehoo;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+
+/**
+ * <tt>WHNioServer</tt> is the non-blocking front end of the Wherehoo server.  A few event loop threads own
+ * all client sockets while the clients are sending their commands.  The event loops decode the line protocol
+ * incrementally, answer IDT, NOP and DAT on the spot, and hand a complete command block (ending with ".")
+ * to a bounded pool of worker threads, which run the blocking database work through <tt>WHClientProcess</tt>.
+ * A connection that is idle or still sending costs a small buffer, not a thread.
+ * When the workers are saturated, a new client is answered <tt>NAK BUSY</tt> right after its IDT line.
+ * A kept-alive session goes back to its event loop after each operation, to wait for its next command block.
+ * A client that chooses the binary protocol with its first byte is handed to a worker right away, and is
+ * served by the blocking <tt>WHClientProcess</tt> for the whole connection.
+ */
+class WHNioServer {
+
+    /** longest command line accepted from a client */
+    private static final int MAX_LINE = 65536;
+    /** largest command block accepted from a client: a full DAT payload plus the command lines */
+    private static final int MAX_BLOCK = WHServer.MAXDATA + WHServer.SIGNATUREBYTECOUNT + MAX_LINE;
+    /** msec between checks for silent clients */
+    private static final int IDLE_CHECK_INTERVAL = 1000;
+
+    private static final byte[] EOL = System.getProperty("line.separator").getBytes();
+
+    private int port;
+    private int backlog;
+    private EventLoop[] loops;
+    private WHSessionExecutor workers;
+
+    /**
+     * Constructs a new <tt>WHNioServer</tt>.
+     * @param _port the port to listen on
+     * @param _backlog the listen backlog
+     * @param loop_count number of event loop threads
+     * @param _workers the bounded executor that runs the operations
+     */
+    WHNioServer(int _port, int _backlog, int loop_count, WHSessionExecutor _workers){
+	port = _port;
+	backlog = _backlog;
+	loops = new EventLoop[loop_count];
+	workers = _workers;
+    }
+
+    /**
+     * Accepts client connections and spreads them over the event loops.  Does not return.
+     */
+    void serve() throws IOException {
+	for (int i=0;i<loops.length;i++){
+	    loops[i] = new EventLoop(i);
+	    loops[i].start();
+	}
+	ServerSocketChannel server_channel = ServerSocketChannel.open();
+	server_channel.socket().setReuseAddress(true);
+	server_channel.socket().bind(new InetSocketAddress(port), backlog);
+	System.out.println("Wherehoo non-blocking server v"+WHServer.VERSION+" on port "+port
+			   +", "+loops.length+" event loops");
+	int next = 0;
+	while (true){
+	    SocketChannel channel = server_channel.accept();
+	    try {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		loops[next].register(channel, null);
+		next = (next+1) % loops.length;
+	    } catch (IOException ioe){
+		System.out.println("IOE Exception: "+ioe.getMessage());
+		WHNioServer.closeQuietly(channel);
+	    }
+	}
+    }
+
+    private static void closeQuietly(Channel channel){
+	try {
+	    channel.close();
+	} catch (IOException ioe){}
+    }
+
+    /**
+     * An event loop thread: a selector and the state of every connection registered with it.
+     */
+    private class EventLoop extends Thread {
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Object[]> registrations;
+	private ByteBuffer read_buffer;
+	//connections with a complete command block, handed to the workers after the selected keys are processed
+	private LinkedList<ClientState> handoffs;
+
+	EventLoop(int index) throws IOException {
+	    super("WHNioServer loop "+index);
+	    selector = Selector.open();
+	    registrations = new ConcurrentLinkedQueue<Object[]>();
+	    read_buffer = ByteBuffer.allocateDirect(16384);
+	    handoffs = new LinkedList<ClientState>();
+	}
+
+	/** hands a non-blocking channel to this loop; <tt>state</tt> is null for a new connection */
+	void register(SocketChannel channel, ClientState state){
+	    registrations.add(new Object[]{channel, state});
+	    selector.wakeup();
+	}
+
+	public void run(){
+	    long last_idle_check = System.currentTimeMillis();
+	    while (true){
+		try {
+		    selector.select(IDLE_CHECK_INTERVAL);
+		    this.processRegistrations();
+		    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		    while (keys.hasNext()){
+			SelectionKey key = keys.next();
+			keys.remove();
+			this.handle(key);
+		    }
+		    if (! handoffs.isEmpty())
+			this.handOff();
+		    long now = System.currentTimeMillis();
+		    if (now - last_idle_check >= IDLE_CHECK_INTERVAL){
+			this.closeIdle(now);
+			last_idle_check = now;
+		    }
+		} catch (IOException ioe){
+		    System.out.println("IOE Exception: "+ioe.getMessage());
+		}
+	    }
+	}
+
+	private void processRegistrations(){
+	    Object[] registration;
+	    while ((registration = registrations.poll()) != null){
+		SocketChannel channel = (SocketChannel) registration[0];
+		ClientState state = (ClientState) registration[1];
+		if (state == null)
+		    state = new ClientState(channel, workers);
+		try {
+		    state.last_activity = System.currentTimeMillis();
+		    state.key = channel.register(selector, SelectionKey.OP_READ, state);
+		    //a kept-alive client may have sent its next commands while the last operation ran
+		    byte[] ahead = state.takeLeftover();
+		    for (int i=0;i<ahead.length && state.key.isValid();i++){
+			if (state.consume(ahead[i])){
+			    state.keepLeftover(ahead, i+1, ahead.length-i-1);
+			    state.key.cancel();
+			    handoffs.add(state);
+			    break;
+			}
+		    }
+		} catch (IOException ioe){
+		    state.close();
+		}
+	    }
+	}
+
+	private void handle(SelectionKey key){
+	    ClientState state = (ClientState) key.attachment();
+	    try {
+		if (key.isValid() && key.isWritable())
+		    state.flush();
+		if (key.isValid() && key.isReadable()){
+		    read_buffer.clear();
+		    int count = state.channel.read(read_buffer);
+		    if (count < 0){
+			state.close();
+			return;
+		    }
+		    state.last_activity = System.currentTimeMillis();
+		    read_buffer.flip();
+		    while (read_buffer.hasRemaining() && key.isValid()){
+			if (state.consume(read_buffer.get())){
+			    //what follows the block belongs to the operation or to the next block
+			    byte[] rest = new byte[read_buffer.remaining()];
+			    read_buffer.get(rest);
+			    state.keepLeftover(rest, 0, rest.length);
+			    key.cancel();
+			    handoffs.add(state);
+			}
+		    }
+		}
+	    } catch (IOException ioe){
+		state.close();
+	    } catch (CancelledKeyException cke){
+		state.close();
+	    }
+	}
+
+	/** passes the connections with a complete command block to the worker pool */
+	private void handOff() throws IOException {
+	    //the channels can only be made blocking once the selector has dropped their cancelled keys
+	    selector.selectNow();
+	    while (! handoffs.isEmpty()){
+		ClientState state = handoffs.removeFirst();
+		try {
+		    state.channel.configureBlocking(true);
+		    state.channel.socket().setSoTimeout(WHServer.RXTIMEOUT);
+		    this.execute(state, state.takeBlock());
+		} catch (IOException ioe){
+		    state.close();
+		}
+	    }
+	}
+
+	private void execute(final ClientState state, final byte[] block){
+	    final SocketChannel channel = state.channel;
+	    final ByteBuffer pending = state.pending_out;
+	    state.pending_out = null;
+	    Runnable session = new Runnable(){
+		    public void run(){
+			boolean resume = false;
+			try {
+			    if (pending != null){
+				while (pending.hasRemaining())
+				    channel.write(pending);
+			    }
+			    if (state.session == null)
+				state.session = new WHSession(channel.socket());
+			    state.session.getInput().pushBack(state.takeLeftover());
+			    if (state.binary){
+				//the first byte chose the binary protocol, which is not decoded by the event loop
+				state.session.getInput().pushBack(block);
+				new WHClientProcess(state.session, null).serve();
+			    } else if (new WHClientProcess(state.session, block).runCommandBlocks()){
+				state.keepAlive(state.session.getInput().takeBuffered());
+				channel.configureBlocking(false);
+				resume = true;
+				register(channel, state);
+			    } else {
+				System.out.println("Client disconnecting");
+				state.session.close();
+			    }
+			} catch (IOException ioe){
+			    System.out.println("IOE Exception: "+ioe.getMessage());
+			} finally {
+			    if (! resume)
+				WHNioServer.closeQuietly(channel);
+			}
+		    }
+		};
+	    if (! workers.submit(session)){
+		//the workers filled up after this client's IDT was answered
+		try {
+		    if (pending != null){
+			while (pending.hasRemaining())
+			    channel.write(pending);
+		    }
+		    if (state.binary)
+			channel.write(ByteBuffer.wrap(WHBinaryProtocol.busyFrame(workers.retryAfter())));
+		    else
+			channel.write(ByteBuffer.wrap(("NAK BUSY "+workers.retryAfter()+new String(EOL)
+						       +"."+new String(EOL)+"BYE"+new String(EOL)).getBytes()));
+		} catch (IOException ioe){
+		} finally {
+		    WHNioServer.closeQuietly(channel);
+		}
+	    }
+	}
+
+	private void closeIdle(long now){
+	    Iterator<SelectionKey> keys = selector.keys().iterator();
+	    while (keys.hasNext()){
+		SelectionKey key = keys.next();
+		ClientState state = (ClientState) key.attachment();
+		if (state != null && (now - state.last_activity) > state.idleTimeout()){
+		    try {
+			if (state.isBetweenBlocks())
+			    state.leave();
+			else
+			    state.close();
+		    } catch (IOException ioe){
+			state.close();
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Decoding state of one connection.
+     */
+    private static class ClientState {
+
+	SocketChannel channel;
+	SelectionKey key;
+	long last_activity;
+	private WHSessionExecutor workers;
+
+	//the command block received so far, replayed to WHDataCollector once it is complete
+	private ByteArrayOutputStream block;
+	//the command line being received
+	private ByteArrayOutputStream line;
+	//bytes of DAT payload and signature still expected
+	private int binary_remaining;
+	//replies not yet written to the client
+	ByteBuffer pending_out;
+	private boolean closing;
+	//bytes received after the command block, not consumed yet
+	private byte[] leftover;
+	//the session of a client that keeps its connection between operations
+	WHSession session;
+	private boolean kept_alive;
+	//the client chose the binary protocol
+	boolean binary;
+
+	ClientState(SocketChannel _channel, WHSessionExecutor _workers){
+	    channel = _channel;
+	    workers = _workers;
+	    binary_remaining = 0;
+	    closing = false;
+	    leftover = new byte[0];
+	    kept_alive = false;
+	    binary = false;
+	}
+
+	/**
+	 * Takes in one byte sent by the client.
+	 * @return true if the byte completed a command block that is ready to be executed.
+	 */
+	boolean consume(byte b) throws IOException {
+	    if (closing) return false;
+	    if (block == null){
+		block = new ByteArrayOutputStream(256);
+		//the first byte of a binary client completes its "block": the worker takes over from here
+		if (! kept_alive && (b & 0xFF) == WHBinaryProtocol.MAGIC){
+		    binary = true;
+		    block.write(b);
+		    return true;
+		}
+	    }
+	    if (block.size() >= MAX_BLOCK){
+		this.close();
+		return false;
+	    }
+	    block.write(b);
+	    if (binary_remaining > 0){
+		binary_remaining--;
+		if (binary_remaining == 0)
+		    this.reply("ACK");
+		return false;
+	    }
+	    if (b != '\n'){
+		if (line == null) line = new ByteArrayOutputStream(64);
+		if (line.size() >= MAX_LINE){
+		    this.close();
+		    return false;
+		}
+		line.write(b);
+		return false;
+	    }
+	    String text = (line == null) ? "" : line.toString("ISO-8859-1");
+	    line = null;
+	    return this.interpretLine(text);
+	}
+
+	void keepLeftover(byte[] b, int offset, int length){
+	    leftover = new byte[length];
+	    System.arraycopy(b, offset, leftover, 0, length);
+	}
+
+	byte[] takeLeftover(){
+	    byte[] result = leftover;
+	    leftover = new byte[0];
+	    return result;
+	}
+
+	/** prepares the state for the next command block of a kept-alive session */
+	void keepAlive(byte[] ahead){
+	    kept_alive = true;
+	    leftover = ahead;
+	    line = null;
+	    binary_remaining = 0;
+	}
+
+	/** @return <tt>true</tt> if a kept-alive client has not started its next command block */
+	boolean isBetweenBlocks(){
+	    return kept_alive && block == null && line == null;
+	}
+
+	/** @return msec of silence permitted from the client before it is disconnected */
+	int idleTimeout(){
+	    return this.isBetweenBlocks() ? WHServer.KEEPALIVE_IDLE_TIMEOUT : WHServer.RXTIMEOUT;
+	}
+
+	byte[] takeBlock(){
+	    byte[] result = block.toByteArray();
+	    block = null;
+	    return result;
+	}
+
+	/** answers a line as WHDataCollector would while the commands are coming in, see <tt>WHDataCollector.immediateReply()</tt> */
+	private boolean interpretLine(String text) throws IOException {
+	    String[] command = WHDataCollector.splitLine(text);
+	    switch (WHDataCollector.immediateReply(WHServer.commandIndex(command[0]))){
+	    case WHDataCollector.REPLY_HEADER:
+		if (workers.isSaturated()){
+		    this.reply("NAK BUSY "+workers.retryAfter());
+		    this.leave();
+		} else {
+		    this.reply(WHServer.serverHeader());
+		}
+		return false;
+	    case WHDataCollector.REPLY_ACK:
+		this.reply("ACK");
+		return false;
+	    case WHDataCollector.REPLY_DATA:
+		try {
+		    int datalen = Integer.parseInt(command[1]);
+		    if (WHDataCollector.isDataLength(datalen))
+			binary_remaining = datalen + WHServer.SIGNATUREBYTECOUNT;
+		} catch (NumberFormatException nfe){}
+		return false;
+	    case WHDataCollector.REPLY_END:
+		return true;
+	    case WHDataCollector.REPLY_LEAVE:
+		this.leave();
+		return false;
+	    default:
+		return false;
+	    }
+	}
+
+	/** says goodbye and closes the connection once the replies are written */
+	void leave() throws IOException {
+	    this.reply(".");
+	    this.reply("BYE");
+	    closing = true;
+	    if (pending_out == null)
+		this.close();
+	}
+
+	private void reply(String text) throws IOException {
+	    byte[] bytes = text.getBytes("ISO-8859-1");
+	    ByteBuffer buffer = ByteBuffer.allocate(bytes.length + EOL.length);
+	    buffer.put(bytes).put(EOL).flip();
+	    if (pending_out == null){
+		channel.write(buffer);
+		if (! buffer.hasRemaining())
+		    return;
+		pending_out = buffer;
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	    } else {
+		ByteBuffer joined = ByteBuffer.allocate(pending_out.remaining() + buffer.remaining());
+		joined.put(pending_out).put(buffer).flip();
+		pending_out = joined;
+	    }
+	}
+
+	void flush() throws IOException {
+	    if (pending_out != null){
+		channel.write(pending_out);
+		if (pending_out.hasRemaining())
+		    return;
+		pending_out = null;
+	    }
+	    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	    if (closing)
+		this.close();
+	}
+
+	void close(){
+	    if (key != null)
+		key.cancel();
+	    WHNioServer.closeQuietly(channel);
+	}
+    }
+}
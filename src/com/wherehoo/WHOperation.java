@@ -1,7 +1,7 @@
 package com.wherehoo;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * All operations supported by Wherehoo extend <tt>WHOperation</tt> . which does not know which operation exactly the connecting client wishes to perform and what kind of output it expects.  This exploits the fact that all wherehoo operations, after initial data collection stage, perform some kind of SQL query, which results are output to client.
@@ -10,16 +10,36 @@ public abstract class WHOperation {
 
     private boolean verbose;
     private boolean very_verbose;
+    private WHConnectionPool connection_pool;
+    private ReentrantLock operation_lock;
+    private boolean interactive;
     
     WHOperation(){
 	verbose = false;
 	very_verbose = false;
+	interactive = true;
+	operation_lock = new ReentrantLock();
     }
     /**
-     * Performs some SQL query and outputs the results of it to connecting client via client_socket.
-     * @param client_socket the connecting client socket
+     * Performs some SQL query and outputs the results of it to connecting client via its session.
+     * Executions of the same operation are serialized by a <tt>ReentrantLock</tt> rather than a monitor,
+     * so a virtual thread waiting on the database or on the client does not pin its carrier thread.
+     * @param session the session of the connecting client
      */
-    abstract void executeAndOutputToClient(Socket client_socket) throws IOException;
+    void executeAndOutputToClient(WHSession session) throws IOException {
+	operation_lock.lock();
+	try {
+	    this.executeOperation(session);
+	} finally {
+	    operation_lock.unlock();
+	}
+    }
+    /**
+     * Performs the SQL query of this operation and outputs the results to the client.  Called by 
+     * <tt>executeAndOutputToClient</tt> with the operation lock held.
+     * @param session the session of the connecting client
+     */
+    protected abstract void executeOperation(WHSession session) throws IOException;
     /**
      *turns the verbosity on and off.  The output is to System.out.
      */
@@ -35,4 +55,30 @@ public abstract class WHOperation {
     protected boolean getVeryVerbose(){
 	return very_verbose;
     }
+    /**
+     * Returns whether this operation only reads the database.  Such an operation may run at the same time
+     * as other read-only operations pipelined by the same client.
+     */
+    protected boolean isReadOnly(){
+	return false;
+    }
+    /**
+     * Sets whether this operation may wait for the client while it sends its results.  A pipelined
+     * operation runs ahead of the client and must not wait for it.
+     */
+    protected void setInteractive(boolean _interactive){
+	interactive = _interactive;
+    }
+    protected boolean getInteractive(){
+	return interactive;
+    }
+    /**
+     * Sets the pool this operation takes its database connections from.
+     */
+    protected void setConnectionPool(WHConnectionPool pool){
+	connection_pool = pool;
+    }
+    protected WHConnectionPool getConnectionPool(){
+	return connection_pool;
+    }
 }
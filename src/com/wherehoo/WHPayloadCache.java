@@ -0,0 +1,77 @@
+package com.wherehoo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <tt>WHPayloadCache</tt> keeps the metadata and data of the records a client read most recently.
+ * A search sends the record headers only; the payload of a record is read from the database when the
+ * client sends "meta" or "data" for it, and kept here, so that reading both, or coming back to the
+ * same record in a later search of the session, costs one database round trip.<br>
+ * The cache holds at most <tt>max_bytes</tt> of payload, the least recently used records are dropped first.
+ * It belongs to one session.
+ */
+class WHPayloadCache {
+
+    private int max_bytes;
+    private int bytes;
+    //uniqueidsha -> {meta, data}, in order of use
+    private LinkedHashMap<String,Object[]> payloads;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructs a new, empty <tt>WHPayloadCache</tt>.
+     * @param _max_bytes max number of bytes of metadata and data held
+     */
+    WHPayloadCache(int _max_bytes){
+	max_bytes = _max_bytes;
+	bytes = 0;
+	payloads = new LinkedHashMap<String,Object[]>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the payload of record <tt>uniqueidsha</tt>.
+     * @return the array <tt>{String meta, byte[] data}</tt>, or <tt>null</tt> if the record is not cached.
+     */
+    synchronized Object[] get(String uniqueidsha){
+	Object[] payload = payloads.get(uniqueidsha);
+	if (payload == null)
+	    misses++;
+	else
+	    hits++;
+	return payload;
+    }
+
+    /**
+     * Keeps the payload of record <tt>uniqueidsha</tt>.  A payload larger than the whole cache is not kept.
+     * @param uniqueidsha uid of the record
+     * @param meta metadata of the record
+     * @param data data of the record
+     */
+    synchronized void put(String uniqueidsha, String meta, byte[] data){
+	int size = WHPayloadCache.size(meta, data);
+	if (size > max_bytes)
+	    return;
+	Object[] old = payloads.put(uniqueidsha, new Object[]{meta, data});
+	if (old != null)
+	    bytes -= WHPayloadCache.size((String) old[0], (byte[]) old[1]);
+	bytes += size;
+	Iterator<Map.Entry<String,Object[]>> eldest = payloads.entrySet().iterator();
+	while (bytes > max_bytes && eldest.hasNext()){
+	    Object[] dropped = eldest.next().getValue();
+	    bytes -= WHPayloadCache.size((String) dropped[0], (byte[]) dropped[1]);
+	    eldest.remove();
+	}
+    }
+
+    private static int size(String meta, byte[] data){
+	return ((meta == null) ? 0 : meta.length()) + ((data == null) ? 0 : data.length);
+    }
+
+    public synchronized String toString(){
+	return "payload cache: "+payloads.size()+" records, "+bytes+" bytes, "+hits+" hits, "+misses+" misses";
+    }
+}
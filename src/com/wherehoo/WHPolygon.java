@@ -1,25 +1,34 @@
 package com.wherehoo;
 
-import java.util.Vector;
 import java.util.StringTokenizer;
 import java.awt.geom.Point2D;
-import java.awt.geom.GeneralPath;
-import java.awt.geom.Line2D;
-import java.math.BigDecimal;
 
 
 /**
  * <tt>WHPolygon</tt> represents a geographical area.  <tt>WHPolygon</tt> supplies methods for manipulating such area, 
- * as well as for navigating it. 
+ * as well as for navigating it.<br>
+ * The vertices are kept in two arrays of doubles, the latitudes and the longitudes, along with the bounding box
+ * of the area.  <tt>contains()</tt> counts the winding of the sides over the arrays, so it works at full double precision and allocates
+ * nothing; a search builds a <tt>WHPolygon</tt> for every row it reads.
  */
 public class WHPolygon{
     
-    private Point2D.Double[] coordinates;
-    private GeneralPath path;
+    //tolerance of the comparisons of coordinates in Postgres
+    private static final double EPSILON = 1.0E-06;
+
+    private double[] lats;
+    private double[] lons;
+    //{minlat, minlon, maxlat, maxlon}
+    private double[] bounds;
     private boolean zero_crossing;
+    //true if the sides all turn the same way, once around
+    private boolean convex;
     //for zero crossing case
     private WHPolygon leftPoly;
     private WHPolygon rightPoly;
+    //bearing from vertex i to vertex i+1, and back, found when first needed
+    private double[] side_bearings;
+    private double[] back_bearings;
 
     /**
      *Constructs a new <tt>WHPolygon</tt> object.
@@ -32,25 +41,19 @@ public class WHPolygon{
      *@return <tt>WHPolygon</tt>, which vertices were listed by <tt>poly_descriptor</tt>.
      */
     public WHPolygon(String poly_descriptor){
-
-	zero_crossing = false;
-	leftPoly=null;
-	rightPoly=null;
-
 	StringTokenizer vertex_tokens= new StringTokenizer(poly_descriptor,"(",false);
 	String vertex;
-	coordinates=new Point2D.Double[vertex_tokens.countTokens()];
+	lats=new double[vertex_tokens.countTokens()];
+	lons=new double[lats.length];
 	
 	for(int i=0;vertex_tokens.hasMoreTokens();i++){
 	    vertex=vertex_tokens.nextToken();
 	    //read in the next vertex
-	    coordinates[i]= new Point2D.Double(
-					       Double.parseDouble(vertex.substring(0,vertex.indexOf(','))),
-					       Double.parseDouble(vertex.substring(vertex.indexOf(',')+1,vertex.indexOf(')'))));
+	    int comma=vertex.indexOf(',');
+	    lats[i]=Double.parseDouble(vertex.substring(0,comma));
+	    lons[i]=Double.parseDouble(vertex.substring(comma+1,vertex.indexOf(')')));
 	}
-
-	zero_crossing = this.checkForZeroCrossing();
-	this.constructPath();
+	this.setUp();
     }
       
     /**
@@ -60,12 +63,13 @@ public class WHPolygon{
      *@return <tt>WHPolygon</tt>, described by <tt>vertices</tt>
      */ 
     public WHPolygon(Point2D.Double[] vertices){
-	coordinates=new Point2D.Double[vertices.length];
+	lats=new double[vertices.length];
+	lons=new double[vertices.length];
 	for (int i=0;i<vertices.length;i++){
-	    coordinates[i]= new Point2D.Double(vertices[i].getX(),vertices[i].getY());
+	    lats[i]=vertices[i].getX();
+	    lons[i]=vertices[i].getY();
 	}
-	zero_crossing=this.checkForZeroCrossing();
-	this.constructPath();
+	this.setUp();
     }    
    
     /**
@@ -79,25 +83,25 @@ public class WHPolygon{
      */ 
     public WHPolygon(Point2D.Double client_location, double radius){
 	
-	coordinates = new Point2D.Double[4];
+	lats = new double[4];
+	lons = new double[4];
 	//calculate the coordinates of four vertices
 	double half_diagonal=radius*Math.sqrt(2);
 	Point2D.Double poly_vertex=new Point2D.Double(client_location.getX(),client_location.getY());
 	//calculate a first vertex
 	WHGeo.project(poly_vertex,45,half_diagonal);
-	coordinates[0]=new Point2D.Double(poly_vertex.getX(),poly_vertex.getY());
+	this.setVertex(0,poly_vertex);
 	//calculate a second vertex
 	WHGeo.project(poly_vertex,180,2*radius);
-	coordinates[1]=new Point2D.Double(poly_vertex.getX(),poly_vertex.getY());
+	this.setVertex(1,poly_vertex);
 	//calculate a third vertex
 	WHGeo.project(poly_vertex,270,2*radius);
-	coordinates[2]=new Point2D.Double(poly_vertex.getX(),poly_vertex.getY());
+	this.setVertex(2,poly_vertex);
 	//calculate a fourth vertex
 	WHGeo.project(poly_vertex,0,2*radius);
-	coordinates[3]=new Point2D.Double(poly_vertex.getX(),poly_vertex.getY());
+	this.setVertex(3,poly_vertex);
 	
-	zero_crossing=this.checkForZeroCrossing();
-	this.constructPath();
+	this.setUp();
     }
     /**
      *Constructs a new rectangular <tt>WHPolygon</tt> object.  
@@ -114,32 +118,38 @@ public class WHPolygon{
      */  
     public WHPolygon(Point2D.Double client_location, double heading, double width, double length){
 	
-	//create coordinates[]
-	coordinates= new Point2D.Double[4];
-	double half_width= (new BigDecimal(width).divide(new BigDecimal(2),20,BigDecimal.ROUND_HALF_EVEN)).doubleValue();
+	lats = new double[4];
+	lons = new double[4];
+	double half_width= width/2;
 	//calculate the coordinates of four vertices of the search area
 	Point2D.Double poly_vertex=new Point2D.Double(client_location.getX(),client_location.getY());
 	double poly_side_angle;
 	//calculate a first vertex
 	poly_side_angle=((heading+270)%360);
 	WHGeo.project(poly_vertex,poly_side_angle,half_width);
-	coordinates[0]=new Point2D.Double(poly_vertex.getX(),poly_vertex.getY());
+	this.setVertex(0,poly_vertex);
 	//calculate a second vertex
 	poly_side_angle=heading;
 	WHGeo.project(poly_vertex,poly_side_angle,length);
-	coordinates[1]=new Point2D.Double(poly_vertex.getX(),poly_vertex.getY());
+	this.setVertex(1,poly_vertex);
 	//calculate a third vertex
 	poly_side_angle=((heading+90)%360);
 	WHGeo.project(poly_vertex,poly_side_angle,width);
-	coordinates[2]=new Point2D.Double(poly_vertex.getX(),poly_vertex.getY());
+	this.setVertex(2,poly_vertex);
 	//calculate a fourth vertex
 	poly_side_angle=((heading+180)%360);
 	WHGeo.project(poly_vertex,poly_side_angle,length);
-	coordinates[3]=new Point2D.Double(poly_vertex.getX(),poly_vertex.getY());
-	zero_crossing=this.checkForZeroCrossing();
-	this.constructPath();
+	this.setVertex(3,poly_vertex);
+	this.setUp();
 	
     }
+
+    //constructor for polygons built from arrays that nothing else refers to
+    private WHPolygon(double[] _lats, double[] _lons){
+	lats=_lats;
+	lons=_lons;
+	this.setUp();
+    }
     /**
      * Projects this <tt>WHPolygon</tt> by <tt>project_heading</tt> and <tt>project_range</tt>.
      * @param project_heading the angle of projection, measured from a meridian line.
@@ -147,10 +157,14 @@ public class WHPolygon{
      */
     public void project(double project_heading, double project_range){
 	//project all the vertices
-	Point2D.Double temp_loc;
-	for(int i=0;i<coordinates.length;i++){
-	    WHGeo.project(coordinates[i],project_heading,project_range);
+	Point2D.Double temp_loc=new Point2D.Double();
+	for(int i=0;i<lats.length;i++){
+	    temp_loc.setLocation(lats[i],lons[i]);
+	    WHGeo.project(temp_loc,project_heading,project_range);
+	    this.setVertex(i,temp_loc);
 	}
+	//the area has moved, and may cross the 0 meridian now
+	this.setUp();
     }
     /**
      * Calculates the geographical distance between this <tt>WHPolygon</tt> and a location described by <tt>origin</tt>.
@@ -159,29 +173,7 @@ public class WHPolygon{
      *If <tt>origin</tt> lies within this <tt>WHPolygon</tt>, return 0.
      */
     public double distance(Point2D.Double origin){
-	//if this <tt>WHPolygon</tt> has one vertex => return the distance to that vertex
-	if (coordinates.length == 1){
-	    return WHGeo.distance(origin, coordinates[0]);
-	} else {
-	    //if origin inside this <tt>WHPolygon</tt> => return 0
-	    if (this.contains(origin)){
-		//System.out.println("contained");
-		return 0;
-		//find the distance by calculating the distance to all the sides and taking the minimum
-	    }
-	    else {
-		double d=WHGeo.distance(origin, new Line2D.Double(coordinates[coordinates.length-1],coordinates[0]));
-		//System.out.println("temp_d: "+d);
-		double temp_d;
-		for (int i=1;i<coordinates.length;i++){
-		    temp_d=WHGeo.distance(origin, new Line2D.Double(coordinates[i-1],coordinates[i]));
-		    //System.out.println("temp_d: "+temp_d);
-		    if (temp_d<d)
-			d=temp_d;
-		}
-		return d;
-	    }
-	}
+	return this.distanceAndHeading(origin)[0];
     }
     /**
      * Calculate the heading from a location described by <tt>origin</tt> to this <tt>WHPolygon</tt>.  
@@ -190,29 +182,76 @@ public class WHPolygon{
      * and a line from <tt>origin</tt> to this <tt>WHPolygon</tt>.
      */
     public double heading(Point2D.Double origin){
-	//if this WHPolygon has one vertex => return the heading to that vertex
-	if (coordinates.length == 1){
-	    return WHGeo.heading(origin, coordinates[0]);
-	} else {
-	    //if origin inside this WHPolygon => return 0
-	    if (this.contains(origin)){
-		return 0;
+	return this.distanceAndHeading(origin)[1];
+    }
+    /**
+     * Calculates both the distance and the heading from <tt>origin</tt> to the nearest side of this <tt>WHPolygon</tt>,
+     * in one pass over the sides.  The result is that of <tt>distance()</tt> and <tt>heading()</tt>, at about a third
+     * of the cost of calling both: the bearings along the sides are kept with the <tt>WHPolygon</tt>, and the
+     * heading and distance from each vertex to <tt>origin</tt> are found once, by <tt>WHGeo.distancesAndHeadings()</tt>,
+     * for the two sides that meet there.
+     * @param origin some point on the Earth
+     * @return the array <tt>{distance, heading}</tt>; <tt>{0, 0}</tt> if <tt>origin</tt> lies within this <tt>WHPolygon</tt>.
+     */
+    public double[] distanceAndHeading(Point2D.Double origin){
+	double[] distance = new double[1];
+	double[] heading = new double[1];
+	WHPolygon.distancesAndHeadings(new WHPolygon[]{this},1,origin,distance,heading);
+	return new double[]{distance[0], heading[0]};
+    }
+    /**
+     * Calculates both the distance and the heading from <tt>origin</tt> to each of the first <tt>count</tt> areas
+     * of <tt>polies</tt>, as <tt>distanceAndHeading()</tt> does.  The distances from <tt>origin</tt> to the vertices
+     * of all the areas, and the headings from them to <tt>origin</tt>, are found by one call to
+     * <tt>WHGeo.distancesAndHeadings()</tt>, with the vertices of the areas packed one after the other.
+     * @param polies the areas
+     * @param count number of areas
+     * @param origin some point on the Earth
+     * @param distances the array the distances are written to, at indexes 0 to <tt>count</tt>-1
+     * @param headings the array the headings are written to, at indexes 0 to <tt>count</tt>-1
+     */
+    public static void distancesAndHeadings(WHPolygon[] polies, int count, Point2D.Double origin,
+					    double[] distances, double[] headings){
+	//the first packed vertex of each area, -1 for the areas whose result is known without them
+	int[] offsets = new int[count];
+	int total = 0;
+	for (int i=0;i<count;i++){
+	    WHPolygon poly = polies[i];
+	    offsets[i] = -1;
+	    if (poly.lats.length == 0){
+		//an area without vertices is nowhere
+		distances[i] = Double.POSITIVE_INFINITY;
+		headings[i] = 0;
+	    } else if (poly.lats.length == 1){
+		//if the WHPolygon has one vertex => the distance and heading to that vertex
+		Point2D.Double vertex = new Point2D.Double(poly.lats[0],poly.lons[0]);
+		distances[i] = WHGeo.distance(origin,vertex);
+		headings[i] = WHGeo.heading(origin,vertex);
+	    } else if (poly.contains(origin)){
+		//if origin inside the WHPolygon => 0
+		distances[i] = 0;
+		headings[i] = 0;
 	    } else {
-		//find the closest side
-		double d=WHGeo.distance(origin, new Line2D.Double(coordinates[coordinates.length-1],coordinates[0]));
-		Line2D.Double closest_side = new Line2D.Double(coordinates[coordinates.length-1],coordinates[0]);
-		double temp_d;
-		for (int i=1;i<coordinates.length;i++){
-		    temp_d=WHGeo.distance(origin, new Line2D.Double(coordinates[i-1],coordinates[i]));
-		    if (temp_d<d){
-			d=temp_d;
-			closest_side=new Line2D.Double(coordinates[i-1],coordinates[i]);
-		    }
-		    //System.out.println("Closest side: "+closest_side.getX1()+","+closest_side.getY1()+","+closest_side.getX2()+","+closest_side.getY2());
-		}
-		return WHGeo.heading(origin, closest_side);
+		offsets[i] = total;
+		total += poly.lats.length;
 	    }
 	}
+	double[] lats = new double[total];
+	double[] lons = new double[total];
+	for (int i=0;i<count;i++){
+	    if (offsets[i] >= 0){
+		System.arraycopy(polies[i].lats,0,lats,offsets[i],polies[i].lats.length);
+		System.arraycopy(polies[i].lons,0,lons,offsets[i],polies[i].lons.length);
+	    }
+	}
+	//distance from origin to each vertex, and heading from each vertex to origin
+	double[] vertex_distance = new double[total];
+	double[] to_origin = new double[total];
+	WHGeo.distancesAndHeadings(origin,lats,lons,total,vertex_distance,to_origin);
+	for (int i=0;i<count;i++){
+	    if (offsets[i] >= 0)
+		polies[i].nearestSide(origin,vertex_distance,to_origin,offsets[i],distances,headings,i);
+	}
     }
     /**
      * Checks if <tt>point</tt> lies inside of this <tt>WHPolygon</tt>.
@@ -220,13 +259,66 @@ public class WHPolygon{
      * @return boolean value indicating whether <tt>point</tt> lies within the boundaries of this <tt>WHPolygon</tt>
      */
     public boolean contains(Point2D.Double point){
-	if (zero_crossing){
-	    //System.out.println("left:"+leftPoly.contains(point));
-	    //System.out.println("right:"+rightPoly.contains(point));
-	    return (leftPoly.contains(point) || rightPoly.contains(point));
+	return this.contains(point.getX(),point.getY());
+    }
+    /**
+     * Checks if the point <tt>lat</tt>, <tt>lon</tt> lies inside of this <tt>WHPolygon</tt>.
+     * @param lat latitude of the point
+     * @param lon longitude of the point
+     * @return boolean value indicating whether the point lies within the boundaries of this <tt>WHPolygon</tt>
+     */
+    public boolean contains(double lat, double lon){
+	if (zero_crossing)
+	    return (leftPoly.contains(lat,lon) || rightPoly.contains(lat,lon));
+	if (lat < bounds[0] || lat > bounds[2] || lon < bounds[1] || lon > bounds[3])
+	    return false;
+	//winding number of the sides around the point, nonzero inside as with a GeneralPath
+	int winding = 0;
+	double side;
+	for (int i=0,j=lats.length-1;i<lats.length;j=i++){
+	    //which side of the line from vertex j to vertex i the point is on
+	    side = (lats[i]-lats[j]) * (lon-lons[j]) - (lat-lats[j]) * (lons[i]-lons[j]);
+	    if (lons[j] <= lon){
+		if (lons[i] > lon && side > 0)
+		    winding++;
+	    } else if (lons[i] <= lon && side < 0){
+		winding--;
+	    }
 	}
-	else 
-	    return path.contains(point);
+	return winding != 0;
+    }
+    /**
+     * Checks if this <tt>WHPolygon</tt> and <tt>other</tt> overlap, as the Postgres function <tt>poly_overlap</tt>
+     * decides it: their bounding boxes overlap, and either two of their sides meet, or one lies inside the other.
+     * Areas that only touch overlap.  An area crossing the 0<sup>o</sup> meridian is compared by its two halves,
+     * as a search gives them to Postgres, see <tt>splitAlongGreatMeridian()</tt>.<br>
+     * Two convex areas are compared by the separating axis test, any others side by side.
+     * @param other some area on Earth
+     * @return <tt>true</tt> if the areas overlap.
+     */
+    public boolean overlaps(WHPolygon other){
+	if (zero_crossing)
+	    return leftPoly.overlaps(other) || rightPoly.overlaps(other);
+	if (other.zero_crossing)
+	    return this.overlaps(other.leftPoly) || this.overlaps(other.rightPoly);
+	if (lats.length == 0 || other.lats.length == 0)
+	    return false;
+	//bounding boxes, with the tolerance of Postgres
+	if (bounds[0] > other.bounds[2] + EPSILON || other.bounds[0] > bounds[2] + EPSILON
+	    || bounds[1] > other.bounds[3] + EPSILON || other.bounds[1] > bounds[3] + EPSILON)
+	    return false;
+	if (convex && other.convex && lats.length > 2 && other.lats.length > 2)
+	    return ! this.separatedBySide(other) && ! other.separatedBySide(this);
+	//two sides meet
+	for (int i=0,j=lats.length-1;i<lats.length;j=i++){
+	    for (int k=0,l=other.lats.length-1;k<other.lats.length;l=k++){
+		if (WHPolygon.sidesMeet(lats[j],lons[j],lats[i],lons[i],
+					other.lats[l],other.lons[l],other.lats[k],other.lons[k]))
+		    return true;
+	    }
+	}
+	//no side meets, so either area is inside the other entirely, or they are apart
+	return this.contains(other.lats[0],other.lons[0]) || other.contains(lats[0],lons[0]);
     }
     /**
      * Checks if the area of this <tt>WHPolygon</tt> overlaps a 0<sup>o</sup> meridian.
@@ -259,27 +351,28 @@ public class WHPolygon{
      * @return the number of vertices in this <tt>WHPolygon</tt>.
      */
     public int vertexCount(){
-	return coordinates.length;
+	return lats.length;
     }
     /**
      * Creates an array of lengths of sides of this <tt>WHPolygon</tt>
      * @return an array of lengths of sides of this <tt>WHPolygon</tt>.
      */
     public int[] getSides(){
-	int[] sides=new int[coordinates.length];
-	for (int i=0;i<coordinates.length-1;i++){
-	    sides[i]=(int)WHGeo.distance(coordinates[i],coordinates[i+1]);
+	Point2D.Double[] vertices=this.getVertices();
+	int[] sides=new int[vertices.length];
+	for (int i=0;i<vertices.length-1;i++){
+	    sides[i]=(int)WHGeo.distance(vertices[i],vertices[i+1]);
 	}
-	sides[coordinates.length-1]=(int)WHGeo.distance(coordinates[coordinates.length - 1],coordinates[0]);
+	sides[vertices.length-1]=(int)WHGeo.distance(vertices[vertices.length - 1],vertices[0]);
 	return sides;
     }
     /** Creates an array of locations of vertices of this <tt>WHPolygon</tt>.
      * @return an array of Point2D.Double objects representing the locations of vertices of this <tt>WHPolygon</tt>.
      */
     public Point2D.Double[] getVertices(){
-	Point2D.Double[] copy_of_coordinates = new Point2D.Double[coordinates.length];
-	for (int i=0;i<coordinates.length;i++){
-	    copy_of_coordinates[i] = new Point2D.Double(coordinates[i].getX(),coordinates[i].getY());
+	Point2D.Double[] copy_of_coordinates = new Point2D.Double[lats.length];
+	for (int i=0;i<lats.length;i++){
+	    copy_of_coordinates[i] = new Point2D.Double(lats[i],lons[i]);
 	}
 	return copy_of_coordinates;
     }
@@ -289,14 +382,29 @@ public class WHPolygon{
      * <br><tt>((lat1,lon1),(lat2,lon2)....(latN,lonN))</tt>.
      */
     public String toString(){
-	String poly_description="(";
-	for (int i=0;i<coordinates.length;i++){
-	    poly_description+="("+coordinates[i].getX()+","+coordinates[i].getY()+")";
-	    if (i<coordinates.length-1)
-		poly_description+=",";
+	StringBuffer poly_description=new StringBuffer(2+lats.length*40);
+	poly_description.append('(');
+	for (int i=0;i<lats.length;i++){
+	    if (i>0)
+		poly_description.append(',');
+	    poly_description.append('(').append(lats[i]).append(',').append(lons[i]).append(')');
 	}
-	poly_description+=")";
-	return poly_description;
+	poly_description.append(')');
+	return poly_description.toString();
+    }
+    /**
+     * Returns the bounding box of this <tt>WHPolygon</tt>.
+     * @return an array <tt>{minlat, minlon, maxlat, maxlon}</tt>.
+     */
+    public double[] getBounds(){
+	return bounds.clone();
+    }
+    /**
+     * Returns the bounding box of this <tt>WHPolygon</tt> in the form of a Postgres box.
+     * @return a String <tt>((minlat,minlon),(maxlat,maxlon))</tt>.
+     */
+    public String toBoxString(){
+	return "(("+bounds[0]+","+bounds[1]+"),("+bounds[2]+","+bounds[3]+"))";
     }
     /**
      * Returns a <tt>String</tt> representation of this <tt>WHPolygon</tt>, but with longitudes translated to 
@@ -314,14 +422,15 @@ public class WHPolygon{
      */
     public String toString(int central_meridian){
 	//this works for central meridians and initial coordinates that are in between 0 and 360
-	String poly_description="(";
+	StringBuffer poly_description=new StringBuffer(2+lats.length*40);
+	poly_description.append('(');
 	double lon;
-	for (int i=0;i<coordinates.length;i++){
-	    if (i>0) poly_description+=",";
+	for (int i=0;i<lats.length;i++){
+	    if (i>0) poly_description.append(',');
 	    //append the latitude
-	    poly_description+="("+coordinates[i].getX();
+	    poly_description.append('(').append(lats[i]);
 	    //append the transformed longitude
-	    lon=coordinates[i].getY();
+	    lon=lons[i];
 	    if (!(lon>=central_meridian-180 && lon<=central_meridian+180)){
 		//put lon in the (0,360)range
 		if (lon>central_meridian+180)
@@ -330,122 +439,280 @@ public class WHPolygon{
 		    //lon<central_meridian-180
 		    lon=lon+360;
 	    }
-	    poly_description+=","+lon+")";
+	    poly_description.append(',').append(lon).append(')');
 	}
-	poly_description+=")";
-	return poly_description;
+	poly_description.append(')');
+	return poly_description.toString();
     }
     /**
      * Overrides standard clone method.  It creates a deep copy, therefore it also clones all the fields.
      * @return <tt>Object</tt> that is an exact copy of this <tt>WHPolygon</tt>.
      */
     public Object clone(){
-	return new WHPolygon(coordinates);
+	return new WHPolygon(lats.clone(),lons.clone());
     }
 
     //
     //PRIVATE METHODS
     //
 
-    private void constructPath(){
-	path = new GeneralPath();
-	path.moveTo((float)coordinates[0].getX(),(float)coordinates[0].getY());
-	for (int i=1;i<coordinates.length;i++){
-	    path.lineTo((float)coordinates[i].getX(),(float)coordinates[i].getY());
+    private void setVertex(int i, Point2D.Double vertex){
+	lats[i]=vertex.getX();
+	lons[i]=vertex.getY();
+    }
+
+    //separating axis test: true if a side of this convex area has all of the other on its outer side
+    private boolean separatedBySide(WHPolygon other){
+	//the sign of the area tells which side is outer
+	double area = 0;
+	for (int i=0,j=lats.length-1;i<lats.length;j=i++)
+	    area += lats[j]*lons[i] - lats[i]*lons[j];
+	for (int i=0,j=lats.length-1;i<lats.length;j=i++){
+	    double side_lat = lats[i]-lats[j];
+	    double side_lon = lons[i]-lons[j];
+	    boolean separated = true;
+	    for (int k=0;k<other.lats.length && separated;k++){
+		double turn = side_lat*(other.lons[k]-lons[j]) - side_lon*(other.lats[k]-lats[j]);
+		separated = (area > 0) ? turn < 0 : turn > 0;
+	    }
+	    if (separated)
+		return true;
+	}
+	return false;
+    }
+
+    //true if the side from (lat1,lon1) to (lat2,lon2) and the side from (lat3,lon3) to (lat4,lon4) have a point in common
+    private static boolean sidesMeet(double lat1, double lon1, double lat2, double lon2,
+				     double lat3, double lon3, double lat4, double lon4){
+	double d1 = WHPolygon.turn(lat3,lon3,lat4,lon4,lat1,lon1);
+	double d2 = WHPolygon.turn(lat3,lon3,lat4,lon4,lat2,lon2);
+	double d3 = WHPolygon.turn(lat1,lon1,lat2,lon2,lat3,lon3);
+	double d4 = WHPolygon.turn(lat1,lon1,lat2,lon2,lat4,lon4);
+	if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0)))
+	    return true;
+	//an end of one side on the other side
+	return (d1 == 0 && WHPolygon.between(lat3,lon3,lat4,lon4,lat1,lon1))
+	    || (d2 == 0 && WHPolygon.between(lat3,lon3,lat4,lon4,lat2,lon2))
+	    || (d3 == 0 && WHPolygon.between(lat1,lon1,lat2,lon2,lat3,lon3))
+	    || (d4 == 0 && WHPolygon.between(lat1,lon1,lat2,lon2,lat4,lon4));
+    }
+
+    //which way the path from 1 through 2 turns to reach 3: positive, negative, or 0 for no turn
+    private static double turn(double lat1, double lon1, double lat2, double lon2, double lat3, double lon3){
+	return (lat2-lat1)*(lon3-lon1) - (lon2-lon1)*(lat3-lat1);
+    }
+
+    //true if point 3 lies in the box spanned by points 1 and 2
+    private static boolean between(double lat1, double lon1, double lat2, double lon2, double lat3, double lon3){
+	return Math.min(lat1,lat2) <= lat3 && lat3 <= Math.max(lat1,lat2)
+	    && Math.min(lon1,lon2) <= lon3 && lon3 <= Math.max(lon1,lon2);
+    }
+
+    private void findSideBearings(){
+	int n = lats.length;
+	double[] forth = new double[n];
+	double[] back = new double[n];
+	WHGeo.sideHeadings(lats,lons,n,forth,back);
+	back_bearings = back;
+	side_bearings = forth;
+    }
+
+    //finds the distance and heading from origin to the nearest side, into distances and headings at index,
+    //from the distances and headings of the vertices of this WHPolygon, found at offset of vertex_distance and to_origin
+    private void nearestSide(Point2D.Double origin, double[] vertex_distance, double[] to_origin, int offset,
+			     double[] distances, double[] headings, int index){
+	int n = lats.length;
+	if (side_bearings == null)
+	    this.findSideBearings();
+	//find the closest side, the sides from vertex n-1 to 0, then from i-1 to i
+	int closest = 0;
+	double d = Double.POSITIVE_INFINITY;
+	double temp_d;
+	for (int i=0;i<n;i++){
+	    int from = (i+n-1)%n;
+	    double angle_from = WHPolygon.angle(side_bearings[from],to_origin[offset+from]);
+	    double angle_to = WHPolygon.angle(back_bearings[from],to_origin[offset+i]);
+	    if (angle_from > 90 || angle_to > 90)
+		temp_d = Math.min(vertex_distance[offset+from],vertex_distance[offset+i]);
+	    else
+		temp_d = vertex_distance[offset+from] * Math.sin(Math.toRadians(angle_from));
+	    if (temp_d < d){
+		d = temp_d;
+		closest = i;
+	    }
+	}
+	//the heading to the closest side, taken from its upper vertex
+	int from = (closest+n-1)%n;
+	int upper;
+	int lower;
+	double upper_bearing;
+	double lower_bearing;
+	if (lats[from] > lats[closest]){
+	    upper = from;
+	    lower = closest;
+	    upper_bearing = side_bearings[from];
+	    lower_bearing = back_bearings[from];
+	} else {
+	    upper = closest;
+	    lower = from;
+	    upper_bearing = back_bearings[from];
+	    lower_bearing = side_bearings[from];
+	}
+	double h;
+	if (WHPolygon.angle(upper_bearing,to_origin[offset+upper]) > 90
+	    || WHPolygon.angle(lower_bearing,to_origin[offset+lower]) > 90){
+	    //the heading of the closer vertex
+	    int nearer = (vertex_distance[offset+upper] < vertex_distance[offset+lower]) ? upper : lower;
+	    h = WHGeo.heading(origin.getX(),origin.getY(),lats[nearer],lons[nearer]);
+	} else if (upper_bearing < to_origin[offset+upper]){
+	    //perpendicular to the side, origin is below the side
+	    h = ((upper_bearing-90)+360)%360;
+	} else {
+	    h = ((upper_bearing+90)+360)%360;
 	}
-	path.closePath();
+	distances[index] = d;
+	headings[index] = h;
+    }
+
+    //the angle between two bearings, 0 to 180
+    private static double angle(double bearing1, double bearing2){
+	double angle = Math.abs(bearing1-bearing2);
+	return (angle > 180) ? 360-angle : angle;
+    }
+
+    //finds the bounding box, and the halves of an area crossing the 0 meridian
+    private void setUp(){
+	bounds = new double[4];
+	if (lats.length > 0){
+	    bounds[0]=bounds[2]=lats[0];
+	    bounds[1]=bounds[3]=lons[0];
+	}
+	for (int i=1;i<lats.length;i++){
+	    if (lats[i]<bounds[0]) bounds[0]=lats[i];
+	    if (lons[i]<bounds[1]) bounds[1]=lons[i];
+	    if (lats[i]>bounds[2]) bounds[2]=lats[i];
+	    if (lons[i]>bounds[3]) bounds[3]=lons[i];
+	}
+	leftPoly=null;
+	rightPoly=null;
+	side_bearings=null;
+	back_bearings=null;
+	zero_crossing=this.checkForZeroCrossing();
+	convex=this.checkConvex();
+    }
+
+    private boolean checkConvex(){
+	int n = lats.length;
+	//a point or a side has no inside to test by its sides
+	if (n < 3)
+	    return false;
+	boolean left = false;
+	boolean right = false;
+	//a star turns the same way at every vertex too, but goes north and south more than once
+	int lat_changes = 0;
+	int lon_changes = 0;
+	double last_dlat = 0;
+	double last_dlon = 0;
+	for (int i=0;i<n;i++){
+	    double turn = WHPolygon.turn(lats[i],lons[i],lats[(i+1)%n],lons[(i+1)%n],lats[(i+2)%n],lons[(i+2)%n]);
+	    if (turn > 0) left = true;
+	    if (turn < 0) right = true;
+	}
+	for (int i=0;i<=n;i++){
+	    double dlat = lats[(i+1)%n]-lats[i%n];
+	    double dlon = lons[(i+1)%n]-lons[i%n];
+	    if (dlat != 0){
+		if (last_dlat != 0 && (dlat > 0) != (last_dlat > 0)) lat_changes++;
+		last_dlat = dlat;
+	    }
+	    if (dlon != 0){
+		if (last_dlon != 0 && (dlon > 0) != (last_dlon > 0)) lon_changes++;
+		last_dlon = dlon;
+	    }
+	}
+	return (left != right) && lat_changes <= 2 && lon_changes <= 2;
     }
 
     private boolean checkForZeroCrossing(){
 	
 	boolean result = false;
-	if (coordinates.length>1){
+	int n = lats.length;
+	if (n>1){
 	    double lon1;
 	    double lon2;
 	    //check for the zero crossing 
-	    for (int i=1;i<coordinates.length;i++){
+	    for (int i=1;i<=n && !result;i++){
 		//if the difference between longitudes of two points is more than 180 at least once
 		//the result will be true
-		lon1=coordinates[i-1].getY();
-		lon2=coordinates[i].getY();
-		result=(result || ((Math.abs(lon1-lon2)>180)&&(lon1!=0)&&(lon2!=0)&&(lon1!=360)&&(lon2!=360)));
-		//System.out.println("Result: "+result);
+		lon1=lons[i-1];
+		lon2=lons[i%n];
+		result=((Math.abs(lon1-lon2)>180)&&(lon1!=0)&&(lon2!=0)&&(lon1!=360)&&(lon2!=360));
 	    }
-	    lon1=coordinates[coordinates.length-1].getY();
-	    lon2=coordinates[0].getY();
-	    result=(result || ((Math.abs(lon1-lon2)>180)&&(lon1!=0)&&(lon2!=0)&&(lon1!=360)&&(lon2!=360)));
-	    //System.out.println("Result: "+result);
 	    if (result){
-		//set up half-polies
-		Vector coordinatesL=new Vector();
-		Vector coordinatesR=new Vector();
-		boolean left = (coordinates[0].getY()>180);  
+		//set up half-polies; each gets at most every vertex and two crossing points per side
+		double[] lats_l=new double[3*n];
+		double[] lons_l=new double[3*n];
+		double[] lats_r=new double[3*n];
+		double[] lons_r=new double[3*n];
+		int count_l=0;
+		int count_r=0;
+		boolean left = (lons[0]>180);  
 		
-		Point2D.Double p1;
-		Point2D.Double p2;
+		Point2D.Double p1=new Point2D.Double();
+		Point2D.Double p2=new Point2D.Double();
+		Point2D.Double gm=new Point2D.Double();
 		double lat1;
 		double lat2;
 		
-		for (int i=1;i<=coordinates.length;i++){
-		    p1=coordinates[(i-1)%coordinates.length];
-		    p2=coordinates[(i)%coordinates.length];
+		for (int i=1;i<=n;i++){
+		    int from=(i-1)%n;
+		    int to=i%n;
+		    p1.setLocation(lats[from],lons[from]);
+		    p2.setLocation(lats[to],lons[to]);
 		    
-		    lon1=p1.getY();
-		    lon2=p2.getY();
-		    lat1=p1.getX();
-		    lat2=p2.getX();
+		    lon1=lons[from];
+		    lon2=lons[to];
+		    lat1=lats[from];
+		    lat2=lats[to];
 
 		    if (Math.abs(lon1-lon2)>180){
 			//zero crossing
 
 			//find intersection of the side and Great Meridian
-			double distanceP1GM=WHGeo.distance(p1,new Point2D.Double(lat1,0));
-			double distanceGMP2=WHGeo.distance(new Point2D.Double(lat2,0),p2);
+			gm.setLocation(lat1,0);
+			double distanceP1GM=WHGeo.distance(p1,gm);
+			gm.setLocation(lat2,0);
+			double distanceGMP2=WHGeo.distance(gm,p2);
 			double lat=((distanceP1GM/(distanceP1GM+distanceGMP2))*(lat2-lat1))+lat1;
-			//System.out.println("Lat :"+lat);
 			Point2D.Double cross_point = new Point2D.Double(lat,0);
 			WHGeo.toWHFormat(cross_point);
 			//add that point to both polygons, but change longitude to 360 on left
-			coordinatesL.addElement(new Point2D.Double(cross_point.getX(),cross_point.getY()+360));
-			coordinatesR.addElement(cross_point);
+			lats_l[count_l]=cross_point.getX();
+			lons_l[count_l++]=cross_point.getY()+360;
+			lats_r[count_r]=cross_point.getX();
+			lons_r[count_r++]=cross_point.getY();
 			//change left variable
 			left = ! left;
 		    }
-		    if (left)
-			coordinatesL.addElement(p2);
-		    else
-			coordinatesR.addElement(p2);
+		    if (left){
+			lats_l[count_l]=lat2;
+			lons_l[count_l++]=lon2;
+		    } else {
+			lats_r[count_r]=lat2;
+			lons_r[count_r++]=lon2;
+		    }
 		}
 		
-		//change the vectors into arrays and create polies
-		Point2D.Double[] left_poly_array= new Point2D.Double[coordinatesL.size()];
-		coordinatesL.copyInto(left_poly_array);
-		Point2D.Double[] right_poly_array= new Point2D.Double[coordinatesL.size()];
-		coordinatesR.copyInto(right_poly_array);
-		leftPoly = new WHPolygon(left_poly_array);
-		rightPoly= new WHPolygon(right_poly_array);
+		leftPoly = new WHPolygon(WHPolygon.copyOf(lats_l,count_l),WHPolygon.copyOf(lons_l,count_l));
+		rightPoly= new WHPolygon(WHPolygon.copyOf(lats_r,count_r),WHPolygon.copyOf(lons_r,count_r));
 	    }
 	}
 	return result;
     }
-    private static double half_diagonal(double wid, double len){
-	double angle = WHPolygon.half_diagonal_angle(wid,len);
-	double c = ((new BigDecimal(wid)).divide(new BigDecimal(Math.sin(Math.toRadians(angle))),20,BigDecimal.ROUND_HALF_EVEN)).doubleValue();
-	return c;
-    }
-    
-    private static double half_diagonal_angle(double wid, double len){
-	double tangent = ((new BigDecimal(wid)).divide(new BigDecimal(len),20,BigDecimal.ROUND_HALF_EVEN)).doubleValue();
-	return Math.toDegrees(Math.atan(tangent));
+
+    private static double[] copyOf(double[] values, int length){
+	double[] copy=new double[length];
+	System.arraycopy(values,0,copy,0,length);
+	return copy;
     }
 }
-
-
-
-
-
-
-
-
-
-
@@ -0,0 +1,99 @@
+package com.wherehoo;
+
+import java.io.IOException;
+
+/**
+ * <tt>WHProtocol</tt> encodes the replies of the server for one client, and decodes what the client sends
+ * while a search delivers its results.  Wherehoo speaks the original line protocol (<tt>WHTextProtocol</tt>)
+ * and a compact binary framing (<tt>WHBinaryProtocol</tt>), which a client chooses with its first byte.
+ * Operations and the data collector reply through this class, so they do not depend on the wire format.<br>
+ * Instead of asking for the search results one at a time, a client may ask for a batch of them, see
+ * <tt>ROW_BATCH</tt>.  The replies between <tt>beginBatch()</tt> and <tt>endBatch()</tt> are collected in
+ * memory and sent with one write and one flush.
+ */
+abstract class WHProtocol {
+
+    /** row command: send the next record header */
+    static final int ROW_NEXT = 1;
+    /** row command: skip this record, send the next record header */
+    static final int ROW_SKIP = 2;
+    /** row command: send the metadata of this record */
+    static final int ROW_META = 3;
+    /** row command: send the data of this record */
+    static final int ROW_DATA = 4;
+    /** row command: anything else, which ends the delivery of results */
+    static final int ROW_STOP = 5;
+    /** row command: send the next <tt>getBatchSize()</tt> record headers at once, with their metadata
+	if <tt>getBatchMeta()</tt> and their data if <tt>getBatchData()</tt> */
+    static final int ROW_BATCH = 6;
+
+    /** parameters of the last ROW_BATCH command */
+    protected int batch_size;
+    protected boolean batch_meta;
+    protected boolean batch_data;
+
+    /** answers IDT with the server parameters */
+    abstract void header() throws IOException;
+    /** acknowledges NOP or a received DAT payload */
+    abstract void ack() throws IOException;
+    /** accepts a command block */
+    abstract void ok() throws IOException;
+    /**
+     * Rejects a command block.
+     * @param reason the names of the offending commands, space delimited
+     */
+    abstract void nak(String reason) throws IOException;
+    /** starts the response to a tagged command block */
+    abstract void tag(String tag) throws IOException;
+    /** sends the result of a count */
+    abstract void count(int count) throws IOException;
+    /** sends the uid of an inserted record */
+    abstract void uid(String uid) throws IOException;
+    /** sends the result of a delete */
+    abstract void deleted(boolean deleted) throws IOException;
+    /**
+     * Sends the description of one search result.
+     * @param bearing bearing of the record as seen from the search point, in degrees
+     * @param heading heading from the search point to the record, in degrees
+     * @param distance distance to the record, in meters
+     * @param ttl seconds the record stays alive
+     * @param bytes length of the data of the record
+     * @param protocol protocol of the record
+     * @param mimetype mimetype of the record
+     * @param has_meta whether the record has metadata
+     */
+    abstract void record(double bearing, double heading, double distance, long ttl, int bytes,
+			 String protocol, String mimetype, boolean has_meta) throws IOException;
+    /** sends the metadata of the current search result */
+    abstract void meta(String meta) throws IOException;
+    /** sends the data of the current search result */
+    abstract void data(byte[] data) throws IOException;
+    /**
+     * Reads what the client wants done with the current search result.
+     * @return one of the <tt>ROW_</tt> constants.
+     */
+    abstract int readRowCommand() throws IOException;
+    /** @return number of records the client asked for with its last ROW_BATCH, at most <tt>WHServer.MAXBATCH</tt> */
+    int getBatchSize(){
+	return batch_size;
+    }
+    /** @return <tt>true</tt> if the metadata of the records goes with the batch */
+    boolean getBatchMeta(){
+	return batch_meta;
+    }
+    /** @return <tt>true</tt> if the data of the records goes with the batch */
+    boolean getBatchData(){
+	return batch_data;
+    }
+    /** starts collecting the replies in memory */
+    abstract void beginBatch();
+    /** sends the replies collected since <tt>beginBatch()</tt>, and flushes them */
+    abstract void endBatch() throws IOException;
+    /**
+     * Ends the response to a command block on a kept-alive session.
+     * @param operations_left number of further operations the session may run
+     */
+    abstract void end(int operations_left) throws IOException;
+    /** ends the session */
+    abstract void bye() throws IOException;
+}
@@ -0,0 +1,350 @@
+package com.wherehoo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <tt>WHRTree</tt> is a <tt>WHSpatialIndex</tt> that keeps the areas of the live records in an R-tree of their bounding boxes.
+ * Nodes hold between <tt>MIN_ENTRIES</tt> and <tt>MAX_ENTRIES</tt> entries and are split quadratically
+ * (Guttman, 1984).  Searches share a read lock, updates take the write lock.
+ */
+class WHRTree extends WHSpatialIndex {
+
+    private static final int MAX_ENTRIES = 16;
+    private static final int MIN_ENTRIES = 6;
+
+    private Node root;
+    //uniqueidsha -> the entries of the record
+    private HashMap<String,LinkedList<Entry>> records;
+    private int size;
+    private ReentrantReadWriteLock lock;
+
+    /**
+     * Constructs a new, empty <tt>WHRTree</tt>.
+     */
+    WHRTree(){
+	root = new Node(true);
+	records = new HashMap<String,LinkedList<Entry>>();
+	size = 0;
+	lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Adds one row of a record.
+     * @param uniqueidsha uid of the record
+     * @param area the area of the row
+     * @param end_time end of the life of the record, msec since the epoch
+     */
+    void insert(String uniqueidsha, WHPolygon area, long end_time){
+	Entry entry = new Entry(uniqueidsha, area, end_time);
+	lock.writeLock().lock();
+	try {
+	    LinkedList<Entry> entries = records.get(uniqueidsha);
+	    if (entries == null){
+		entries = new LinkedList<Entry>();
+		records.put(uniqueidsha, entries);
+	    }
+	    entries.add(entry);
+	    this.insertEntry(entry);
+	    size++;
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Removes all rows of a record.
+     * @param uniqueidsha uid of the record
+     * @return <tt>false</tt> if the record was not in the tree.
+     */
+    boolean remove(String uniqueidsha){
+	lock.writeLock().lock();
+	try {
+	    LinkedList<Entry> entries = records.remove(uniqueidsha);
+	    if (entries == null)
+		return false;
+	    while (! entries.isEmpty()){
+		this.removeEntry(entries.removeFirst());
+		size--;
+	    }
+	    return true;
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Adds to <tt>result</tt> the uniqueidsha of the records alive at <tt>now</tt>, whose area
+     * overlaps <tt>search</tt>.
+     * @param search the search area, not crossing the 0 meridian
+     * @param now msec since the epoch
+     * @param result the set the uids are added to
+     */
+    void collect(WHPolygon search, long now, Set<String> result){
+	double[] bounds = search.getBounds();
+	lock.readLock().lock();
+	try {
+	    LinkedList<Node> stack = new LinkedList<Node>();
+	    stack.add(root);
+	    while (! stack.isEmpty()){
+		Node node = stack.removeLast();
+		for (int i=0;i<node.children.size();i++){
+		    Box child = node.children.get(i);
+		    if (! child.overlaps(bounds))
+			continue;
+		    if (node.leaf){
+			Entry entry = (Entry) child;
+			if (entry.end_time >= now && entry.area.overlaps(search))
+			    result.add(entry.uniqueidsha);
+		    } else {
+			stack.add((Node) child);
+		    }
+		}
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /** @return number of rows in the tree */
+    int size(){
+	lock.readLock().lock();
+	try {
+	    return size;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    public String toString(){
+	lock.readLock().lock();
+	try {
+	    return "r-tree: "+records.size()+" records, "+size+" rows";
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    //
+    //PRIVATE METHODS
+    //
+
+    private void insertEntry(Entry entry){
+	Node leaf = root;
+	//descend to the leaf whose box grows least
+	while (! leaf.leaf){
+	    Node best = null;
+	    double best_growth = Double.POSITIVE_INFINITY;
+	    double best_area = Double.POSITIVE_INFINITY;
+	    for (int i=0;i<leaf.children.size();i++){
+		Node child = (Node) leaf.children.get(i);
+		double area = child.area();
+		double growth = child.unionArea(entry) - area;
+		if (growth < best_growth || (growth == best_growth && area < best_area)){
+		    best = child;
+		    best_growth = growth;
+		    best_area = area;
+		}
+	    }
+	    leaf = best;
+	}
+	leaf.add(entry);
+	this.adjust(leaf, (leaf.children.size() > MAX_ENTRIES) ? this.split(leaf) : null);
+    }
+
+    //fixes the boxes from node up to the root, and adds the sibling of a split node to its parent
+    private void adjust(Node node, Node sibling){
+	while (true){
+	    node.recalculate();
+	    Node parent = node.parent;
+	    if (parent == null){
+		if (sibling != null){
+		    //the root was split, the tree grows by one level
+		    root = new Node(false);
+		    root.add(node);
+		    root.add(sibling);
+		    root.recalculate();
+		}
+		return;
+	    }
+	    if (sibling != null){
+		parent.add(sibling);
+		sibling = (parent.children.size() > MAX_ENTRIES) ? this.split(parent) : null;
+	    }
+	    node = parent;
+	}
+    }
+
+    //quadratic split: node keeps one group of its children, the returned sibling gets the other
+    private Node split(Node node){
+	ArrayList<Box> rest = new ArrayList<Box>(node.children);
+	node.children.clear();
+	Node sibling = new Node(node.leaf);
+
+	//the two children that would waste the most area together start the groups
+	int seed_a = 0;
+	int seed_b = 1;
+	double worst = Double.NEGATIVE_INFINITY;
+	for (int i=0;i<rest.size();i++){
+	    Box a = rest.get(i);
+	    for (int j=i+1;j<rest.size();j++){
+		Box b = rest.get(j);
+		double waste = a.unionArea(b) - a.area() - b.area();
+		if (waste > worst){
+		    worst = waste;
+		    seed_a = i;
+		    seed_b = j;
+		}
+	    }
+	}
+	node.add(rest.get(seed_a));
+	sibling.add(rest.get(seed_b));
+	rest.remove(seed_b);
+	rest.remove(seed_a);
+	node.recalculate();
+	sibling.recalculate();
+
+	while (! rest.isEmpty()){
+	    //a group that needs all remaining children to reach the minimum gets them
+	    if (node.children.size() + rest.size() <= MIN_ENTRIES){
+		while (! rest.isEmpty())
+		    node.add(rest.remove(rest.size()-1));
+		break;
+	    }
+	    if (sibling.children.size() + rest.size() <= MIN_ENTRIES){
+		while (! rest.isEmpty())
+		    sibling.add(rest.remove(rest.size()-1));
+		break;
+	    }
+	    //assign the child with the strongest preference for one of the groups
+	    int next = 0;
+	    double preference = Double.NEGATIVE_INFINITY;
+	    for (int i=0;i<rest.size();i++){
+		Box b = rest.get(i);
+		double d = Math.abs((node.unionArea(b) - node.area()) - (sibling.unionArea(b) - sibling.area()));
+		if (d > preference){
+		    preference = d;
+		    next = i;
+		}
+	    }
+	    Box b = rest.remove(next);
+	    double growth_node = node.unionArea(b) - node.area();
+	    double growth_sibling = sibling.unionArea(b) - sibling.area();
+	    Node group;
+	    if (growth_node != growth_sibling)
+		group = (growth_node < growth_sibling) ? node : sibling;
+	    else if (node.area() != sibling.area())
+		group = (node.area() < sibling.area()) ? node : sibling;
+	    else
+		group = (node.children.size() <= sibling.children.size()) ? node : sibling;
+	    group.add(b);
+	    group.recalculate();
+	}
+	node.recalculate();
+	sibling.recalculate();
+	return sibling;
+    }
+
+    //removes an entry; nodes left with too few children are dissolved and their entries inserted again
+    private void removeEntry(Entry entry){
+	Node node = entry.parent;
+	node.children.remove(entry);
+	LinkedList<Entry> orphans = new LinkedList<Entry>();
+	while (node.parent != null){
+	    Node parent = node.parent;
+	    if (node.children.size() < MIN_ENTRIES){
+		parent.children.remove(node);
+		WHRTree.collectEntries(node, orphans);
+	    } else {
+		node.recalculate();
+	    }
+	    node = parent;
+	}
+	root.recalculate();
+	while (! root.leaf && root.children.size() == 1){
+	    root = (Node) root.children.get(0);
+	    root.parent = null;
+	}
+	if (! root.leaf && root.children.isEmpty())
+	    root = new Node(true);
+	while (! orphans.isEmpty())
+	    this.insertEntry(orphans.removeFirst());
+    }
+
+    private static void collectEntries(Node node, LinkedList<Entry> result){
+	for (int i=0;i<node.children.size();i++){
+	    if (node.leaf)
+		result.add((Entry) node.children.get(i));
+	    else
+		WHRTree.collectEntries((Node) node.children.get(i), result);
+	}
+    }
+
+    //a rectangle in lat, lon; the box of an empty node is inverted, and overlaps nothing
+    private static abstract class Box {
+	double min_x = Double.POSITIVE_INFINITY;
+	double min_y = Double.POSITIVE_INFINITY;
+	double max_x = Double.NEGATIVE_INFINITY;
+	double max_y = Double.NEGATIVE_INFINITY;
+	Node parent;
+
+	double area(){
+	    return (max_x - min_x) * (max_y - min_y);
+	}
+	double unionArea(Box b){
+	    return (Math.max(max_x, b.max_x) - Math.min(min_x, b.min_x))
+		* (Math.max(max_y, b.max_y) - Math.min(min_y, b.min_y));
+	}
+	boolean overlaps(double[] b){
+	    return min_x <= b[2] && b[0] <= max_x && min_y <= b[3] && b[1] <= max_y;
+	}
+    }
+
+    private static class Node extends Box {
+	boolean leaf;
+	//Entry objects in a leaf, Node objects above
+	ArrayList<Box> children;
+
+	Node(boolean _leaf){
+	    leaf = _leaf;
+	    children = new ArrayList<Box>(MAX_ENTRIES + 1);
+	}
+	void add(Box child){
+	    children.add(child);
+	    child.parent = this;
+	}
+	void recalculate(){
+	    min_x = Double.POSITIVE_INFINITY;
+	    min_y = Double.POSITIVE_INFINITY;
+	    max_x = Double.NEGATIVE_INFINITY;
+	    max_y = Double.NEGATIVE_INFINITY;
+	    for (int i=0;i<children.size();i++){
+		Box child = children.get(i);
+		min_x = Math.min(min_x, child.min_x);
+		min_y = Math.min(min_y, child.min_y);
+		max_x = Math.max(max_x, child.max_x);
+		max_y = Math.max(max_y, child.max_y);
+	    }
+	}
+    }
+
+    private static class Entry extends Box {
+	String uniqueidsha;
+	WHPolygon area;
+	long end_time;
+
+	Entry(String _uniqueidsha, WHPolygon _area, long _end_time){
+	    uniqueidsha = _uniqueidsha;
+	    area = _area;
+	    double[] bounds = area.getBounds();
+	    min_x = bounds[0];
+	    min_y = bounds[1];
+	    max_x = bounds[2];
+	    max_y = bounds[3];
+	    end_time = _end_time;
+	}
+    }
+}
@@ -0,0 +1,118 @@
+package com.wherehoo;
+
+import java.sql.*;
+
+/**
+ * <tt>WHSchema</tt> brings the <tt>wherehoo_polygons</tt> table up to date when the server starts.
+ * The table of the first Wherehoo servers has no index that helps a search, so every search and count
+ * compared its area with every stored polygon, alive or expired.  <tt>migrate()</tt> adds:<br>
+ * <tt>bbox</tt>, a box column holding the bounding box of <tt>area</tt>, filled in for the existing rows
+ * and set by every insert;<br>
+ * <tt>wherehoo_polygons_bbox</tt>, a GiST index on <tt>bbox</tt>, so that a search first picks the records
+ * whose bounding box overlaps the bounding box of the search area, and compares the polygons of those only;<br>
+ * <tt>wherehoo_polygons_time</tt>, an index on <tt>end_time</tt> and <tt>begin_time</tt>, for the records alive now.<br>
+ * Every step is skipped if it was already done, so <tt>migrate()</tt> can run at every start.
+ * <tt>checkPlan()</tt> asks Postgres whether it can use the bbox index for a search.
+ */
+class WHSchema {
+
+    /** the table of stored records */
+    static final String TABLE = "wherehoo_polygons";
+    /** name of the spatial index */
+    static final String BBOX_INDEX = "wherehoo_polygons_bbox";
+    /** name of the time index */
+    static final String TIME_INDEX = "wherehoo_polygons_time";
+    /** number of records whose bounding box is filled in by one statement of the migration */
+    static final int MIGRATION_BATCH = 1000;
+
+    private WHConnectionPool connection_pool;
+
+    /**
+     * Constructs a new <tt>WHSchema</tt>.
+     * @param pool the pool the schema changes take their database connection from
+     */
+    WHSchema(WHConnectionPool pool){
+	connection_pool = pool;
+    }
+
+    /**
+     * Adds the bbox column and the indexes if they are missing, and fills in the bounding box of the records
+     * stored without one.
+     */
+    void migrate() throws SQLException {
+	Connection C = connection_pool.getConnection();
+	try {
+	    Statement s = C.createStatement();
+	    if (! WHSchema.hasColumn(C,TABLE,"bbox")){
+		System.out.println("Adding column bbox to "+TABLE);
+		s.executeUpdate("alter table "+TABLE+" add column bbox box");
+	    }
+	    //each batch commits on its own, so a large table is not locked for the whole migration.  A batch is
+	    //picked by ctid, since a uid may be missing; a row without an area keeps no bbox, and is not picked again
+	    int updated;
+	    int total = 0;
+	    do {
+		updated = s.executeUpdate("update "+TABLE+" set bbox = box(area) where ctid = any(array(select ctid from "+TABLE
+					  +" where bbox is null and area is not null limit "+MIGRATION_BATCH+"))");
+		total += updated;
+	    } while (updated > 0);
+	    if (total > 0)
+		System.out.println("Filled in the bounding box of "+total+" records");
+	    if (! WHSchema.hasIndex(C,TABLE,BBOX_INDEX)){
+		System.out.println("Creating index "+BBOX_INDEX);
+		s.executeUpdate("create index "+BBOX_INDEX+" on "+TABLE+" using gist (bbox)");
+	    }
+	    if (! WHSchema.hasIndex(C,TABLE,TIME_INDEX)){
+		System.out.println("Creating index "+TIME_INDEX);
+		s.executeUpdate("create index "+TIME_INDEX+" on "+TABLE+" (end_time, begin_time)");
+	    }
+	    s.executeUpdate("analyze "+TABLE);
+	    s.close();
+	} finally {
+	    connection_pool.releaseConnection(C);
+	}
+    }
+
+    /**
+     * Asks Postgres for the plan of a search and looks for the bbox index in it.  Sequential scans are
+     * turned off for the check, since on a small table they are cheaper and would always be chosen.
+     * @return <tt>true</tt> if a search can use the bbox index.
+     */
+    boolean checkPlan() throws SQLException {
+	Connection C = connection_pool.getConnection();
+	try {
+	    C.setAutoCommit(false);
+	    Statement s = C.createStatement();
+	    s.execute("set local enable_seqscan = off");
+	    ResultSet rs = s.executeQuery("explain select uniqueidsha from "+TABLE+" where bbox && box '((0,0),(1,1))' "
+					  +"and end_time >= now()");
+	    StringBuffer plan = new StringBuffer();
+	    while (rs.next())
+		plan.append(rs.getString(1)).append("\n");
+	    rs.close();
+	    s.close();
+	    boolean indexed = plan.toString().indexOf(BBOX_INDEX) >= 0;
+	    if (! indexed)
+		System.out.println("A search cannot use "+BBOX_INDEX+", the plan is:\n"+plan);
+	    return indexed;
+	} finally {
+	    connection_pool.releaseConnection(C);
+	}
+    }
+
+    private static boolean hasColumn(Connection C, String table, String column) throws SQLException {
+	ResultSet rs = C.getMetaData().getColumns(null,null,table,column);
+	boolean found = rs.next();
+	rs.close();
+	return found;
+    }
+
+    private static boolean hasIndex(Connection C, String table, String index) throws SQLException {
+	ResultSet rs = C.getMetaData().getIndexInfo(null,null,table,false,true);
+	boolean found = false;
+	while (rs.next() && ! found)
+	    found = index.equalsIgnoreCase(rs.getString("INDEX_NAME"));
+	rs.close();
+	return found;
+    }
+}
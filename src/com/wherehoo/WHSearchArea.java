@@ -38,7 +38,23 @@ public class WHSearchArea{
     }
 
     protected double bearing(WHPolygon point_of_interest){
-	double temp_heading = this.heading(point_of_interest);
-	return (((temp_heading - hdg)+360)%360);
+	return this.bearing(this.heading(point_of_interest));
+    }
+
+    //{distance, heading} to point_of_interest, found together
+    protected double[] distanceAndHeading(WHPolygon point_of_interest){
+	return point_of_interest.distanceAndHeading(cl);
+    }
+
+    //distance, heading and bearing to the first count of polies, into the arrays at the same indexes
+    protected void distancesAndHeadings(WHPolygon[] polies, int count, double[] distances, double[] headings, double[] bearings){
+	WHPolygon.distancesAndHeadings(polies,count,cl,distances,headings);
+	for (int i=0;i<count;i++)
+	    bearings[i] = (((headings[i] - hdg)+360)%360);
+    }
+
+    //the bearing of a heading, relative to the heading of the client
+    protected double bearing(double heading){
+	return (((heading - hdg)+360)%360);
     }
 }
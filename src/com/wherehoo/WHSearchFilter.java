@@ -0,0 +1,161 @@
+package com.wherehoo;
+
+import java.sql.*;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * <tt>WHSearchFilter</tt> is the part of a search or count query that selects the records: the search area,
+ * the time interval, the optional metadata, protocol and mimetype patterns, and the limit.<br>
+ * The values are bound to the parameters of a prepared statement rather than written into the SQL text.
+ * The text only depends on which filters are set and on whether the search area is split along the
+ * 180th meridian, so there are few statement shapes, each planned once per database connection, and a
+ * quote in a value cannot break the statement.<br>
+ * The area is matched in two steps: the bounding box of the search area against the <tt>bbox</tt> column,
+ * which the spatial index answers (see <tt>WHSchema</tt>), then the exact polygon overlap of the remaining records.
+ * When the in-memory index of the live records is used (see <tt>useIndex()</tt>), the index finds the records
+ * whose area overlaps, and the database is given the uids of those instead of the bounding box.  The polygons are
+ * still compared in the query, since a record crossing the 0 meridian is stored as two rows under one uid.
+ */
+class WHSearchFilter {
+
+    private WHPolygon[] search_polies;
+    private Timestamp begin;
+    private Timestamp end;
+    private String meta;
+    private String protocol;
+    private String mimetype;
+    private int limit;
+    //uids of the records found by the in-memory index, null if the database matches the bounding boxes
+    private String candidates;
+    private int candidate_count;
+
+    /**
+     * Constructs a new <tt>WHSearchFilter</tt> for the records that overlap <tt>search_poly</tt>, alive now.
+     * @param search_poly the search area
+     */
+    WHSearchFilter(WHPolygon search_poly){
+	if (search_poly.zeroCrossing())
+	    search_polies = search_poly.splitAlongGreatMeridian();
+	else
+	    search_polies = new WHPolygon[]{search_poly};
+	limit = 0;
+    }
+
+    /** selects the records that begin at or after <tt>_begin</tt>, rather than the records alive now */
+    void setBegin(Timestamp _begin){
+	begin = _begin;
+    }
+    /** selects the records that end at or before <tt>_end</tt>, rather than the records alive now */
+    void setEnd(Timestamp _end){
+	end = _end;
+    }
+    /** selects the records whose metadata contains <tt>_meta</tt> */
+    void setMeta(String _meta){
+	meta = _meta;
+    }
+    /** selects the records whose protocol matches the pattern <tt>_protocol</tt> */
+    void setProtocol(String _protocol){
+	protocol = _protocol;
+    }
+    /** selects the records whose mimetype matches the pattern <tt>_mimetype</tt> */
+    void setMimetype(String _mimetype){
+	mimetype = _mimetype;
+    }
+    /** selects at most <tt>_limit</tt> records, 0 for no limit */
+    void setLimit(int _limit){
+	limit = _limit;
+    }
+
+    /**
+     * Finds the candidate records in the in-memory index of the live records, if it can answer this filter.
+     * It cannot if there is no index, or if the records may have ended already (END was given).
+     * @param index the index of the live records, or <tt>null</tt>
+     * @param now msec since the epoch
+     * @return <tt>true</tt> if the candidates were found in the index.
+     */
+    boolean useIndex(WHSpatialIndex index, long now){
+	if (index == null || end != null)
+	    return false;
+	HashSet<String> found = new HashSet<String>();
+	for (int i=0;i<search_polies.length;i++)
+	    index.collect(search_polies[i],now,found);
+	StringBuffer uids = new StringBuffer(found.size()*41);
+	for (Iterator<String> it=found.iterator();it.hasNext();){
+	    if (uids.length() > 0)
+		uids.append(',');
+	    uids.append(it.next());
+	}
+	candidates = uids.toString();
+	candidate_count = found.size();
+	return true;
+    }
+
+    /**
+     * @return <tt>true</tt> if the in-memory index found no candidate records, so the query would select nothing.
+     */
+    boolean isEmpty(){
+	return candidates != null && candidate_count == 0;
+    }
+
+    /**
+     * Returns the condition and limit of the query, to follow <tt>where</tt>.  The values are left
+     * as parameters, to be set with <tt>bind()</tt>.
+     */
+    String getSQL(){
+	StringBuffer sql = new StringBuffer(256);
+	if (candidates != null)
+	    sql.append("uniqueidsha = any(string_to_array(?,',')) AND ");
+	sql.append("(");
+	for (int i=0;i<search_polies.length;i++){
+	    if (i > 0)
+		sql.append(" OR ");
+	    if (candidates != null)
+		sql.append("poly_overlap(polygon(pclose(?::path)),area)");
+	    else
+		sql.append("(bbox && ?::box AND poly_overlap(polygon(pclose(?::path)),area))");
+	}
+	sql.append(") ");
+	sql.append((begin != null) ? "AND begin_time >= ? " : "AND begin_time <= now() ");
+	sql.append((end != null) ? "AND end_time <= ? " : "AND end_time >= now() ");
+	if (meta != null)
+	    sql.append("AND meta like ? ");
+	if (protocol != null)
+	    sql.append("AND protocol like ? ");
+	if (mimetype != null)
+	    sql.append("AND mimetype like ? ");
+	if (limit != 0)
+	    sql.append("limit ? ");
+	return sql.toString();
+    }
+
+    /**
+     * Sets the parameters of a statement prepared from <tt>getSQL()</tt>.
+     * @param ps the prepared statement
+     * @param first index of the first parameter of the filter in <tt>ps</tt>
+     * @return the index of the parameter after the filter.
+     */
+    int bind(PreparedStatement ps, int first) throws SQLException {
+	int i = first;
+	if (candidates != null)
+	    ps.setString(i++,candidates);
+	for (int j=0;j<search_polies.length;j++){
+	    if (candidates == null)
+		ps.setString(i++,search_polies[j].toBoxString());
+	    ps.setString(i++,search_polies[j].toString());
+	}
+	if (begin != null)
+	    ps.setTimestamp(i++,begin);
+	if (end != null)
+	    ps.setTimestamp(i++,end);
+	if (meta != null)
+	    ps.setString(i++,"%"+meta+"%");
+	if (protocol != null)
+	    ps.setString(i++,protocol);
+	if (mimetype != null)
+	    ps.setString(i++,mimetype);
+	if (limit != 0)
+	    ps.setInt(i++,limit);
+	return i;
+    }
+}
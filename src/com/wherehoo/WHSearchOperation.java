@@ -8,6 +8,17 @@ import java.awt.geom.Point2D;
 
 /**
  * <tt>WHSearchOperation</tt> supplies methods for querying Wherehoo database for entries that satisfy set criteria.
+ * The results are read through a cursor, <tt>WHServer.getFetchSize()</tt> rows at a time, so the first record
+ * goes out before the last one is read.  The search reads the header columns only: the metadata and data
+ * of a record are read by uniqueidsha when the client asks for them, through the payload cache of the session.<br>
+ * With ORD the results are sent in order, the nearest first ("nearest"), or the one whose bearing is closest
+ * to the heading of the client first ("heading").  LIM then gives the number of results sent, at most
+ * <tt>WHServer.MAXORDER</tt>, which is also the number sent without LIM.  Only that many are kept while the
+ * search runs, in a priority queue with the worst of them at its head.  For "nearest" the database sends the
+ * records in order of how far their latitudes are from the client, and the search stops as soon as that alone
+ * puts a record further away than the worst one kept.<br>
+ * An interactive client may answer a header with a batch command instead of next or skip.  The next headers
+ * of the batch, with their metadata and data if asked, are then sent with one write, see <tt>WHProtocol.ROW_BATCH</tt>.
  */
 
 
@@ -29,7 +40,13 @@ public class WHSearchOperation extends WHOperation {
     private String metastatus;
     private int limit;
     private boolean limit_is_set;
+    private String order;
+    private boolean order_is_set;
     private Point2D.Double client_location;
+    //headers still to be sent in the current batch, and whether their metadata and data go along
+    private int batch_left;
+    private boolean batch_meta;
+    private boolean batch_data;
    
     /**
      * Constructs new SEARCH operation.
@@ -47,6 +64,7 @@ public class WHSearchOperation extends WHOperation {
 	end_is_set=false;
 	mimetype_is_set=false;
 	protocol_is_set=false;
+	order_is_set=false;
 
 	mimetype="";
 	protocol="";
@@ -107,183 +125,289 @@ public class WHSearchOperation extends WHOperation {
 	protocol=_protocol;
 	protocol_is_set=true;
     }
+    /**
+     * Sets the order of the results.
+     * @param _order "nearest" for the nearest first, "heading" for the one whose bearing is closest to the heading first
+     */
+    public void setOrder(String _order){
+	if (this.getVeryVerbose()) System.out.println("Order set to: "+_order);
+	order=_order;
+	order_is_set=true;
+    }
    
+    //the record selection of this operation, with the values to bind
+    private WHSearchFilter getFilter(){
+	WHSearchFilter filter = new WHSearchFilter(search_poly);
+	if (begin_is_set)
+	    filter.setBegin(begin);
+	if (end_is_set)
+	    filter.setEnd(end);
+	if (meta_is_set)
+	    filter.setMeta(meta);
+	if (protocol_is_set)
+	    filter.setProtocol(protocol);
+	if (mimetype_is_set)
+	    filter.setMimetype(mimetype);
+	//an ordered search picks its results from all the records found
+	filter.setLimit(order_is_set ? 0 : limit);
+	filter.useIndex(WHServer.getSpatialIndex(),System.currentTimeMillis());
+	return filter;
+    }
+
   /**
-     * Returns an SQL query string.
+     * Returns the SQL query string.  The criteria are left as parameters of a prepared statement,
+     * so searches with the same kinds of criteria share one query string.
      * @return SQL query string of this <tt>WHSearchOperation</tt>
      */ 
     public String getQueryString(){
+	return this.getQueryString(this.getFilter());
+    }
+
+    private String getQueryString(WHSearchFilter filter){
 	String queryString;
-	//wherehoo=# select poly from mypolytable where '((0,0),(4,4))' ?# poly or '((0,0),(4,4))' ~ poly;
-	//must check for zero-crossing, in which case we will have two adjacent search polies
 	if (this.getVeryVerbose()) System.out.println("Composing SQL query string");
-	queryString  = "select data,meta,mimetype,protocol,area,height,end_time,uniqueidsha ";
+	queryString  = "select octet_length(data) as datalength,(meta is not null and meta <> '') as has_meta,";
+	queryString += "mimetype,protocol,area,height,end_time,uniqueidsha ";
+	if (this.isNearestFirst())
+	    queryString += ",greatest(0,(bbox[1])[0]-?,?-(bbox[0])[0]) as lat_gap ";
 	queryString += "from wherehoo_polygons where "; 
-
-	if (! search_poly.zeroCrossing()){
-	    if (this.getVeryVerbose()) System.out.println("No zero crossing");
-	    //it either intersects
-	    queryString += "poly_overlap(polygon(pclose(path'"+search_poly.toString()+"')),area) ";
-	   
-	}	
-	else {
-	    if (this.getVeryVerbose()) System.out.println("Zero crossing");
-	    WHPolygon[] search_polies = search_poly.splitAlongGreatMeridian();
-	    queryString += "(poly_overlap(polygon(pclose(path'"+search_polies[0].toString()+"')),area) ";
-	    queryString += " OR poly_overlap(polygon(pclose(path'"+search_polies[1].toString()+"')),area)) ";
-	}
-	queryString +=  (begin_is_set) ? " AND begin_time >= '"+begin+"' " 
-	    : "AND begin_time <= now() ";
-	queryString += (end_is_set) ? "AND end_time <= '"+end+"' " 
-	    : "AND end_time >= now() ";	
-	queryString += (meta_is_set) ? "AND meta like '%"+meta+"%' " : "";
-	queryString += (protocol_is_set) ? "AND protocol like '"+protocol+"' " : "";
-	queryString += (mimetype_is_set) ? "AND mimetype like '"+mimetype+"' " : "";
-	queryString += (limit==0) ? " " : "limit "+limit+" ";
+	queryString += filter.getSQL();
+	if (this.isNearestFirst())
+	    queryString += "order by lat_gap";
 	
 	if (this.getVerbose()||this.getVeryVerbose()) System.out.println("The query:");
 	if (this.getVerbose()||this.getVeryVerbose()) System.out.println(queryString);
 	return queryString;
     }
-    
+
+    /**
+     * A search only reads the database, so it may run alongside other pipelined operations.
+     */
+    protected boolean isReadOnly(){
+	return true;
+    }
+
      /**
      * Searches the database for entries that are within set search area, in the set time interval, 
      * and satisfying other optional criteria, such as mimetype, protocol or metadata. <tt>executeAndOutputToClient</tt> 
-     * then sends the results to the client via <tt>client_socket</tt>.
-     * @param client_socket a socket of the connecting client.  After executing a search operation, this method sends
-     * the results to the client via <tt>client_socket</tt>
+     * then sends the results to the client via <tt>session</tt>.
+     * @param session the session of the connecting client.  After executing a search operation, this method sends
+     * the results to the client via <tt>session</tt>
      */ 
-    public synchronized void executeAndOutputToClient(Socket client_socket) throws IOException {
+    protected void executeOperation(WHSession session) throws IOException {
 	
 	ResultSet rs=null;
-	Connection C;
-	Statement s;
+	Connection C=null;
+	PreparedStatement s;
 	String queryString;
+	WHSearchFilter filter;
 	
 	if (this.getVerbose()||this.getVeryVerbose()) System.out.println("Executing and outputing to client");
+	filter = this.getFilter();
+	//the in-memory index knows there is nothing to send
+	if (filter.isEmpty())
+	    return;
 	try{
 	    if (this.getVeryVerbose()) System.out.println("Connecting to database");
-	    C = DriverManager.getConnection("jdbc:"+WHServer.DB,"postgres","");
+	    C = this.getConnectionPool().getConnection();
+	    //the driver only uses a cursor inside a transaction
 	    C.setAutoCommit(false);
-	    queryString=this.getQueryString();
-	    s = C.createStatement();
+	    queryString=this.getQueryString(filter);
+	    s = this.getConnectionPool().prepareStatement(C,queryString);
+	    if (this.isNearestFirst()){
+		s.setDouble(1,client_location.getX());
+		s.setDouble(2,client_location.getX());
+		filter.bind(s,3);
+	    } else {
+		filter.bind(s,1);
+	    }
+	    s.setFetchSize(WHServer.getFetchSize());
 	    if (this.getVeryVerbose()) System.out.println("About to execute query");
-	    rs = s.executeQuery(queryString);
+	    rs = s.executeQuery();
+	    if (this.getVeryVerbose()) System.out.println("About to output to client");
+	    this.outputToClient(rs,session,C);
+	    rs.close();
+	    //the cursor is open until the end of the transaction
 	    if (this.getVeryVerbose()) System.out.println("Commiting the query");
 	    C.commit();
-	    if (this.getVeryVerbose()) System.out.println("About to output to client");
-	    this.outputToClient(rs,client_socket);
-	    C.close();
 	}
 	catch (SQLException sqle) {
 	    System.out.println("SQLException: " + sqle.getMessage());
 	    System.out.println("SQLState:     " + sqle.getSQLState());
 	    System.out.println("VendorError:  " + sqle.getErrorCode());
-	} 
+	}
+	finally {
+	    this.getConnectionPool().releaseConnection(C);
+	}
     }
 	
     
-    private synchronized void outputToClient(ResultSet rs, Socket client_socket) throws IOException {
-	WHPolygon poly;
-	String mimetype;
-	String protocol;
-	String meta;
-	String meta_status;
-	byte[] data;
-	
-	String header;
-	
-	String client_data_command;
-	
-	PrintWriter out;
-	BufferedOutputStream outstream;
-	ByteArrayOutputStream outbytes;
-	BufferedReader in;
+    private void outputToClient(ResultSet rs, WHSession session, Connection C) throws IOException {
+	int client_data_command;
+	WHProtocol out;
 	
-	java.util.Date endtime;
-	
-	//set up the communication channels with client;
-	if (this.getVeryVerbose()) 
-	    System.out.println("Opening the PrintWriter");
-	out = new PrintWriter(client_socket.getOutputStream(),true);
-	if (this.getVeryVerbose()) 
-	    System.out.println("Opening the BufferedOutputStream");
-	outstream = new BufferedOutputStream(client_socket.getOutputStream());
-	if (this.getVeryVerbose()) 
-	    System.out.println("Opening the ByteArrayOutputStream");
-	outbytes = new ByteArrayOutputStream();
-	if (this.getVeryVerbose()) 
-	    System.out.println("Opening the BufferedReader");
-	in = new BufferedReader(new InputStreamReader(client_socket.getInputStream()));
+	//reply in the protocol of the session, so that nothing the client sends ahead is lost
+	out = session.getProtocol();
 	try {
 	    if (this.getVeryVerbose()) 
 		System.out.println("Outputing the results to the client");
-	    client_data_command = new String("next");
-	    while (rs.next() 
-		   && ( client_data_command.equals("next")
-			|| client_data_command.equals("skip")))
+	    if (order_is_set){
+		this.outputInOrder(rs,out,session,C);
+		return;
+	    }
+	    client_data_command = WHProtocol.ROW_NEXT;
+	    //the rows of one fetch, at most MAXBATCH, are read as a page, and their headers found together
+	    int page_size = Math.min(WHServer.getFetchSize(),WHServer.MAXBATCH);
+	    Row[] page = new Row[page_size];
+	    WHPolygon[] polies = new WHPolygon[page_size];
+	    double[] distances = new double[page_size];
+	    double[] headings = new double[page_size];
+	    double[] bearings = new double[page_size];
+	    boolean more = true;
+	    while (more
+		   && ( client_data_command == WHProtocol.ROW_NEXT
+			|| client_data_command == WHProtocol.ROW_SKIP))
 		{
-		    if (this.getVeryVerbose()) 
-			System.out.println("Next row");
-		    poly = new WHPolygon(rs.getString("area"));
-		    mimetype = rs.getString("mimetype");
-		    protocol = rs.getString("protocol");
-		    meta = rs.getString("meta");
-		    data = rs.getBytes("data");
-		    if (meta.equals("") || (meta==null)) {
-			meta_status = "NONE"; meta="";
+		    int count = 0;
+		    while (count < page_size && (more = rs.next())){
+			polies[count] = new WHPolygon(rs.getString("area"));
+			page[count++] = new Row(rs,0,0,0,0);
 		    }
-		    else {
-			meta_status = "META";
-		    }
-		    //this is a big, big problem. Does it always work?
-		    endtime = rs.getDate("end_time");
-		    header = this.recordHeader(poly,data.length,mimetype,protocol,meta_status,endtime);
-		    out.println(header);
-		    if (this.getVeryVerbose()) System.out.println("sent the header to client:");
-		    if (this.getVerbose()||this.getVeryVerbose()) System.out.println(header);
-		    do {   
-			client_data_command = in.readLine().trim().toLowerCase();
+		    search_area.distancesAndHeadings(polies,count,distances,headings,bearings);
+		    for (int i=0;i<count
+			     && ( client_data_command == WHProtocol.ROW_NEXT
+				  || client_data_command == WHProtocol.ROW_SKIP);i++){
 			if (this.getVeryVerbose()) 
-			    System.out.println("Client sent: "+client_data_command);
-			if (client_data_command.equals("meta")) 
-			    out.println(meta); 
-			if (client_data_command.equals("data")) {
-			    outbytes.write(data);
-			    outbytes.writeTo(outstream);
-			    outstream.flush();
-			    outbytes.reset();
-			}
-		    } while (client_data_command.equals("meta")|| client_data_command.equals("data"));
+			    System.out.println("Next row");
+			page[i].distance = distances[i];
+			page[i].heading = headings[i];
+			page[i].bearing = bearings[i];
+			client_data_command = this.outputRow(page[i],out,session,C);
+		    }
 		}
 	} catch(SQLException sqle) {
 	    System.out.println(sqle.toString()); 
+	} finally {
+	    //the results ran out before the batch was full
+	    if (batch_left > 0){
+		batch_left = 0;
+		out.endBatch();
+	    }
 	}
     }
-    
 
-    private String recordHeader(WHPolygon point_of_interest,int dlength,String _mimetype,
-				String _protocol,String _metastatus,java.util.Date _endtime){
-	//Record descriptive data appears on one line, space-delimited, in this format:
-	//bearing compassdirection distance ttl bytes protocol mimetype meta
-	
+    //keeps the best LIM rows of rs, at most MAXORDER, then sends them best first
+    private void outputInOrder(ResultSet rs, WHProtocol out, WHSession session, Connection C) throws SQLException, IOException {
+	int capacity = (limit_is_set && limit > 0) ? Math.min(limit,WHServer.MAXORDER) : WHServer.MAXORDER;
+	PriorityQueue<Row> kept = new PriorityQueue<Row>(Math.min(capacity,64),Row.WORST_FIRST);
+	while (rs.next()){
+	    if (this.isNearestFirst() && kept.size() == capacity){
+		//the rows come in order of their latitude gap, no later row can be nearer than this
+		double frontier = WHGeo.latitudeDistance(client_location,rs.getDouble("lat_gap"));
+		if (frontier > kept.peek().key)
+		    break;
+	    }
+	    //the distance and heading are kept for the header of the row
+	    double[] nearest = search_area.distanceAndHeading(new WHPolygon(rs.getString("area")));
+	    double bearing = search_area.bearing(nearest[1]);
+	    double key = (this.isNearestFirst()) ? nearest[0] : Math.min(bearing,360-bearing);
+	    if (kept.size() < capacity){
+		kept.add(new Row(rs,nearest[0],nearest[1],bearing,key));
+	    } else if (key < kept.peek().key){
+		kept.poll();
+		kept.add(new Row(rs,nearest[0],nearest[1],bearing,key));
+	    }
+	}
+	if (this.getVeryVerbose()) System.out.println("Kept "+kept.size()+" rows in order");
+	Row[] rows = kept.toArray(new Row[kept.size()]);
+	Arrays.sort(rows,Row.BEST_FIRST);
+	int client_data_command = WHProtocol.ROW_NEXT;
+	for (int i=0;i<rows.length
+		 && ( client_data_command == WHProtocol.ROW_NEXT
+		      || client_data_command == WHProtocol.ROW_SKIP);i++)
+	    client_data_command = this.outputRow(rows[i],out,session,C);
+    }
+
+    //sends the header of one row, and its metadata and data as the client asks for them.
+    //returns the last row command of the client
+    private int outputRow(Row row, WHProtocol out, WHSession session, Connection C) throws SQLException, IOException {
+	int client_data_command;
+	Object[] payload = null;
+	this.recordHeader(out,row.distance,row.heading,row.bearing,row.datalength,row.mimetype,row.protocol,row.has_meta,row.endtime);
+	if (this.getVeryVerbose()) System.out.println("sent the header to client");
+	//a pipelined search does not wait for the client, it sends the headers only
+	if (! this.getInteractive())
+	    return WHProtocol.ROW_NEXT;
+	if (batch_left > 0){
+	    if (batch_meta || batch_data)
+		payload = this.fetchPayload(C,session.getPayloadCache(),row.uniqueidsha,row.datalength);
+	    if (batch_meta)
+		out.meta((String) payload[0]);
+	    if (batch_data)
+		out.data((byte[]) payload[1]);
+	    batch_left--;
+	    if (batch_left > 0)
+		return WHProtocol.ROW_NEXT;
+	    //the batch is complete, the client answers its last header
+	    out.endBatch();
+	}
+	do {   
+	    client_data_command = out.readRowCommand();
+	    if (this.getVeryVerbose()) 
+		System.out.println("Client sent: "+client_data_command);
+	    if (client_data_command == WHProtocol.ROW_BATCH){
+		batch_left = out.getBatchSize();
+		batch_meta = out.getBatchMeta();
+		batch_data = out.getBatchData();
+		out.beginBatch();
+		return WHProtocol.ROW_NEXT;
+	    }
+	    if ((client_data_command == WHProtocol.ROW_META || client_data_command == WHProtocol.ROW_DATA)
+		&& payload == null)
+		payload = this.fetchPayload(C,session.getPayloadCache(),row.uniqueidsha,row.datalength);
+	    if (client_data_command == WHProtocol.ROW_META) 
+		out.meta((String) payload[0]); 
+	    if (client_data_command == WHProtocol.ROW_DATA)
+		out.data((byte[]) payload[1]);
+	} while (client_data_command == WHProtocol.ROW_META || client_data_command == WHProtocol.ROW_DATA);
+	return client_data_command;
+    }
+
+    private boolean isNearestFirst(){
+	return order_is_set && order.equals("nearest");
+    }
+
+    //returns {meta, data} of one record, which the search itself leaves in the database.
+    //the client was told datalength bytes are coming; a record deleted in the meantime gets that many zeros
+    private Object[] fetchPayload(Connection C, WHPayloadCache cache, String uniqueidsha, int datalength) throws SQLException {
+	Object[] payload = cache.get(uniqueidsha);
+	if (payload != null)
+	    return payload;
+	String meta = null;
+	byte[] data = null;
+	PreparedStatement ps = this.getConnectionPool().prepareStatement(C,"select meta,data from wherehoo_polygons where uniqueidsha = ?");
+	ps.setString(1,uniqueidsha);
+	ResultSet rs = ps.executeQuery();
+	if (rs.next()){
+	    meta = rs.getString("meta");
+	    data = rs.getBytes("data");
+	}
+	rs.close();
+	if (meta == null)
+	    meta = "";
+	if (data == null || data.length != datalength)
+	    data = new byte[datalength];
+	cache.put(uniqueidsha,meta,data);
+	if (this.getVeryVerbose()) System.out.println(cache.toString());
+	return new Object[]{meta,data};
+    }
+
+    private void recordHeader(WHProtocol out,double r_distance,double r_heading,double bearing,int dlength,String _mimetype,
+			      String _protocol,boolean _has_meta,java.util.Date _endtime) throws IOException {
 	java.util.Date nowtime = new java.util.Date();
 	long ttl = Math.abs(_endtime.getTime() - nowtime.getTime()) / 1000L;
 	ttl = Math.min(ttl, WHServer.MAXTTL);
-	double r_heading=search_area.heading(point_of_interest);
-	double r_distance=search_area.distance(point_of_interest);
-	double bearing=search_area.bearing(point_of_interest);
-	String r_quadrant = WHGeo.quadrant(r_heading);
-	String result = new String();	
-	result += Math.round(bearing)
-	    +" "+r_quadrant
-	    +" "+Math.round(r_distance)
-	    +" "+ttl
-	    +" "+dlength
-	    +" "+_protocol
-	    +" "+_mimetype
-	    +" "+_metastatus;
-	return result;
+	out.record(bearing,r_heading,r_distance,ttl,dlength,_protocol,_mimetype,_has_meta);
     }
     
     /**
@@ -312,6 +436,44 @@ public class WHSearchOperation extends WHOperation {
 	    s+="Meta "+meta;
 	else
 	    s+="Meta not set";
+	if (order_is_set)
+	    s+="\nOrder "+order;
 	return s;
     } 
+
+    //the header columns of one result row, and its place in the order of the results, lower is better
+    private static class Row {
+	static final Comparator<Row> WORST_FIRST = new Comparator<Row>(){
+		public int compare(Row a, Row b){
+		    return Double.compare(b.key,a.key);
+		}
+	    };
+	static final Comparator<Row> BEST_FIRST = Collections.reverseOrder(WORST_FIRST);
+
+	//distance, heading and bearing from the client
+	double distance;
+	double heading;
+	double bearing;
+	String mimetype;
+	String protocol;
+	String uniqueidsha;
+	int datalength;
+	boolean has_meta;
+	java.util.Date endtime;
+	double key;
+
+	Row(ResultSet rs, double _distance, double _heading, double _bearing, double _key) throws SQLException {
+	    distance = _distance;
+	    heading = _heading;
+	    bearing = _bearing;
+	    mimetype = rs.getString("mimetype");
+	    protocol = rs.getString("protocol");
+	    uniqueidsha = rs.getString("uniqueidsha");
+	    datalength = rs.getInt("datalength");
+	    has_meta = rs.getBoolean("has_meta");
+	    //this is a big, big problem. Does it always work?
+	    endtime = rs.getDate("end_time");
+	    key = _key;
+	}
+    }
 }
@@ -8,6 +8,12 @@ package com.wherehoo;
 import java.io.*;
 import java.net.*;
 import java.sql.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 public class WHServer {
@@ -25,12 +31,136 @@ public class WHServer {
     public static final int PORT  = 5650; 
     /** msec of silence permitted from client before disconnect  */
     protected static final int RXTIMEOUT = 200000; 
+    /** database user */
+    protected static final String DB_USER = "postgres";
+    /** password of the database user */
+    protected static final String DB_PASSWORD = "";
+    /** max number of database connections held open by the server */
+    protected static final int DB_POOL_SIZE = 20;
+    /** msec an unused database connection is kept open */
+    protected static final int DB_POOL_IDLE_TIMEOUT = 300000;
+    /** msec a client waits for a free database connection */
+    protected static final int DB_POOL_WAIT_TIMEOUT = 10000;
+    /** msec of idleness after which a database connection is validated before reuse */
+    protected static final int DB_POOL_VALIDATE_AFTER = 30000;
+    /** max number of prepared statements kept open on one database connection */
+    protected static final int STATEMENT_CACHE_SIZE = 64;
+    /** msec the in-memory copy of the users and protocol tables stays valid */
+    protected static final int ACCOUNT_CACHE_TTL = 600000;
+    /** msec between checks for changes of the users and protocol tables */
+    protected static final int ACCOUNT_REFRESH_INTERVAL = 5000;
+    /** listen backlog of the non-blocking server */
+    public static final int NIO_BACKLOG = 1024;
+    /** default number of event loop threads of the non-blocking server */
+    public static final int NIO_EVENT_LOOPS = 2;
+    /** default number of sessions run at the same time on platform threads */
+    public static final int SESSION_WORKERS = 64;
+    /** default number of sessions run at the same time on virtual threads */
+    public static final int VIRTUAL_SESSION_WORKERS = 10000;
+    /** default number of admitted sessions that may wait for a worker */
+    public static final int SESSION_QUEUE = 256;
+    /** msec a refused client gets to send its IDT line before it is told to come back later */
+    protected static final int BUSY_TIMEOUT = 2000;
+    /** max number of refused clients waiting to be told to come back later */
+    protected static final int BUSY_QUEUE = 64;
+    /** msec a kept-alive connection may sit idle between two command blocks */
+    protected static final int KEEPALIVE_IDLE_TIMEOUT = 30000;
+    /** max number of operations run on one kept-alive connection */
+    protected static final int KEEPALIVE_MAX_OPERATIONS = 100;
+    /** max number of pipelined operations of one client running at the same time */
+    protected static final int PIPELINE_DEPTH = 4;
+    /** number of threads that run pipelined operations for all clients */
+    protected static final int PIPELINE_WORKERS = 32;
+    /** max length of a TAG */
+    protected static final int MAXTAG = 32;
+    /** max length of a MIM, PRO, UID or SHA frame of the binary protocol */
+    protected static final int MAXFIELD = 256;
+    /** default number of search results fetched from the database at a time */
+    public static final int SEARCH_FETCH_SIZE = 64;
+    /** max number of bytes of record metadata and data cached for one session */
+    protected static final int PAYLOAD_CACHE_BYTES = 262144;
+    /** max number of search results sent in one batch */
+    protected static final int MAXBATCH = 100;
+    /** max number of results of a search with ORD, when LIM asks for more or is not given */
+    protected static final int MAXORDER = 1000;
+    /** max number of expired records deleted by one statement of the reaper */
+    protected static final int REAPER_BATCH = 500;
+    /** msec between two rounds of the reaper */
+    protected static final int REAPER_INTERVAL = 60000;
+    /** msec the reaper waits between two batches */
+    protected static final int REAPER_PAUSE = 200;
+
+    /** number of search results fetched from the database at a time */
+    private static int fetch_size = WHServer.SEARCH_FETCH_SIZE;
+    /** threads that run pipelined read-only operations */
+    private static Executor pipeline_executor;
+    /** in-memory index of the live records, null if searches match the areas in the database */
+    private static WHSpatialIndex spatial_index;
+    /** database connections shared by all operations */
+    private static WHConnectionPool connection_pool;
+    /** in-memory copy of the users and protocol tables */
+    private static WHAccountCache account_cache;
+    /** validation of client data against the database, shared by all client threads */
+    private static WHDatabaseCheck database_check;
     
 
     public static void main(String[] args) throws IOException {	
 	
 	Socket client_socket;
 	String client_address;
+	boolean nio = false;
+	boolean virtual = false;
+	String index_type = "rtree";
+	boolean reap = true;
+	Executor session_threads = null;
+	WHSessionExecutor session_executor;
+	int event_loops = WHServer.NIO_EVENT_LOOPS;
+	int workers = -1;
+	int queue = WHServer.SESSION_QUEUE;
+
+	// read the startup options
+	try {
+	    for (int i=0;i<args.length;i++){
+		if (args[i].equals("-nio"))
+		    nio = true;
+		else if (args[i].equals("-virtual"))
+		    virtual = true;
+		else if (args[i].equals("-loops"))
+		    event_loops = Integer.parseInt(args[++i]);
+		else if (args[i].equals("-workers"))
+		    workers = Integer.parseInt(args[++i]);
+		else if (args[i].equals("-queue"))
+		    queue = Integer.parseInt(args[++i]);
+		else if (args[i].equals("-fetch"))
+		    fetch_size = Integer.parseInt(args[++i]);
+		else if (args[i].equals("-index"))
+		    index_type = args[++i];
+		else if (args[i].equals("-noreap"))
+		    reap = false;
+		else
+		    throw new IllegalArgumentException(args[i]);
+	    }
+	    spatial_index = WHSpatialIndex.create(index_type);
+	    if (workers == -1)
+		workers = (virtual) ? WHServer.VIRTUAL_SESSION_WORKERS : WHServer.SESSION_WORKERS;
+	    if (event_loops < 1 || workers < 1 || queue < 0 || fetch_size < 1 || (nio && virtual))
+		throw new IllegalArgumentException();
+	}
+	catch (RuntimeException re) {
+	    System.err.println("Usage: WHServer [-virtual | -nio [-loops n]] [-workers n] [-queue n] [-fetch n] [-index rtree | grid | none] [-noreap]");
+	    return;
+	}
+	if (virtual) {
+	    session_threads = WHServer.virtualThreadExecutor();
+	    if (session_threads == null) {
+		System.err.println("Virtual threads are not supported by this Java runtime.");
+		return;
+	    }
+	} else {
+	    session_threads = Executors.newFixedThreadPool(workers);
+	}
+	session_executor = new WHSessionExecutor(session_threads,workers,queue);
+	pipeline_executor = (virtual) ? session_threads : Executors.newFixedThreadPool(WHServer.PIPELINE_WORKERS);
 
 	// load the class for db server access
 	try {
@@ -43,20 +173,119 @@ public class WHServer {
 	    System.err.println("Unable to load SQL driver.");
 	    e.printStackTrace();
 	}
+	connection_pool = new WHConnectionPool("jdbc:"+WHServer.DB,WHServer.DB_USER,WHServer.DB_PASSWORD,
+					       WHServer.DB_POOL_SIZE,WHServer.DB_POOL_IDLE_TIMEOUT,
+					       WHServer.DB_POOL_WAIT_TIMEOUT,WHServer.DB_POOL_VALIDATE_AFTER);
+	account_cache = new WHAccountCache(connection_pool,WHServer.ACCOUNT_CACHE_TTL);
+	account_cache.startRefresher("jdbc:"+WHServer.DB,WHServer.DB_USER,WHServer.DB_PASSWORD,
+				     WHServer.ACCOUNT_REFRESH_INTERVAL);
+	database_check = new WHDatabaseCheck(connection_pool,account_cache);
+
+	// add the spatial index and the columns it needs, and check that the searches can use it
+	WHSchema schema = new WHSchema(connection_pool);
+	try {
+	    schema.migrate();
+	    if (! schema.checkPlan())
+		System.out.println("Searches will scan the whole table.");
+	}
+	catch (SQLException sqle) {
+	    System.out.println("Schema migration failed: "+sqle.getMessage());
+	}
+
+	// keep the areas of the live records in memory; -index none if other servers write to the same database
+	if (spatial_index != null) {
+	    try {
+		spatial_index.load(connection_pool);
+		System.out.println("Loaded "+spatial_index.toString());
+	    }
+	    catch (SQLException sqle) {
+		System.out.println("Loading the live records failed, searches use the database only: "+sqle.getMessage());
+		spatial_index = null;
+	    }
+	}
+
+	// delete the records that have ended; -noreap to keep them in the database
+	if (reap) {
+	    new WHExpiryReaper(connection_pool,WHServer.REAPER_BATCH,WHServer.REAPER_INTERVAL,WHServer.REAPER_PAUSE).start();
+	}
+
+	if (nio) {
+	    new WHNioServer(WHServer.PORT,WHServer.NIO_BACKLOG,event_loops,session_executor).serve();
+	    return;
+	}
 	
 	// setup for incoming socket connections
 	ServerSocket server_socket = new ServerSocket(WHServer.PORT,WHServer.Q_LEN);
-	System.out.println("Wherehoo socket server v"+WHServer.VERSION+" on port "+WHServer.PORT);
+	System.out.println("Wherehoo socket server v"+WHServer.VERSION+" on port "+WHServer.PORT
+			   +(virtual ? ", virtual threads" : ""));
 	String server_address = InetAddress.getLocalHost().getHostAddress();
+	// refused clients are answered by a single thread, so that a burst cannot tie up the accept loop
+	ExecutorService busy_replies = new ThreadPoolExecutor(1,1,0,TimeUnit.MILLISECONDS,
+							      new LinkedBlockingQueue<Runnable>(WHServer.BUSY_QUEUE));
 	
-	// wait for a client connection, then start a new thread to handle it
+	// wait for a client connection, then hand it to the session executor
 	while (true) {
-	    System.out.println("Host "+server_address+" blocking on accept()");
+	    System.out.println("Host "+server_address+" blocking on accept(), "+connection_pool.toString()
+			       +", "+account_cache.toString()+", "+session_executor.toString());
 	    client_socket = server_socket.accept(); // block until next client connection
 	    client_address = client_socket.getInetAddress().getHostAddress();
 	    System.out.println("connection accepted from "+client_address+" Launching thread.");
 	    client_socket.setSoTimeout(WHServer.RXTIMEOUT);
-	    new WHClientProcess(client_socket).start();
+	    if (! session_executor.submit(new WHClientProcess(client_socket))) {
+		System.out.println("server busy, refusing "+client_address);
+		final Socket refused_socket = client_socket;
+		final int retry_after = session_executor.retryAfter();
+		try {
+		    busy_replies.execute(new Runnable(){
+			    public void run(){
+				WHServer.replyBusy(refused_socket,retry_after);
+			    }
+			});
+		} catch (java.util.concurrent.RejectedExecutionException ree) {
+		    client_socket.close();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Tells a client that was not admitted to come back later.  The reply is sent right after the 
+     * client's IDT line, in place of the server header: <tt>NAK BUSY retry-after-seconds</tt>.
+     * @param client_socket the socket of the refused client
+     * @param retry_after seconds the client should wait before it connects again
+     */
+    protected static void replyBusy(Socket client_socket, int retry_after){
+	try {
+	    client_socket.setSoTimeout(WHServer.BUSY_TIMEOUT);
+	    WHLineInputStream in = new WHLineInputStream(client_socket.getInputStream());
+	    //a binary client gets the same answer as a frame
+	    if (in.peek() == WHBinaryProtocol.MAGIC){
+		client_socket.getOutputStream().write(WHBinaryProtocol.busyFrame(retry_after));
+		return;
+	    }
+	    PrintWriter out = new PrintWriter(client_socket.getOutputStream(),true);
+	    in.readLine();
+	    out.println("NAK BUSY "+retry_after);
+	    out.println(".");
+	    out.println("BYE");
+	} catch (IOException ioe) {
+	} finally {
+	    try { client_socket.close(); } catch (IOException ioe) {}
+	}
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread, or <tt>null</tt> if the 
+     * Java runtime has no virtual threads.  Looked up by reflection, so the server still builds 
+     * and runs on older runtimes.
+     */
+    private static Executor virtualThreadExecutor(){
+	try {
+	    return (Executor) java.util.concurrent.Executors.class
+		.getMethod("newVirtualThreadPerTaskExecutor",new Class<?>[0]).invoke(null,new Object[0]);
+	}
+	catch (Exception e) {
+	    return null;
 	}
     }
     //#############################################################################################
@@ -127,6 +356,12 @@ public class WHServer {
     protected static final int BYE = 7913;
     /** Index of "." command     */
     protected static final int DOT = 8313;
+    /** Index of KAL command     */
+    protected static final int KAL = 8613;
+    /** Index of TAG command     */
+    protected static final int TAG = 8913;
+    /** Index of ORD command     */
+    protected static final int ORD = 9313;
 
     private static final Object[][] command_pairs = {{"idt", new Integer(WHServer.IDT )},
 						     {"act", new Integer(WHServer.ACT )},
@@ -149,9 +384,50 @@ public class WHServer {
 						     {"dbg", new Integer(WHServer.DBG )},
 						     {"nop", new Integer(WHServer.NOP )},
 						     {"bye", new Integer(WHServer.BYE )},
-						     {"dot", new Integer(WHServer.DOT )}};
+						     {"kal", Integer.valueOf(WHServer.KAL )},
+						     {"tag", Integer.valueOf(WHServer.TAG )},
+						     {"ord", Integer.valueOf(WHServer.ORD )},
+						     {".", new Integer(WHServer.DOT )}};
    
 
+    /**
+     * Returns the pool of database connections shared by all operations.
+     */
+    protected static WHConnectionPool getConnectionPool(){
+	return connection_pool;
+    }
+    /**
+     * Returns the in-memory copy of the users and protocol tables.
+     */
+    protected static WHAccountCache getAccountCache(){
+	return account_cache;
+    }
+    /**
+     * Returns the executor that runs pipelined read-only operations, or <tt>null</tt> if they are
+     * to be run by the client thread itself.
+     */
+    protected static Executor getPipelineExecutor(){
+	return pipeline_executor;
+    }
+    /**
+     * Returns the in-memory index of the live records, or <tt>null</tt> if there is none.
+     */
+    protected static WHSpatialIndex getSpatialIndex(){
+	return spatial_index;
+    }
+    /**
+     * Returns the number of search results fetched from the database at a time.
+     */
+    protected static int getFetchSize(){
+	return fetch_size;
+    }
+    /**
+     * Returns the database check service shared by all client threads.
+     */
+    protected static WHDatabaseCheck getDatabaseCheck(){
+	return database_check;
+    }
+
     protected static int commandIndex(String command){
 	for (int i=0;i<command_pairs.length;i++){
 	    if (((String)command_pairs[i][0]).equals(command))
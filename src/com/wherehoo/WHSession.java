@@ -0,0 +1,192 @@
+package com.wherehoo;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * <tt>WHSession</tt> is one client connection and what the server remembers about it between operations.
+ * A client that sends KAL keeps its connection open after an operation: the result is followed by
+ * "." and <tt>KAL operations-left</tt>, and the next command block may follow on the same socket.
+ * The identity given with IDT carries over to the following blocks, so the client need not repeat it.
+ * A kept-alive session ends when the client says BYE, stays silent for <tt>KEEPALIVE_IDLE_TIMEOUT</tt> msec,
+ * or has run <tt>KEEPALIVE_MAX_OPERATIONS</tt> operations.  It is then closed with "." and BYE as before.<br>
+ * The replies are encoded by the protocol the client chose with its first byte, see <tt>negotiate()</tt>.<br>
+ * A pipelined operation writes to a buffered response obtained with <tt>bufferedResponse()</tt>, which is
+ * copied to the client with <tt>writeTo()</tt> once the operations before it have answered.
+ */
+class WHSession {
+
+    private Socket socket;
+    private WHLineInputStream in;
+    private OutputStream raw_out;
+    private PrintWriter out;
+    //the buffer behind a buffered response, null for a live session
+    private ByteArrayOutputStream buffer;
+    private WHProtocol protocol;
+    private boolean binary;
+    private WHPayloadCache payload_cache;
+
+    private String idt;
+    private boolean keep_alive;
+    private int operation_count;
+
+    /**
+     * Constructs a new <tt>WHSession</tt> on a connected socket.
+     * @param _socket the socket of the connecting client
+     */
+    WHSession(Socket _socket) throws IOException {
+	socket = _socket;
+	in = new WHLineInputStream(socket.getInputStream());
+	raw_out = socket.getOutputStream();
+	out = new PrintWriter(raw_out,true);
+	protocol = new WHTextProtocol(out,raw_out,in);
+	binary = false;
+	payload_cache = new WHPayloadCache(WHServer.PAYLOAD_CACHE_BYTES);
+	idt = null;
+	keep_alive = false;
+	operation_count = 0;
+    }
+
+    //constructor for a buffered response of session parent
+    private WHSession(WHSession parent){
+	socket = parent.socket;
+	in = new WHLineInputStream(new ByteArrayInputStream(new byte[0]));
+	buffer = new ByteArrayOutputStream();
+	raw_out = buffer;
+	out = new PrintWriter(raw_out,true);
+	binary = parent.binary;
+	protocol = (binary) ? (WHProtocol) new WHBinaryProtocol(raw_out,in) : new WHTextProtocol(out,raw_out,in);
+	payload_cache = parent.payload_cache;
+	idt = parent.idt;
+	keep_alive = parent.keep_alive;
+	operation_count = parent.operation_count;
+    }
+
+    /**
+     * Returns a session that collects its replies in memory instead of sending them.  It has no input,
+     * so an operation running on it cannot wait for the client.
+     */
+    WHSession bufferedResponse(){
+	return new WHSession(this);
+    }
+
+    /**
+     * Sends the replies collected by this buffered response to the client of <tt>target</tt>.
+     * @param target the live session of the client
+     */
+    void writeTo(WHSession target) throws IOException {
+	out.flush();
+	//a binary response has already flushed its frames into the buffer
+	buffer.writeTo(target.raw_out);
+	target.raw_out.flush();
+	buffer.reset();
+    }
+
+    /** @return the socket of the client */
+    Socket getSocket(){
+	return socket;
+    }
+    /** @return the address of the client */
+    String getClientAddress(){
+	return socket.getInetAddress().getHostAddress();
+    }
+    /** @return the stream the client commands are read from */
+    WHLineInputStream getInput(){
+	return in;
+    }
+    /** @return the writer for text replies, flushed at every line */
+    PrintWriter getWriter(){
+	return out;
+    }
+    /** @return the stream for binary replies; text written to <tt>getWriter()</tt> is already flushed */
+    OutputStream getOutputStream(){
+	return raw_out;
+    }
+    /** @return the protocol the replies to the client are encoded with */
+    WHProtocol getProtocol(){
+	return protocol;
+    }
+    /** @return <tt>true</tt> if the client chose the binary protocol */
+    boolean isBinary(){
+	return binary;
+    }
+    /** @return the metadata and data of the records this client read recently */
+    WHPayloadCache getPayloadCache(){
+	return payload_cache;
+    }
+
+    /**
+     * Finds out which protocol the client speaks from its first byte.  A binary client sends
+     * <tt>WHBinaryProtocol.MAGIC</tt> and the version of the framing; anything else is the text protocol.
+     * @return <tt>false</tt> if the client went away, or asked for a version of the framing this server does not speak.
+     */
+    boolean negotiate() throws IOException {
+	int first = in.peek();
+	if (first != WHBinaryProtocol.MAGIC)
+	    return first != -1;
+	in.read();
+	binary = true;
+	protocol = new WHBinaryProtocol(raw_out,in);
+	if (in.read() != WHBinaryProtocol.VERSION){
+	    protocol.nak("VERSION");
+	    return false;
+	}
+	return true;
+    }
+
+    /** @return the identity the client gave with its last IDT, or <tt>null</tt> */
+    String getIdentity(){
+	return idt;
+    }
+    void setIdentity(String _idt){
+	idt = _idt;
+    }
+    /** @return <tt>true</tt> if the client asked to keep the connection open with KAL */
+    boolean getKeepAlive(){
+	return keep_alive;
+    }
+    void setKeepAlive(boolean _keep_alive){
+	keep_alive = _keep_alive;
+    }
+    /** records that an operation was run on this session */
+    void countOperation(){
+	operation_count++;
+    }
+    /** @return number of further operations this session may run */
+    int getOperationsLeft(){
+	return Math.max(0, WHServer.KEEPALIVE_MAX_OPERATIONS - operation_count);
+    }
+    /** @return <tt>true</tt> if the connection stays open for another command block */
+    boolean isContinuing(){
+	return keep_alive && this.getOperationsLeft() > 0;
+    }
+
+    /**
+     * Waits up to <tt>KEEPALIVE_IDLE_TIMEOUT</tt> msec for the client to start its next command block.
+     * The commands themselves are then read with the usual <tt>RXTIMEOUT</tt>.
+     * @return <tt>false</tt> if the client went away or stayed silent.
+     */
+    boolean awaitNextBlock(){
+	try {
+	    socket.setSoTimeout(WHServer.KEEPALIVE_IDLE_TIMEOUT);
+	    boolean ready = in.awaitInput();
+	    socket.setSoTimeout(WHServer.RXTIMEOUT);
+	    return ready;
+	} catch (IOException ioe){
+	    return false;
+	}
+    }
+
+    /**
+     * Says goodbye to the client and closes the connection.
+     */
+    void close(){
+	try {
+	    protocol.bye();
+	} catch (IOException ioe){}
+	out.close();
+	try {
+	    socket.close();
+	} catch (IOException ioe){}
+    }
+}
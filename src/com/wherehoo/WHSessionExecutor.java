@@ -0,0 +1,156 @@
+package com.wherehoo;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <tt>WHSessionExecutor</tt> runs client sessions with admission control.  At most <tt>max_running</tt>
+ * sessions run at the same time and at most <tt>queue_limit</tt> more wait for their turn.  A session
+ * offered beyond that is refused, so that an overloaded server turns clients away with <tt>NAK BUSY</tt>
+ * instead of running out of memory or database connections.
+ * The time a session spends waiting in the queue is tracked separately from the time it spends running.
+ */
+class WHSessionExecutor {
+
+    private Executor executor;
+    private int max_running;
+    private int queue_limit;
+    //permits for sessions admitted, running or queued
+    private Semaphore admission;
+    //permits for sessions running
+    private Semaphore running;
+
+    //metrics
+    private long accepted;
+    private long rejected;
+    private long completed;
+    private long queue_nanos;
+    private long queue_max_nanos;
+    private long service_nanos;
+    private long service_max_nanos;
+
+    /**
+     * Constructs a new <tt>WHSessionExecutor</tt>.
+     * @param _executor the executor that provides the threads
+     * @param _max_running maximum number of sessions running at the same time
+     * @param _queue_limit maximum number of sessions waiting to run
+     */
+    WHSessionExecutor(Executor _executor, int _max_running, int _queue_limit){
+	executor = _executor;
+	max_running = _max_running;
+	queue_limit = _queue_limit;
+	admission = new Semaphore(max_running + queue_limit);
+	running = new Semaphore(max_running);
+    }
+
+    /**
+     * Offers a session for execution.
+     * @param session the session to run
+     * @return <tt>true</tt> if the session was admitted, <tt>false</tt> if the executor is saturated.
+     */
+    boolean submit(final Runnable session){
+	if (! admission.tryAcquire()){
+	    synchronized (this){
+		rejected++;
+	    }
+	    return false;
+	}
+	final long queued_at = System.nanoTime();
+	try {
+	    executor.execute(new Runnable(){
+		    public void run(){
+			runAdmitted(session, queued_at);
+		    }
+		});
+	} catch (RejectedExecutionException ree){
+	    admission.release();
+	    synchronized (this){
+		rejected++;
+	    }
+	    return false;
+	}
+	synchronized (this){
+	    accepted++;
+	}
+	return true;
+    }
+
+    /**
+     * @return <tt>true</tt> if a session offered now would be refused.
+     */
+    boolean isSaturated(){
+	return admission.availablePermits() == 0;
+    }
+
+    /**
+     * Estimates how long a refused client should wait before it tries again: the time it takes
+     * to work off the current queue at the average service time.
+     * @return seconds to wait, between 1 and 60.
+     */
+    synchronized int retryAfter(){
+	double avg_service_sec = (completed == 0) ? 1 : (service_nanos / (double) completed) / 1e9;
+	int waiting = (max_running + queue_limit) - admission.availablePermits();
+	double estimate = avg_service_sec * Math.max(waiting, 1) / max_running;
+	return (int) Math.max(1, Math.min(60, Math.ceil(estimate)));
+    }
+
+    /** @return number of sessions running now */
+    int getRunningCount(){
+	return max_running - running.availablePermits();
+    }
+    /** @return number of sessions admitted and waiting to run */
+    int getQueuedCount(){
+	return Math.max(0, (max_running + queue_limit) - admission.availablePermits() - this.getRunningCount());
+    }
+    /** @return average msec an admitted session waited before it started */
+    synchronized double getAverageQueueMillis(){
+	return (completed == 0) ? 0 : (queue_nanos / (double) completed) / 1000000.0;
+    }
+    /** @return average msec a session ran */
+    synchronized double getAverageServiceMillis(){
+	return (completed == 0) ? 0 : (service_nanos / (double) completed) / 1000000.0;
+    }
+
+    /**
+     * Returns a one line summary of the executor metrics.
+     */
+    public synchronized String toString(){
+	return "sessions: running "+this.getRunningCount()
+	    +" queued "+this.getQueuedCount()
+	    +" accepted "+accepted
+	    +" rejected "+rejected
+	    +" avg_queue_ms "+Math.round(this.getAverageQueueMillis())
+	    +" max_queue_ms "+(queue_max_nanos/1000000)
+	    +" avg_service_ms "+Math.round(this.getAverageServiceMillis())
+	    +" max_service_ms "+(service_max_nanos/1000000);
+    }
+
+    //
+    //PRIVATE METHODS
+    //
+
+    private void runAdmitted(Runnable session, long queued_at){
+	long started = 0;
+	try {
+	    running.acquireUninterruptibly();
+	    started = System.nanoTime();
+	    try {
+		session.run();
+	    } finally {
+		running.release();
+	    }
+	} finally {
+	    admission.release();
+	    long finished = System.nanoTime();
+	    if (started == 0) started = finished;
+	    synchronized (this){
+		completed++;
+		queue_nanos += started - queued_at;
+		queue_max_nanos = Math.max(queue_max_nanos, started - queued_at);
+		service_nanos += finished - started;
+		service_max_nanos = Math.max(service_max_nanos, finished - started);
+	    }
+	}
+    }
+}
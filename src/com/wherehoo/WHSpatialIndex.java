@@ -0,0 +1,104 @@
+package com.wherehoo;
+
+import java.sql.*;
+import java.util.Set;
+
+/**
+ * <tt>WHSpatialIndex</tt> is an in-memory index over the areas of the live records, those with
+ * <tt>end_time</tt> in the future.  A search or count asks it for the records whose area overlaps the search
+ * area, and only asks the database about those.  The areas are found by their bounding boxes, and then
+ * compared exactly with <tt>WHPolygon.overlaps()</tt>, so a search area that overlaps no area needs no query.<br>
+ * The index is loaded from <tt>wherehoo_polygons</tt> when the server starts, and kept current by the insert
+ * and delete operations of this server.  A record whose area crosses the 0 meridian is stored as two rows,
+ * and has an entry for each of them, both under its uniqueidsha.<br>
+ * Bounding boxes are given as <tt>{minlat, minlon, maxlat, maxlon}</tt>, in the Wherehoo ranges: latitude
+ * in [-90,90], longitude in [0,360].  The ends are included: the halves of an area across the 0 meridian end
+ * on it, the west half at longitude 360 and the east half at 0, and an implementation must find them from
+ * searches that touch the meridian on either side.  The server picks the implementation with <tt>-index</tt>, see <tt>create()</tt>;
+ * the records are partitioned by end time in any case, see <tt>WHTimeBuckets</tt>.
+ */
+abstract class WHSpatialIndex {
+
+    /**
+     * Returns a new, empty index of the live records, made of time buckets that each hold an index of the given type.
+     * @param type "rtree" or "grid", see <tt>newIndex()</tt>, or "none" for no index
+     * @return the index, or <tt>null</tt> for "none".
+     * @throws IllegalArgumentException if <tt>type</tt> is none of these.
+     */
+    static WHSpatialIndex create(String type){
+	if (type.equals("none"))
+	    return null;
+	if (! type.equals("rtree") && ! type.equals("grid"))
+	    throw new IllegalArgumentException(type);
+	return new WHTimeBuckets(type);
+    }
+
+    /**
+     * Returns a new, empty index of the given type.
+     * @param type "rtree" for a <tt>WHRTree</tt>, "grid" for a <tt>WHGridIndex</tt>
+     * @throws IllegalArgumentException if <tt>type</tt> is neither.
+     */
+    static WHSpatialIndex newIndex(String type){
+	if (type.equals("rtree"))
+	    return new WHRTree();
+	if (type.equals("grid"))
+	    return new WHGridIndex();
+	throw new IllegalArgumentException(type);
+    }
+
+    /**
+     * Loads the live records of the database.
+     * @param pool the pool the index takes its database connection from
+     * @return the number of rows loaded.
+     */
+    int load(WHConnectionPool pool) throws SQLException {
+	Connection C = pool.getConnection();
+	int rows = 0;
+	try {
+	    //read through a cursor, the live records need not fit in memory twice
+	    C.setAutoCommit(false);
+	    Statement s = C.createStatement();
+	    s.setFetchSize(WHServer.getFetchSize());
+	    ResultSet rs = s.executeQuery("select uniqueidsha,area,end_time from wherehoo_polygons where end_time >= now()");
+	    while (rs.next()){
+		this.insert(rs.getString("uniqueidsha"),
+			    new WHPolygon(rs.getString("area")),
+			    rs.getTimestamp("end_time").getTime());
+		rows++;
+	    }
+	    rs.close();
+	    s.close();
+	    C.commit();
+	} finally {
+	    pool.releaseConnection(C);
+	}
+	return rows;
+    }
+
+    /**
+     * Adds one row of a record.
+     * @param uniqueidsha uid of the record
+     * @param area the area of the row
+     * @param end_time end of the life of the record, msec since the epoch
+     */
+    abstract void insert(String uniqueidsha, WHPolygon area, long end_time);
+
+    /**
+     * Removes all rows of a record.
+     * @param uniqueidsha uid of the record
+     * @return <tt>false</tt> if the record was not in the index.
+     */
+    abstract boolean remove(String uniqueidsha);
+
+    /**
+     * Adds to <tt>result</tt> the uniqueidsha of the records alive at <tt>now</tt>, whose area
+     * overlaps <tt>search</tt>.
+     * @param search the search area, not crossing the 0 meridian
+     * @param now msec since the epoch
+     * @param result the set the uids are added to
+     */
+    abstract void collect(WHPolygon search, long now, Set<String> result);
+
+    /** @return number of rows in the index */
+    abstract int size();
+}
@@ -0,0 +1,141 @@
+package com.wherehoo;
+
+import java.io.*;
+import java.util.StringTokenizer;
+
+/**
+ * <tt>WHTextProtocol</tt> is the original line protocol of Wherehoo: every reply is a line of text,
+ * only the data of a search result is sent as raw bytes.<br>
+ * The row command <tt>BAT n [META] [DATA]</tt> asks for the next <tt>n</tt> results at once.  Each header
+ * line is then followed by the metadata line if META was given, and by the data bytes if DATA was given,
+ * as if the client had sent "meta" and "data" for it.
+ */
+class WHTextProtocol extends WHProtocol {
+
+    private PrintWriter out;
+    private OutputStream raw_out;
+    private WHLineInputStream in;
+    //the writer and stream to the client while a batch is collected in batch
+    private PrintWriter live_out;
+    private OutputStream live_raw_out;
+    private ByteArrayOutputStream batch;
+
+    /**
+     * Constructs a new <tt>WHTextProtocol</tt>.
+     * @param _out the writer for the text replies, flushed at every line
+     * @param _raw_out the stream for binary replies
+     * @param _in the stream the client commands are read from
+     */
+    WHTextProtocol(PrintWriter _out, OutputStream _raw_out, WHLineInputStream _in){
+	out = _out;
+	raw_out = _raw_out;
+	in = _in;
+    }
+
+    void header(){
+	out.println(WHServer.serverHeader());
+    }
+    void ack(){
+	out.println("ACK");
+    }
+    void ok(){
+	out.println("OK");
+    }
+    void nak(String reason){
+	out.println("NAK "+reason);
+    }
+    void tag(String tag){
+	out.println("TAG "+tag);
+    }
+    void count(int count){
+	out.println(count);
+    }
+    void uid(String uid){
+	out.println(uid);
+    }
+    void deleted(boolean deleted){
+	out.println(deleted ? "ACK" : "NAK");
+    }
+
+    //Record descriptive data appears on one line, space-delimited, in this format:
+    //bearing compassdirection distance ttl bytes protocol mimetype meta
+    void record(double bearing, double heading, double distance, long ttl, int bytes,
+		String protocol, String mimetype, boolean has_meta){
+	out.println(Math.round(bearing)
+		    +" "+WHGeo.quadrant(heading)
+		    +" "+Math.round(distance)
+		    +" "+ttl
+		    +" "+bytes
+		    +" "+protocol
+		    +" "+mimetype
+		    +" "+(has_meta ? "META" : "NONE"));
+    }
+    void meta(String meta){
+	out.println(meta);
+    }
+    void data(byte[] data) throws IOException {
+	raw_out.write(data);
+	raw_out.flush();
+    }
+
+    int readRowCommand() throws IOException {
+	String line = in.readLine();
+	if (line == null)
+	    throw new EOFException();
+	String command = line.trim().toLowerCase();
+	if (command.equals("next"))
+	    return ROW_NEXT;
+	if (command.equals("skip"))
+	    return ROW_SKIP;
+	if (command.equals("meta"))
+	    return ROW_META;
+	if (command.equals("data"))
+	    return ROW_DATA;
+	if (command.startsWith("bat ")){
+	    StringTokenizer tokens = new StringTokenizer(command.substring(4));
+	    try {
+		batch_size = Math.min(Integer.parseInt(tokens.nextToken()),WHServer.MAXBATCH);
+	    } catch (NumberFormatException nfe){
+		return ROW_STOP;
+	    }
+	    batch_meta = false;
+	    batch_data = false;
+	    while (tokens.hasMoreTokens()){
+		String option = tokens.nextToken();
+		if (option.equals("meta"))
+		    batch_meta = true;
+		else if (option.equals("data"))
+		    batch_data = true;
+		else
+		    return ROW_STOP;
+	    }
+	    return (batch_size > 0) ? ROW_BATCH : ROW_STOP;
+	}
+	return ROW_STOP;
+    }
+
+    void beginBatch(){
+	live_out = out;
+	live_raw_out = raw_out;
+	batch = new ByteArrayOutputStream(8192);
+	raw_out = batch;
+	out = new PrintWriter(batch,true);
+    }
+    void endBatch() throws IOException {
+	out.flush();
+	out = live_out;
+	raw_out = live_raw_out;
+	batch.writeTo(raw_out);
+	raw_out.flush();
+	batch = null;
+    }
+
+    void end(int operations_left){
+	out.println(".");
+	out.println("KAL "+operations_left);
+    }
+    void bye(){
+	out.println(".");
+	out.println("BYE");
+    }
+}
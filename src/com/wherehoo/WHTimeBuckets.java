@@ -0,0 +1,129 @@
+package com.wherehoo;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <tt>WHTimeBuckets</tt> is a <tt>WHSpatialIndex</tt> that partitions the live records by <tt>end_time</tt>.
+ * Each bucket holds the records ending within the same <tt>BUCKET_MSEC</tt>, in a spatial index of its
+ * own, see <tt>WHSpatialIndex.newIndex()</tt>.  Buckets are made by the first insert that needs them.<br>
+ * A search only looks into the buckets that may hold records alive at its time, and the buckets whose records
+ * have all ended are dropped whole by <tt>expire()</tt>, without touching their records.  Every insert
+ * expires the buckets that have ended, so the index does not grow with the records that have ended.<br>
+ * Searches share a read lock, updates take the write lock.
+ */
+class WHTimeBuckets extends WHSpatialIndex {
+
+    /** span of the end times of the records of a bucket, msec */
+    static final long BUCKET_MSEC = 24L*60*60*1000;
+
+    private String type;
+    //start of the span of the bucket -> index of its records
+    private TreeMap<Long,WHSpatialIndex> buckets;
+    private long expired;
+    private ReentrantReadWriteLock lock;
+
+    /**
+     * Constructs a new <tt>WHTimeBuckets</tt>, with no buckets.
+     * @param _type type of the index of each bucket, "rtree" or "grid"
+     */
+    WHTimeBuckets(String _type){
+	type = _type;
+	buckets = new TreeMap<Long,WHSpatialIndex>();
+	expired = 0;
+	lock = new ReentrantReadWriteLock();
+    }
+
+    void insert(String uniqueidsha, WHPolygon area, long end_time){
+	Long key = WHTimeBuckets.bucketOf(end_time);
+	lock.writeLock().lock();
+	try {
+	    this.expire(System.currentTimeMillis());
+	    WHSpatialIndex bucket = buckets.get(key);
+	    if (bucket == null){
+		bucket = WHSpatialIndex.newIndex(type);
+		buckets.put(key, bucket);
+	    }
+	    bucket.insert(uniqueidsha, area, end_time);
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    boolean remove(String uniqueidsha){
+	lock.writeLock().lock();
+	try {
+	    //there are few buckets, one per BUCKET_MSEC of end times
+	    for (Iterator<WHSpatialIndex> it=buckets.values().iterator();it.hasNext();){
+		WHSpatialIndex bucket = it.next();
+		if (bucket.remove(uniqueidsha)){
+		    if (bucket.size() == 0)
+			it.remove();
+		    return true;
+		}
+	    }
+	    return false;
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    void collect(WHPolygon search, long now, Set<String> result){
+	lock.readLock().lock();
+	try {
+	    SortedMap<Long,WHSpatialIndex> alive = buckets.tailMap(WHTimeBuckets.bucketOf(now));
+	    for (Iterator<WHSpatialIndex> it=alive.values().iterator();it.hasNext();)
+		it.next().collect(search, now, result);
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * Drops the buckets whose records have all ended at <tt>now</tt>.
+     * @param now msec since the epoch
+     * @return the number of rows dropped.
+     */
+    int expire(long now){
+	lock.writeLock().lock();
+	try {
+	    SortedMap<Long,WHSpatialIndex> ended = buckets.headMap(WHTimeBuckets.bucketOf(now));
+	    int rows = 0;
+	    for (Iterator<WHSpatialIndex> it=ended.values().iterator();it.hasNext();)
+		rows += it.next().size();
+	    ended.clear();
+	    expired += rows;
+	    return rows;
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    int size(){
+	lock.readLock().lock();
+	try {
+	    int size = 0;
+	    for (Iterator<WHSpatialIndex> it=buckets.values().iterator();it.hasNext();)
+		size += it.next().size();
+	    return size;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    public String toString(){
+	lock.readLock().lock();
+	try {
+	    return type+" in "+buckets.size()+" time buckets: "+this.size()+" rows, "+expired+" rows expired";
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    private static Long bucketOf(long end_time){
+	return Long.valueOf(end_time - ((end_time % BUCKET_MSEC) + BUCKET_MSEC) % BUCKET_MSEC);
+    }
+}
@@ -24,9 +24,9 @@ public class WHTimeInterval{
     protected WHTimeInterval(){	
 	basetime = Calendar.getInstance();
 	begin = (Calendar) basetime.clone();
-	end = (Calendar) default_end.clone();
 	default_end = Calendar.getInstance();
-	default_end.set(9999,12,31,23,59,59);
+	default_end.set(9999,11,31,23,59,59);
+	end = (Calendar) default_end.clone();
     }
 
     /**
@@ -40,7 +40,7 @@ public class WHTimeInterval{
 
     protected void setBegin(String offsets) throws WHTimeException {
 	StringTokenizer param_tokens = new StringTokenizer(offsets);
-	int[] deltabeg = new int[5];
+	int[] deltabeg = new int[6];
 	try {  
 	    deltabeg[0]=Integer.parseInt(param_tokens.nextToken()); 
 	    deltabeg[1]=Integer.parseInt(param_tokens.nextToken()); 
@@ -60,7 +60,7 @@ public class WHTimeInterval{
 
     protected void setEnd(String offsets) throws WHTimeException {
 	StringTokenizer param_tokens = new StringTokenizer(offsets); 
-	int[] deltaend = new int[5];
+	int[] deltaend = new int[6];
 	try {  
 	    deltaend[0]=Integer.parseInt(param_tokens.nextToken()); 
 	    deltaend[1]=Integer.parseInt(param_tokens.nextToken()); 
@@ -0,0 +1,282 @@
+package com.wherehoo;
+
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * Tests of <tt>WHBinaryProtocol</tt>: the varints and doubles of its frames, the reply frames, and
+ * command blocks that must read the same as the text protocol.  The sessions run on a socket that
+ * is never connected; its streams are in memory.
+ */
+class WHBinaryProtocolTest {
+
+    static void run(){
+	try {
+	    WHBinaryProtocolTest.varints();
+	    WHBinaryProtocolTest.replyFrames();
+	    WHBinaryProtocolTest.sameAsText();
+	    WHBinaryProtocolTest.malformedFrames();
+	} catch (IOException ioe){
+	    WHTest.check(false, "binary protocol test threw "+ioe);
+	}
+    }
+
+    static void varints() throws IOException {
+	long[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, 1L<<35, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+	for (int i=0;i<values.length;i++){
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    WHBinaryProtocol.writeVarint(out,values[i]);
+	    WHTest.check(out.size() <= WHBinaryProtocol.MAX_VARINT, "varint "+values[i]+" fits in MAX_VARINT bytes");
+	    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+	    WHTest.check(WHBinaryProtocol.readVarint(in) == values[i], "varint "+values[i]+" round trip");
+	    WHTest.check(in.available() == 0, "varint "+values[i]+" is read to its end");
+
+	    in = new ByteArrayInputStream(WHBinaryProtocolTest.signedVarint(values[i]));
+	    WHTest.check(WHBinaryProtocol.readSignedVarint(in) == values[i], "signed varint "+values[i]+" round trip");
+	}
+	double[] doubles = {0, -0.0, 1.5, -71.0942, 1e-300, Double.MAX_VALUE, Double.NaN};
+	for (int i=0;i<doubles.length;i++){
+	    ByteArrayInputStream in = new ByteArrayInputStream(WHBinaryProtocolTest.doubles(new double[] {doubles[i]}));
+	    double read = WHBinaryProtocol.readDouble(in);
+	    WHTest.check(Double.doubleToLongBits(read) == Double.doubleToLongBits(doubles[i]), "double "+doubles[i]+" round trip");
+	}
+	//a varint that does not end within 64 bits
+	byte[] endless = new byte[WHBinaryProtocol.MAX_VARINT + 1];
+	java.util.Arrays.fill(endless,(byte) 0x80);
+	try {
+	    WHBinaryProtocol.readVarint(new ByteArrayInputStream(endless));
+	    WHTest.check(false, "an endless varint is refused");
+	} catch (IOException ioe){}
+	try {
+	    WHBinaryProtocol.readVarint(new ByteArrayInputStream(new byte[] {(byte) 0x80}));
+	    WHTest.check(false, "a cut varint is refused");
+	} catch (EOFException eofe){}
+    }
+
+    static void replyFrames() throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	WHBinaryProtocol protocol = new WHBinaryProtocol(out,new WHLineInputStream(new ByteArrayInputStream(new byte[0])));
+	protocol.count(300);
+	protocol.nak("IDT LLH");
+	protocol.deleted(true);
+	protocol.end(7);
+	out.write(WHBinaryProtocol.busyFrame(5));
+
+	ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+	WHBinaryProtocolTest.checkReply(in, WHBinaryProtocol.R_COUNT, WHBinaryProtocolTest.varint(300), "COUNT");
+	WHBinaryProtocolTest.checkReply(in, WHBinaryProtocol.R_NAK, "IDT LLH".getBytes("ISO-8859-1"), "NAK");
+	WHBinaryProtocolTest.checkReply(in, WHBinaryProtocol.R_DELETED, new byte[] {1}, "DELETED");
+	WHBinaryProtocolTest.checkReply(in, WHBinaryProtocol.R_END, WHBinaryProtocolTest.varint(7), "END");
+	WHBinaryProtocolTest.checkReply(in, WHBinaryProtocol.R_BUSY, WHBinaryProtocolTest.varint(5), "BUSY");
+	WHTest.check(in.available() == 0, "reply frames are read to their end");
+    }
+
+    //the same command block, sent as text and as frames, must leave the same collector
+    static void sameAsText() throws IOException {
+	byte[] data = {'h', 'e', 'l', 'l', 'o'};
+	byte[] signature = new byte[WHServer.SIGNATUREBYTECOUNT];
+	for (int i=0;i<signature.length;i++)
+	    signature[i] = (byte) (0x80 + i);
+	double[] llh = {42.36, -71.09, 42.37, -71.08, 10};
+
+	ByteArrayOutputStream text = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.line(text,"IDT alice");
+	WHBinaryProtocolTest.line(text,"ACT insert");
+	WHBinaryProtocolTest.line(text,"LLH 42.36 -71.09 10 42.37 -71.08 10");
+	WHBinaryProtocolTest.line(text,"BEG 0 0 0 0 0 0");
+	WHBinaryProtocolTest.line(text,"END 0 0 1 0 0 0");
+	WHBinaryProtocolTest.line(text,"MIM text/plain");
+	WHBinaryProtocolTest.line(text,"PRO HTTP");
+	WHBinaryProtocolTest.line(text,"MET a note");
+	WHBinaryProtocolTest.line(text,"DAT 5");
+	text.write(data);
+	text.write(signature);
+	WHBinaryProtocolTest.line(text,".");
+	ByteArrayOutputStream frames = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_IDT,"alice".getBytes("ISO-8859-1"));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_ACT,new byte[] {WHBinaryProtocol.ACT_INSERT});
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_LLH,WHBinaryProtocolTest.doubles(llh));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_BEG,WHBinaryProtocolTest.offsets(new long[] {0,0,0,0,0,0}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_END,WHBinaryProtocolTest.offsets(new long[] {0,0,1,0,0,0}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_MIM,"text/plain".getBytes("ISO-8859-1"));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_PRO,"HTTP".getBytes("ISO-8859-1"));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_MET,"a note".getBytes("ISO-8859-1"));
+	ByteArrayOutputStream payload = new ByteArrayOutputStream();
+	payload.write(data);
+	payload.write(signature);
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_DAT,payload.toByteArray());
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_DOT,new byte[0]);
+	WHBinaryProtocolTest.checkSame(text,frames,"insert");
+
+	text = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.line(text,"ACT query");
+	WHBinaryProtocolTest.line(text,"LLH 42.36 -71.09 10");
+	WHBinaryProtocolTest.line(text,"RAD 100");
+	WHBinaryProtocolTest.line(text,"PJT 90 50");
+	WHBinaryProtocolTest.line(text,"HDG -45");
+	WHBinaryProtocolTest.line(text,"LIM 10");
+	WHBinaryProtocolTest.line(text,"ORD nearest");
+	WHBinaryProtocolTest.line(text,"TAG q1");
+	WHBinaryProtocolTest.line(text,"KAL");
+	WHBinaryProtocolTest.line(text,".");
+	frames = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_ACT,new byte[] {WHBinaryProtocol.ACT_QUERY});
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_LLH,WHBinaryProtocolTest.doubles(new double[] {42.36, -71.09, 10}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_RAD,WHBinaryProtocolTest.doubles(new double[] {100}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_PJT,WHBinaryProtocolTest.doubles(new double[] {90, 50}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_HDG,WHBinaryProtocolTest.doubles(new double[] {-45}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_LIM,WHBinaryProtocolTest.varint(10));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_ORD,new byte[] {WHBinaryProtocol.ORD_NEAREST});
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_TAG,"q1".getBytes("ISO-8859-1"));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_KAL,new byte[0]);
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_DOT,new byte[0]);
+	WHBinaryProtocolTest.checkSame(text,frames,"query");
+
+	text = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.line(text,"ACT count");
+	WHBinaryProtocolTest.line(text,"LLH 42.36 -71.09 10");
+	WHBinaryProtocolTest.line(text,"SHP rect_fwd");
+	WHBinaryProtocolTest.line(text,"WID 20");
+	WHBinaryProtocolTest.line(text,"LEN 30");
+	WHBinaryProtocolTest.line(text,"HDG 400");
+	WHBinaryProtocolTest.line(text,".");
+	frames = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_ACT,new byte[] {WHBinaryProtocol.ACT_COUNT});
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_LLH,WHBinaryProtocolTest.doubles(new double[] {42.36, -71.09, 10}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_SHP,new byte[] {WHBinaryProtocol.SHP_RECT_FWD});
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_WID,WHBinaryProtocolTest.doubles(new double[] {20}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_LEN,WHBinaryProtocolTest.doubles(new double[] {30}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_HDG,WHBinaryProtocolTest.doubles(new double[] {400}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_DOT,new byte[0]);
+	WHBinaryProtocolTest.checkSame(text,frames,"count");
+
+	text = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.line(text,"IDT alice");
+	WHBinaryProtocolTest.line(text,"ACT delete");
+	WHBinaryProtocolTest.line(text,"UID 0123456789abcdef0123456789abcdef01234567");
+	WHBinaryProtocolTest.line(text,"SHA 76543210");
+	WHBinaryProtocolTest.line(text,".");
+	frames = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_IDT,"alice".getBytes("ISO-8859-1"));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_ACT,new byte[] {WHBinaryProtocol.ACT_DELETE});
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_UID,"0123456789abcdef0123456789abcdef01234567".getBytes("ISO-8859-1"));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_SHA,"76543210".getBytes("ISO-8859-1"));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_DOT,new byte[0]);
+	WHBinaryProtocolTest.checkSame(text,frames,"delete");
+    }
+
+    //frames of the wrong length are rejected, and the frames after them are still read
+    static void malformedFrames() throws IOException {
+	ByteArrayOutputStream frames = new ByteArrayOutputStream();
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_IDT,new byte[WHServer.MAXIDT + 1]);
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_MET,new byte[WHServer.MAXMETA + 1]);
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_TAG,new byte[WHServer.MAXTAG + 1]);
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_UID,new byte[WHServer.MAXFIELD + 1]);
+	//three offsets, and seven
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_BEG,WHBinaryProtocolTest.offsets(new long[] {1,2,3}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_END,WHBinaryProtocolTest.offsets(new long[] {0,0,1,0,0,0,9}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_LIM,WHBinaryProtocolTest.offsets(new long[] {10,10}));
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_ACT,new byte[] {WHBinaryProtocol.ACT_QUERY});
+	WHBinaryProtocolTest.frame(frames,WHBinaryProtocol.OP_DOT,new byte[0]);
+	WHDataCollector collector = WHBinaryProtocolTest.collector(frames.toByteArray(),true);
+	WHTest.check(collector.readDataFromClient(), "a block with malformed frames is read to its end");
+	String state = collector.toString();
+	WHTest.check(state.indexOf("ACT: query") >= 0, "the frame after malformed frames is read: "+state);
+	String errors = state.substring(state.indexOf("ERRORS: "));
+	String[] rejected = {"idt", "met", "tag", "uid", "beg", "end", "lim"};
+	for (int i=0;i<rejected.length;i++)
+	    WHTest.check(errors.indexOf(rejected[i]) >= 0, "a malformed "+rejected[i]+" frame is rejected: "+errors);
+	WHTest.check(errors.indexOf("act") < 0, "the frame after malformed frames is accepted: "+errors);
+
+	//a string frame that claims more than the server accepts is not read into memory
+	frames = new ByteArrayOutputStream();
+	frames.write(WHBinaryProtocol.OP_MET);
+	WHBinaryProtocol.writeVarint(frames,Integer.MAX_VALUE);
+	collector = WHBinaryProtocolTest.collector(frames.toByteArray(),true);
+	WHTest.check(! collector.readDataFromClient(), "a client that stops inside a huge frame has gone away");
+    }
+
+    //
+    //HELPERS
+    //
+
+    private static void checkSame(ByteArrayOutputStream text, ByteArrayOutputStream frames, String what) throws IOException {
+	WHDataCollector from_text = WHBinaryProtocolTest.collector(text.toByteArray(),false);
+	WHDataCollector from_frames = WHBinaryProtocolTest.collector(frames.toByteArray(),true);
+	WHTest.check(from_text.readDataFromClient(), what+" block is read as text");
+	WHTest.check(from_frames.readDataFromClient(), what+" block is read as frames");
+	WHTest.check(from_text.toString().equals(from_frames.toString()),
+		     what+" reads the same as text and as frames:\n  "+from_text+"\n  "+from_frames);
+    }
+
+    //a collector of a new session that reads input; a binary client opens with the magic byte and the version
+    private static WHDataCollector collector(byte[] input, boolean binary) throws IOException {
+	ByteArrayOutputStream client_input = new ByteArrayOutputStream();
+	if (binary){
+	    client_input.write(WHBinaryProtocol.MAGIC);
+	    client_input.write(WHBinaryProtocol.VERSION);
+	}
+	client_input.write(input);
+	WHSession session = new WHSession(WHBinaryProtocolTest.socket(client_input.toByteArray()));
+	WHTest.check(session.negotiate() && session.isBinary() == binary, "session negotiates the "+(binary ? "binary" : "text")+" protocol");
+	return new WHDataCollector(session,null);
+    }
+
+    private static Socket socket(final byte[] input){
+	final InputStream in = new ByteArrayInputStream(input);
+	final OutputStream out = new ByteArrayOutputStream();
+	return new Socket(){
+		public InputStream getInputStream(){
+		    return in;
+		}
+		public OutputStream getOutputStream(){
+		    return out;
+		}
+	    };
+    }
+
+    private static void checkReply(InputStream in, int opcode, byte[] payload, String what) throws IOException {
+	WHTest.check(in.read() == opcode, what+" opcode");
+	long length = WHBinaryProtocol.readVarint(in);
+	WHTest.check(length == payload.length, what+" length");
+	byte[] read = new byte[(int) length];
+	WHTest.check(in.read(read,0,read.length) == read.length && java.util.Arrays.equals(read,payload), what+" payload");
+    }
+
+    static void line(OutputStream out, String line) throws IOException {
+	out.write((line+"\r\n").getBytes("ISO-8859-1"));
+    }
+
+    static void frame(OutputStream out, int opcode, byte[] payload) throws IOException {
+	out.write(opcode);
+	WHBinaryProtocol.writeVarint(out,payload.length);
+	out.write(payload);
+    }
+
+    private static byte[] varint(long value) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	WHBinaryProtocol.writeVarint(out,value);
+	return out.toByteArray();
+    }
+
+    private static byte[] signedVarint(long value) throws IOException {
+	return WHBinaryProtocolTest.varint((value << 1) ^ (value >> 63));
+    }
+
+    private static byte[] offsets(long[] values) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	for (int i=0;i<values.length;i++)
+	    out.write(WHBinaryProtocolTest.signedVarint(values[i]));
+	return out.toByteArray();
+    }
+
+    private static byte[] doubles(double[] values){
+	byte[] bytes = new byte[8 * values.length];
+	for (int i=0;i<values.length;i++){
+	    long bits = Double.doubleToRawLongBits(values[i]);
+	    for (int j=0;j<8;j++)
+		bytes[8*i + j] = (byte) (bits >>> (56 - 8*j));
+	}
+	return bytes;
+    }
+}
@@ -0,0 +1,99 @@
+package com.wherehoo;
+
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests of <tt>WHDatabaseCheck</tt>: the checks of many client threads run at the same time.  The account
+ * cache is replaced by one that takes <tt>LOOKUP_MSEC</tt> for every lookup, as a database round trip would,
+ * so <tt>THREADS</tt> checks at once must take about as long as one, not <tt>THREADS</tt> times as long.
+ */
+class WHDatabaseCheckTest {
+
+    static final int THREADS = 16;
+    static final long LOOKUP_MSEC = 200;
+
+    static void run(){
+	try {
+	    WHDatabaseCheckTest.results();
+	    WHDatabaseCheckTest.concurrency();
+	} catch (Exception e){
+	    WHTest.check(false, "database check test threw "+e);
+	}
+    }
+
+    static void results() throws Exception {
+	WHDatabaseCheck check = new WHDatabaseCheck(null, new SlowAccounts());
+	byte[] data = "some data".getBytes("ISO-8859-1");
+	WHTest.check(check.checkUser("alice"), "a known user");
+	WHTest.check(! check.checkUser("mallory"), "an unknown user");
+	WHTest.check(check.checkProtocol("http"), "a known protocol");
+	WHTest.check(! check.checkProtocol("gopher"), "an unknown protocol");
+	WHTest.check(check.checkSignature(data, WHDatabaseCheckTest.sign(data,"secret"), "alice"), "a good signature");
+	WHTest.check(! check.checkSignature(data, WHDatabaseCheckTest.sign(data,"guess"), "alice"), "a signature with the wrong secret");
+	WHTest.check(! check.checkSignature(data, WHDatabaseCheckTest.sign(data,"secret"), "mallory"), "a signature of an unknown user");
+    }
+
+    static void concurrency() throws Exception {
+	final WHDatabaseCheck check = new WHDatabaseCheck(null, new SlowAccounts());
+	final byte[] data = "some data".getBytes("ISO-8859-1");
+	final byte[] signature = WHDatabaseCheckTest.sign(data,"secret");
+	final CountDownLatch start = new CountDownLatch(1);
+	final CountDownLatch done = new CountDownLatch(THREADS);
+	final boolean[] passed = new boolean[THREADS];
+	for (int i=0;i<THREADS;i++){
+	    final int index = i;
+	    new Thread("check "+i){
+		public void run(){
+		    try {
+			start.await();
+			passed[index] = check.checkSignature(data, signature, "alice") && check.checkProtocol("http");
+		    } catch (InterruptedException ie){
+		    } finally {
+			done.countDown();
+		    }
+		}
+	    }.start();
+	}
+	long begin = System.currentTimeMillis();
+	start.countDown();
+	done.await();
+	long elapsed = System.currentTimeMillis() - begin;
+	int failed = 0;
+	for (int i=0;i<THREADS;i++)
+	    if (! passed[i])
+		failed++;
+	WHTest.check(failed == 0, failed+" of "+THREADS+" concurrent checks failed");
+	//one thread does two lookups; one after the other, the threads would take THREADS times as long
+	WHTest.check(elapsed < 4 * 2 * LOOKUP_MSEC,
+		     THREADS+" concurrent checks took "+elapsed+" msec, one takes "+(2 * LOOKUP_MSEC));
+    }
+
+    //the signature a client sends in SHA: SHA-1 of the data followed by the secret of the user
+    private static byte[] sign(byte[] data, String secret) throws Exception {
+	MessageDigest md = MessageDigest.getInstance("SHA-1");
+	md.update(data);
+	md.update(secret.getBytes());
+	return md.digest();
+    }
+
+    //an account cache of one user and one protocol, as slow as the database
+    private static class SlowAccounts extends WHAccountCache {
+	SlowAccounts(){
+	    super(null, 0);
+	}
+	protected String getSecret(String userid){
+	    SlowAccounts.lookUp();
+	    return "alice".equals(userid) ? "secret" : null;
+	}
+	protected boolean hasProtocol(String protocol){
+	    SlowAccounts.lookUp();
+	    return "http".equals(protocol);
+	}
+	private static void lookUp(){
+	    try {
+		Thread.sleep(LOOKUP_MSEC);
+	    } catch (InterruptedException ie){}
+	}
+    }
+}
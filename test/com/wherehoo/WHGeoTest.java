@@ -0,0 +1,303 @@
+package com.wherehoo;
+
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.math.BigDecimal;
+import java.util.Random;
+
+/**
+ * Tests of <tt>WHGeo</tt> against the BigDecimal implementation it replaced, kept here as
+ * <tt>Reference</tt>: distances and projections must agree to the millimetre, and <tt>toWHFormat()</tt>
+ * exactly.  A heading is checked by how far off its end point it leads.
+ */
+class WHGeoTest {
+
+    static void run(){
+	WHGeoTest.distances();
+	WHGeoTest.headings();
+	WHGeoTest.projections();
+	WHGeoTest.formats();
+    }
+
+    //pairs of points all over the earth, from a metre apart to the far side of it
+    static void distances(){
+	Random random = new Random(20);
+	double worst = 0;
+	double worst_line = 0;
+	for (int i=0;i<20000;i++){
+	    Point2D.Double origin = WHGeoTest.randomPoint(random);
+	    Point2D.Double end = WHGeoTest.nearPoint(random,origin);
+	    worst = Math.max(worst,Math.abs(WHGeo.distance(origin,end) - Reference.distance(origin,end)));
+	    Line2D.Double line = new Line2D.Double(end,WHGeoTest.nearPoint(random,end));
+	    worst_line = Math.max(worst_line,Math.abs(WHGeo.distance(origin,line) - Reference.distance(origin,line)));
+	}
+	WHTest.check(worst <= 0.001, "distances differ from the BigDecimal ones by up to "+worst+" m");
+	//these go by the headings of the ends of the line
+	WHTest.check(worst_line <= 0.1, "distances to lines differ from the BigDecimal ones by up to "+worst_line+" m");
+	WHTest.checkNear(111132,WHGeo.distance(new Point2D.Double(0,10),new Point2D.Double(1,10)),700,"a degree of latitude");
+	WHTest.checkNear(WHGeo.distance(new Point2D.Double(0,0.5),new Point2D.Double(0,1.5)),
+			 WHGeo.distance(new Point2D.Double(0,359.5),new Point2D.Double(0,0.5)),1e-6,"distance across the 0 meridian");
+    }
+
+    /*
+     * A heading is rounded to fewer places the farther its end point is, so that it leads no more than a metre
+     * off the end point.  The BigDecimal headings were off by up to 8 cm for points a few metres apart, where
+     * their sum for H cancels; so the headings are checked against the BigDecimal ones to 10 cm, and within
+     * 100 m, against the bearing on a plane, to the 3 cm their rounding to whole degrees allows at 3 m.
+     */
+    static void headings(){
+	Random random = new Random(21);
+	double worst = 0;
+	double worst_near = 0;
+	for (int i=0;i<20000;i++){
+	    Point2D.Double origin = WHGeoTest.randomPoint(random);
+	    Point2D.Double end = WHGeoTest.nearPoint(random,origin);
+	    double distance = Reference.distance(origin,end);
+	    double actual = WHGeo.heading(origin,end);
+	    worst = Math.max(worst,WHGeoTest.miss(Reference.heading(origin,end),actual,distance));
+	    if (distance < 100){
+		double dlon = ((end.getY() - origin.getY() + 540) % 360) - 180;
+		double plane = Math.toDegrees(Math.atan2(dlon * Math.cos(Math.toRadians((origin.getX() + end.getX())/2)),
+							 end.getX() - origin.getX()));
+		worst_near = Math.max(worst_near,WHGeoTest.miss((plane + 360) % 360,actual,distance));
+	    }
+	}
+	WHTest.check(worst <= 0.1, "headings lead up to "+worst+" m away from where the BigDecimal ones lead");
+	WHTest.check(worst_near <= 0.03, "headings lead up to "+worst_near+" m away from the bearing on a plane");
+	WHTest.check(WHGeo.heading(new Point2D.Double(90,0),new Point2D.Double(80,0)) == -1, "heading from the pole");
+	WHTest.check(WHGeo.heading(new Point2D.Double(10,10),new Point2D.Double(10,10)) == 0, "heading to the same point");
+	WHTest.check(WHGeo.heading(new Point2D.Double(10,10),new Point2D.Double(9,10)) == 180, "heading south");
+	WHTest.checkNear(90,WHGeo.heading(new Point2D.Double(0,359.9),new Point2D.Double(0,0.1)),0.01,"heading east across the 0 meridian");
+    }
+
+    static void projections(){
+	Random random = new Random(22);
+	double worst = 0;
+	int refused = 0;
+	for (int i=0;i<20000;i++){
+	    Point2D.Double origin = WHGeoTest.randomPoint(random);
+	    double angle = 360 * random.nextDouble();
+	    double range = Math.pow(10, 6 * random.nextDouble());
+	    Point2D.Double expected = (Point2D.Double) origin.clone();
+	    Point2D.Double actual = (Point2D.Double) origin.clone();
+	    boolean expected_refused = false;
+	    boolean actual_refused = false;
+	    try {
+		Reference.project(expected,angle,range);
+	    } catch (NumberFormatException nfe){
+		expected_refused = true;
+	    }
+	    try {
+		WHGeo.project(actual,angle,range);
+	    } catch (NumberFormatException nfe){
+		actual_refused = true;
+	    }
+	    if (expected_refused || actual_refused){
+		WHTest.check(expected_refused == actual_refused, "projection of "+origin+" by "+range+" m at "+angle+" refused alike");
+		refused++;
+		continue;
+	    }
+	    worst = Math.max(worst,Reference.distance(expected,actual));
+	}
+	WHTest.check(worst <= 0.001, "projections differ from the BigDecimal ones by up to "+worst+" m");
+	WHTest.check(refused < 200, refused+" projections past a pole are refused");
+	Point2D.Double point = new Point2D.Double(0,359.99);
+	WHGeo.project(point,90,10000);
+	WHTest.check(point.getY() >= 0 && point.getY() < 1, "projection east across the 0 meridian: "+point);
+    }
+
+    static void formats(){
+	Random random = new Random(23);
+	int differ = 0;
+	for (int i=0;i<20000;i++){
+	    //whole numbers, and numbers of a few binary places, were converted unlike the rest
+	    double x = WHGeoTest.randomCoordinate(random);
+	    double y = WHGeoTest.randomCoordinate(random);
+	    Point2D.Double expected = new Point2D.Double(x,y);
+	    Point2D.Double actual = new Point2D.Double(x,y);
+	    Reference.toWHFormat(expected);
+	    WHGeo.toWHFormat(actual);
+	    if (expected.getX() != actual.getX() || expected.getY() != actual.getY())
+		differ++;
+	}
+	WHTest.check(differ == 0, differ+" points are converted unlike the BigDecimal conversion");
+	try {
+	    WHGeo.toWHFormat(new Point2D.Double(Double.NaN,0));
+	    WHTest.check(false, "a latitude that is not a number is refused");
+	} catch (NumberFormatException nfe){}
+	Point2D.Double point = new Point2D.Double(-10.25,-71);
+	WHGeo.toWHFormat(point);
+	WHTest.check(point.getX() == -10.25 && point.getY() == 289, "a whole negative longitude is turned into the Wherehoo range");
+	point.setLocation(-10.25,-71.06);
+	WHGeo.toWHFormat(point);
+	WHTest.check(point.getY() == -71.06, "a negative longitude that is not whole keeps its sign");
+    }
+
+    private static double randomCoordinate(Random random){
+	switch (random.nextInt(4)){
+	case 0:
+	    return 90 * random.nextInt(13) - 540;
+	case 1:
+	    return (random.nextInt(16000) - 8000) / 8.0;
+	default:
+	    return 2000 * random.nextDouble() - 1000;
+	}
+    }
+
+    //how far apart the ends of two paths of distance m at the two headings are, across the path
+    private static double miss(double expected, double actual, double distance){
+	double difference = Math.abs(expected - actual);
+	return distance * Math.sin(Math.toRadians(Math.min(Math.min(difference,360 - difference),90)));
+    }
+
+    private static Point2D.Double randomPoint(Random random){
+	return new Point2D.Double(-89 + 178 * random.nextDouble(), 360 * random.nextDouble());
+    }
+
+    //a point up to about 50 degrees from origin, in the Wherehoo ranges
+    private static Point2D.Double nearPoint(Random random, Point2D.Double origin){
+	double size = Math.pow(10, -5 + 6.7 * random.nextDouble());
+	double lat = Math.max(-89.9, Math.min(89.9, origin.getX() + size * (2 * random.nextDouble() - 1)));
+	double lon = (origin.getY() + size * (2 * random.nextDouble() - 1) + 360) % 360;
+	return new Point2D.Double(lat,lon);
+    }
+
+    //WHGeo as it was before its calculations were done in double
+    private static class Reference {
+	private static final double GEO_E2 = 0.00669437999013;
+	private static final double Ra = (6378137.0 * Math.sqrt(1 - GEO_E2));
+
+	static double heading(Point2D.Double origin, Point2D.Double end){
+	    double lat1=origin.getX();
+	    double lat2=end.getX();
+	    double lon1=origin.getY();
+	    double lon2=end.getY();
+	    double rlat1=Math.toRadians(lat1);
+	    double rlat2=Math.toRadians(lat2);
+	    double rlon1=Math.toRadians(lon1);
+	    double rlon2=Math.toRadians(lon2);
+	    double pre_theta1;
+	    double pre_theta2=0;
+	    if (lat1==90) return -1;
+	    boolean zero_lon_crossing=(Math.abs(lon1-lon2)>(360-Math.abs(lon1-lon2)));
+	    double dlat=Math.min(Math.abs(lat2-lat1),360-Math.abs(lat2-lat1));
+	    double dlon=Math.min(Math.abs(lon2-lon1),360-Math.abs(lon2-lon1));
+	    double drlat = Math.toRadians(dlat);
+	    double drlon = Math.toRadians(dlon);
+	    if (drlat==0 && drlon==0)
+		return 0;
+	    int s_n=(rlat2>rlat1) ? 1 : ((rlat2==rlat1) ? 0 : -1);
+	    int w_e=(rlon2>rlon1) ? 1 : ((rlon2==rlon1) ? 0 : -1);
+	    if (zero_lon_crossing)
+		w_e=w_e*-1;
+	    try{
+		BigDecimal pre_h_1= (new BigDecimal(Math.sin(rlat1))).multiply(new BigDecimal(Math.sin(rlat2)));
+		BigDecimal pre_h_2= (new BigDecimal(Math.cos(rlat1))).multiply(new BigDecimal(Math.cos(rlat2))).multiply(new BigDecimal(Math.cos(drlon)));
+		double H=Math.asin((pre_h_1.add(pre_h_2)).doubleValue());
+		double pre_z=((new BigDecimal(Math.cos(rlat2))).multiply(new BigDecimal(Math.sin(drlon))).divide( new BigDecimal(Math.cos(H)),50,BigDecimal.ROUND_HALF_UP)).doubleValue();
+		pre_theta1=Math.toDegrees(Math.abs(Math.asin(pre_z)));
+	    } catch (Exception e){
+		pre_theta1=90;
+	    }
+	    if (!(pre_theta1>=0 && pre_theta1<=360))
+		pre_theta1=90;
+	    if(s_n==1 && w_e==0) pre_theta2=pre_theta1;
+	    if(s_n==1 && w_e==1) pre_theta2=pre_theta1;
+	    if(s_n==0 && w_e==1) pre_theta2=pre_theta1;
+	    if(s_n==-1 && w_e==1) pre_theta2=180-pre_theta1;
+	    if(s_n==-1 && w_e==0) pre_theta2=180;
+	    if(s_n==-1 && w_e==-1) pre_theta2=180+pre_theta1;
+	    if(s_n==0 && w_e==-1) pre_theta2=180+pre_theta1;
+	    if(s_n==1 && w_e==-1) pre_theta2=360-pre_theta1;
+	    double dist=Math.max(Reference.distance(origin,end),1);
+	    int precision = Math.max(((int) Math.rint(Math.log(dist)/Math.log(10))),0);
+	    return ((new BigDecimal(pre_theta2)).divide(new BigDecimal(1),precision,BigDecimal.ROUND_HALF_UP)).doubleValue();
+	}
+
+	static void project(Point2D.Double location, double angle, double range){
+	    double rlat = Math.toRadians(location.getX());
+	    double rlon = Math.toRadians(location.getY());
+	    double rpjheading = Math.toRadians(angle);
+	    BigDecimal bd_of_2=new BigDecimal(2);
+	    BigDecimal rlatBD=new BigDecimal(rlat);
+	    BigDecimal rlonBD=new BigDecimal(rlon);
+	    BigDecimal rangeBD=new BigDecimal(range);
+	    BigDecimal rBD =new BigDecimal(Ra / (1 - (GEO_E2 * Math.pow(Math.sin(rlat),2))));
+	    BigDecimal dxBD = rangeBD.multiply(new BigDecimal(Math.cos(rpjheading)));
+	    BigDecimal dyBD = rangeBD.multiply(new BigDecimal(Math.sin(rpjheading)));
+	    BigDecimal drlatBD = dxBD.divide(rBD,20,BigDecimal.ROUND_HALF_EVEN);
+	    double rlat1 = rlatBD.add(drlatBD).doubleValue();
+	    BigDecimal drlonBD = bd_of_2.multiply(new BigDecimal(Math.asin(((new BigDecimal(Math.sin((dyBD.divide(bd_of_2.multiply(rBD),20,BigDecimal.ROUND_HALF_EVEN).doubleValue())))).divide((new BigDecimal(Math.cos(rlat1))),20,BigDecimal.ROUND_HALF_EVEN)).doubleValue())));
+	    double rlon1= rlonBD.add(drlonBD).doubleValue();
+	    location.setLocation(Math.toDegrees(rlat1),Math.toDegrees(rlon1));
+	    Reference.toWHFormat(location);
+	}
+
+	static double distance(Point2D.Double origin, Point2D.Double end){
+	    BigDecimal bd_of_2 = new BigDecimal(2);
+	    BigDecimal bd_of_2PI = bd_of_2.multiply(new BigDecimal(Math.PI));
+	    double rlat1=Math.toRadians(origin.getX());
+	    double rlat2=Math.toRadians(end.getX());
+	    double rlon1=Math.toRadians(origin.getY());
+	    double rlon2=Math.toRadians(end.getY());
+	    BigDecimal rlat1BD= new BigDecimal(rlat1);
+	    BigDecimal rlat2BD= new BigDecimal(rlat2);
+	    BigDecimal rlon1BD= new BigDecimal(rlon1);
+	    BigDecimal rlon2BD= new BigDecimal(rlon2);
+	    BigDecimal rBD = new BigDecimal(Ra / (1 - (GEO_E2 * Math.pow(Math.sin(rlat1),2))));
+	    BigDecimal drlatBD=((rlat2BD.subtract(rlat1BD)).abs()).min(bd_of_2PI.subtract(rlat2BD.subtract(rlat1BD).abs()));
+	    BigDecimal drlonBD=((rlon2BD.subtract(rlon1BD)).abs()).min(bd_of_2PI.subtract(rlon2BD.subtract(rlon1BD).abs()));
+	    BigDecimal drlatBD_half=drlatBD.divide(bd_of_2,20,BigDecimal.ROUND_HALF_EVEN);
+	    BigDecimal drlonBD_half=drlonBD.divide(bd_of_2,20,BigDecimal.ROUND_HALF_EVEN);
+	    BigDecimal aBD = (new BigDecimal(Math.sin(drlatBD_half.doubleValue()))).multiply(new BigDecimal(Math.sin(drlatBD_half.doubleValue()))).add((new BigDecimal(Math.cos(rlat1))).multiply(new BigDecimal(Math.cos(rlat2))).multiply(new BigDecimal(Math.sin(drlonBD_half.doubleValue()))).multiply(new BigDecimal(Math.sin(drlonBD_half.doubleValue()))));
+	    double c = 2 * Math.asin(Math.min(1,Math.sqrt(aBD.doubleValue())));
+	    return rBD.doubleValue() * c;
+	}
+
+	static double distance(Point2D.Double origin, Line2D.Double line_end){
+	    Point2D.Double p1= new Point2D.Double(line_end.getX1(),line_end.getY1());
+	    Point2D.Double p2= new Point2D.Double(line_end.getX2(),line_end.getY2());
+	    double headingP1P2= Reference.heading(p1,p2);
+	    double headingP1O = Reference.heading(p1,origin);
+	    double headingP2P1= Reference.heading(p2,p1);
+	    double headingP2O = Reference.heading(p2,origin);
+	    double angleOP1P2 = Math.abs((new BigDecimal(headingP1P2).subtract(new BigDecimal(headingP1O))).doubleValue());
+	    if (angleOP1P2>180)
+		angleOP1P2 = 360-angleOP1P2;
+	    double angleOP2P1 = Math.abs(new BigDecimal(headingP2P1-headingP2O).doubleValue());
+	    if (angleOP2P1>180)
+		angleOP2P1 = 360-angleOP2P1;
+	    if((angleOP1P2>90)||(angleOP2P1>90))
+		return Math.min(Reference.distance(origin,p1),Reference.distance(origin,p2));
+	    BigDecimal temp_dist = new BigDecimal(Reference.distance(origin,p1));
+	    BigDecimal sin = new BigDecimal(Math.sin(Math.toRadians(angleOP1P2)));
+	    return ((temp_dist.multiply(sin)).doubleValue());
+	}
+
+	static void toWHFormat(Point2D.Double point){
+	    BigDecimal x= new BigDecimal(point.getX());
+	    BigDecimal y= new BigDecimal(point.getY());
+	    BigDecimal _360 = new BigDecimal(360);
+	    BigDecimal adjustX=x.divide(_360,BigDecimal.ROUND_FLOOR);
+	    adjustX=new BigDecimal(adjustX.intValue());
+	    x=x.subtract(adjustX.multiply(_360));
+	    double lat=x.doubleValue();
+	    if (lat<=180 && lat>90){
+		x=x.negate();
+		x=x.add(new BigDecimal(180));
+	    } else {
+		if (!(lat<90)){
+		    x=x.subtract(_360);
+		    if(lat>180 && lat<270){
+			x=x.negate();
+			x=x.add(new BigDecimal(-180));
+		    }
+		}
+	    }
+	    BigDecimal adjustY=y.divide(_360,BigDecimal.ROUND_FLOOR);
+	    adjustY=new BigDecimal(adjustY.intValue());
+	    y=y.subtract(adjustY.multiply(_360));
+	    point.setLocation(x.doubleValue(),y.doubleValue());
+	}
+    }
+}
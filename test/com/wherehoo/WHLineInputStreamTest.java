@@ -0,0 +1,189 @@
+package com.wherehoo;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of <tt>WHLineInputStream</tt>: command lines and payloads that arrive split across reads,
+ * and bytes put back in front of the stream.  Payloads of 1 KB to 64 KB that arrive over a socket in
+ * segments must be read within <tt>LATENCY_MSEC</tt> of their last byte.
+ */
+class WHLineInputStreamTest {
+
+    static final int SEGMENT = 1460;
+    static final long SEGMENT_PAUSE_MSEC = 2;
+    static final long LATENCY_MSEC = 100;
+
+    static void run(){
+	try {
+	    WHLineInputStreamTest.lineEnds();
+	    WHLineInputStreamTest.payloads();
+	    WHLineInputStreamTest.pushBack();
+	    WHLineInputStreamTest.payloadLatency();
+	} catch (IOException ioe){
+	    WHTest.check(false, "line input stream test threw "+ioe);
+	}
+    }
+
+    static void lineEnds() throws IOException {
+	byte[] input = WHLineInputStreamTest.bytes("ACT query\nLLH 1 2 3\rRAD 100\r\n\r\n\u00FF\u0080\r");
+	for (int chunk=1;chunk<=input.length;chunk++){
+	    WHLineInputStream in = new WHLineInputStream(new ChunkedInputStream(input,chunk));
+	    String what = "lines read "+chunk+" bytes at a time";
+	    WHTest.check("ACT query".equals(in.readLine()), what+": \\n");
+	    WHTest.check("LLH 1 2 3".equals(in.readLine()), what+": \\r");
+	    WHTest.check("RAD 100".equals(in.readLine()), what+": \\r\\n");
+	    WHTest.check("".equals(in.readLine()), what+": empty line");
+	    WHTest.check("\u00FF\u0080".equals(in.readLine()), what+": bytes above 0x7F");
+	    WHTest.check(in.readLine() == null, what+": end of stream");
+	}
+	WHLineInputStream in = new WHLineInputStream(new ByteArrayInputStream(WHLineInputStreamTest.bytes("KAL\r")));
+	WHTest.check("KAL".equals(in.readLine()), "line ended by \\r");
+	WHTest.check(! in.inputWaiting(), "no input waiting after the line");
+	WHTest.check(in.peek() == -1, "peek at the end of the stream");
+    }
+
+    //a payload follows its command line; a "\r\n" may be split between the line and the payload
+    static void payloads() throws IOException {
+	byte[] payload = {'\n', (byte) 0xFF, (byte) 0x80, '\r', 0, '\n'};
+	String[] ends = {"\n", "\r\n"};
+	for (int e=0;e<ends.length;e++){
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    out.write(WHLineInputStreamTest.bytes("DAT 6"+ends[e]));
+	    out.write(payload);
+	    out.write(WHLineInputStreamTest.bytes("."+ends[e]));
+	    byte[] input = out.toByteArray();
+	    for (int chunk=1;chunk<=input.length;chunk++){
+		WHLineInputStream in = new WHLineInputStream(new ChunkedInputStream(input,chunk));
+		String what = "payload after a line ended by "+(e == 0 ? "\\n" : "\\r\\n")+", "+chunk+" bytes at a time";
+		WHTest.check("DAT 6".equals(in.readLine()), what+": command line");
+		byte[] read = new byte[payload.length];
+		in.readFully(read);
+		WHTest.check(Arrays.equals(read,payload), what+": payload");
+		WHTest.check(".".equals(in.readLine()), what+": line after the payload");
+		WHTest.check(in.readLine() == null, what+": end of stream");
+	    }
+	}
+	WHLineInputStream in = new WHLineInputStream(new ByteArrayInputStream(new byte[3]));
+	try {
+	    in.readFully(new byte[4]);
+	    WHTest.check(false, "a short payload is refused");
+	} catch (EOFException eofe){}
+	in = new WHLineInputStream(new ByteArrayInputStream(new byte[3]));
+	try {
+	    in.skipFully(4);
+	    WHTest.check(false, "skipping past the end is refused");
+	} catch (EOFException eofe){}
+    }
+
+    //the non-blocking front end takes the bytes read ahead and gives them back to a new stream
+    static void pushBack() throws IOException {
+	WHLineInputStream in = new WHLineInputStream(new ByteArrayInputStream(WHLineInputStreamTest.bytes("IDT a\r\nACT count\r\n.\r\n")));
+	WHTest.check("IDT a".equals(in.readLine()), "line before taking the buffer");
+	byte[] rest = in.takeBuffered();
+	WHTest.check("ACT count\r\n.\r\n".equals(new String(rest,"ISO-8859-1")), "the buffer holds the unread lines without the \\n of the read one");
+	WHTest.check(in.readLine() == null, "nothing is left after taking the buffer");
+
+	WHLineInputStream next = new WHLineInputStream(new ByteArrayInputStream(WHLineInputStreamTest.bytes("BYE\n")));
+	next.pushBack(rest);
+	WHTest.check("ACT count".equals(next.readLine()), "pushed back line");
+	WHTest.check(".".equals(next.readLine()), "second pushed back line");
+	WHTest.check("BYE".equals(next.readLine()), "line of the stream after the pushed back bytes");
+
+	//more bytes than the buffer holds, pushed in front of bytes already buffered
+	byte[] big = new byte[20000];
+	Arrays.fill(big,(byte) 'x');
+	big[big.length - 1] = '\n';
+	next = new WHLineInputStream(new ByteArrayInputStream(WHLineInputStreamTest.bytes("first\nsecond\n")));
+	WHTest.check("first".equals(next.readLine()), "line before a large push back");
+	next.pushBack(big);
+	WHTest.check(next.readLine().length() == big.length - 1, "large pushed back line");
+	WHTest.check("second".equals(next.readLine()), "buffered line after a large push back");
+	next.pushBack(new byte[0]);
+	WHTest.check(next.readLine() == null, "pushing back nothing");
+    }
+
+    /*
+     * A DAT payload sent over a socket in segments of SEGMENT bytes, with a pause after each, as a client on a
+     * slow link would.  The payload must be read as soon as its last byte is in; reading it a byte at a time,
+     * and sleeping a second whenever no byte was ready, took a second or more for every pause.
+     */
+    static void payloadLatency() throws IOException {
+	int[] sizes = {1024, 4096, 16384, 65536};
+	ServerSocket server = new ServerSocket(0,1,InetAddress.getByName("127.0.0.1"));
+	try {
+	    for (int s=0;s<sizes.length;s++){
+		final byte[] payload = new byte[sizes[s]];
+		new Random(s).nextBytes(payload);
+		final Socket client = new Socket("127.0.0.1",server.getLocalPort());
+		Socket socket = server.accept();
+		socket.setSoTimeout(WHServer.RXTIMEOUT);
+		final long[] last_write = new long[1];
+		Thread sender = new Thread("payload sender"){
+			public void run(){
+			    try {
+				OutputStream out = client.getOutputStream();
+				out.write(WHLineInputStreamTest.bytes("DAT "+payload.length+"\r\n"));
+				for (int off=0;off<payload.length;off+=SEGMENT){
+				    out.write(payload,off,Math.min(SEGMENT,payload.length - off));
+				    out.flush();
+				    last_write[0] = System.nanoTime();
+				    Thread.sleep(SEGMENT_PAUSE_MSEC);
+				}
+			    } catch (Exception e){}
+			}
+		    };
+		sender.start();
+		WHLineInputStream in = new WHLineInputStream(socket.getInputStream());
+		WHTest.check(("DAT "+payload.length).equals(in.readLine()), payload.length+" byte payload: command line");
+		byte[] read = new byte[payload.length];
+		in.readFully(read);
+		long done = System.nanoTime();
+		try {
+		    sender.join();
+		} catch (InterruptedException ie){}
+		long latency = (done - last_write[0]) / 1000000;
+		WHTest.check(Arrays.equals(read,payload), payload.length+" byte payload sent in segments");
+		WHTest.check(latency < LATENCY_MSEC, payload.length+" byte payload was read "+latency+" msec after its last byte");
+		client.close();
+		socket.close();
+	    }
+	} finally {
+	    server.close();
+	}
+    }
+
+    private static byte[] bytes(String s) throws IOException {
+	return s.getBytes("ISO-8859-1");
+    }
+
+    //gives its bytes at most chunk at a time, as a socket may
+    private static class ChunkedInputStream extends InputStream {
+	private byte[] bytes;
+	private int chunk;
+	private int pos = 0;
+
+	ChunkedInputStream(byte[] _bytes, int _chunk){
+	    bytes = _bytes;
+	    chunk = _chunk;
+	}
+	public int read(){
+	    return (pos < bytes.length) ? (bytes[pos++] & 0xFF) : -1;
+	}
+	public int read(byte[] b, int off, int len){
+	    if (pos >= bytes.length)
+		return -1;
+	    int n = Math.min(Math.min(len,chunk),bytes.length - pos);
+	    System.arraycopy(bytes,pos,b,off,n);
+	    pos += n;
+	    return n;
+	}
+	public int available(){
+	    return 0;
+	}
+    }
+}
@@ -0,0 +1,147 @@
+package com.wherehoo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * <tt>WHNioLoadTest</tt> opens many idle connections to a <tt>WHNioServer</tt> running in a JVM of its own, with a
+ * small heap, and checks that the server holds them in bounded memory, without a thread each, and still answers
+ * other clients.  Half of the connections send nothing, the other half part of an IDT line.<br>
+ * It is not run by <tt>WHTest</tt>.  Once <tt>test/runtests</tt> has built the tests, run
+ * <pre>
+ *   java -cp /tmp/wherehoo-tests com.wherehoo.WHNioLoadTest [connections [seconds]]
+ * </pre>
+ * which holds 10000 connections for 10 seconds by default.  Both JVMs need a file per connection, so
+ * <tt>ulimit -n</tt> must be above the number of connections.
+ */
+public class WHNioLoadTest {
+
+    static final String SERVER_HEAP = "-Xmx64m";
+    //heap the server may take for each connection it holds
+    static final long BYTES_PER_CONNECTION = 4096;
+
+    public static void main(String[] args) throws Exception {
+	if (args.length > 0 && args[0].equals("serve")){
+	    WHNioLoadTest.serve();
+	    return;
+	}
+	int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+	int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+	System.exit(WHNioLoadTest.load(connections, seconds) ? 0 : 1);
+    }
+
+    private static boolean load(int connections, int seconds) throws Exception {
+	String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+	ProcessBuilder builder = new ProcessBuilder(java, SERVER_HEAP, "-cp", System.getProperty("java.class.path"),
+						    "com.wherehoo.WHNioLoadTest", "serve");
+	builder.redirectErrorStream(true);
+	Process server = builder.start();
+	BufferedReader from_server = new BufferedReader(new InputStreamReader(server.getInputStream(),"ISO-8859-1"));
+	PrintStream to_server = new PrintStream(server.getOutputStream(), true, "ISO-8859-1");
+	ArrayList<SocketChannel> idle = new ArrayList<SocketChannel>();
+	boolean passed = true;
+	try {
+	    int port = Integer.parseInt(WHNioLoadTest.reply(from_server, "port").nextToken());
+	    long[] before = WHNioLoadTest.stats(to_server, from_server);
+	    long start = System.currentTimeMillis();
+	    for (int i=0;i<connections;i++){
+		SocketChannel channel = WHNioServerTest.connect(port);
+		if (i % 2 == 1)
+		    channel.write(ByteBuffer.wrap("IDT idle".getBytes("ISO-8859-1")));
+		idle.add(channel);
+	    }
+	    System.out.println("opened "+connections+" connections in "+(System.currentTimeMillis() - start)+" msec");
+	    Thread.sleep(seconds * 1000L);
+	    long[] held = WHNioLoadTest.stats(to_server, from_server);
+	    long per_connection = (held[0] - before[0]) / connections;
+	    System.out.println("server heap "+before[0]/1024+" KB before, "+held[0]/1024+" KB with the connections, "
+			       +per_connection+" bytes each; threads "+before[1]+" before, "+held[1]+" with the connections");
+	    if (per_connection > BYTES_PER_CONNECTION){
+		System.out.println("FAILED: each connection takes more than "+BYTES_PER_CONNECTION+" bytes");
+		passed = false;
+	    }
+	    if (held[1] > before[1]){
+		System.out.println("FAILED: the connections took "+(held[1] - before[1])+" more threads");
+		passed = false;
+	    }
+	    SocketChannel client = WHNioServerTest.connect(port);
+	    client.write(ByteBuffer.wrap("NOP\r\n".getBytes("ISO-8859-1")));
+	    client.socket().setSoTimeout(5000);
+	    byte[] reply = new byte[64];
+	    int length = client.socket().getInputStream().read(reply);
+	    client.close();
+	    if (length <= 0 || ! new String(reply,0,length,"ISO-8859-1").trim().equals("ACK")){
+		System.out.println("FAILED: NOP is not answered while "+connections+" connections wait");
+		passed = false;
+	    }
+	    int closed = 0;
+	    for (int i=0;i<idle.size();i++){
+		idle.get(i).configureBlocking(false);
+		if (idle.get(i).read(ByteBuffer.allocate(16)) < 0)
+		    closed++;
+	    }
+	    if (closed > 0){
+		System.out.println("FAILED: "+closed+" idle connections were closed");
+		passed = false;
+	    }
+	} finally {
+	    for (int i=0;i<idle.size();i++){
+		try {
+		    idle.get(i).close();
+		} catch (IOException ioe){}
+	    }
+	    idle.clear();
+	}
+	Thread.sleep(2000);
+	long[] after = WHNioLoadTest.stats(to_server, from_server);
+	System.out.println("server heap "+after[0]/1024+" KB once the clients have gone; threads "+after[1]);
+	to_server.close();
+	server.waitFor();
+	System.out.println(passed ? "passed" : "failed");
+	return passed;
+    }
+
+    //asks the server for the heap it uses after a collection, and its thread count
+    private static long[] stats(PrintStream to_server, BufferedReader from_server) throws IOException {
+	to_server.println("stats");
+	StringTokenizer st = WHNioLoadTest.reply(from_server, "stats");
+	return new long[]{Long.parseLong(st.nextToken()), Long.parseLong(st.nextToken())};
+    }
+
+    //the rest of the next line of the server that starts with word; the lines it logs are passed on
+    private static StringTokenizer reply(BufferedReader from_server, String word) throws IOException {
+	String line;
+	while ((line = from_server.readLine()) != null){
+	    StringTokenizer st = new StringTokenizer(line);
+	    if (st.hasMoreTokens() && st.nextToken().equals(word))
+		return st;
+	    System.out.println("server: "+line);
+	}
+	throw new IOException("the server ended");
+    }
+
+    //the server side: prints its port, then answers "stats" until its input ends
+    private static void serve() throws Exception {
+	int port = WHNioServerTest.start();
+	System.out.println("port "+port);
+	BufferedReader in = new BufferedReader(new InputStreamReader(System.in,"ISO-8859-1"));
+	Runtime runtime = Runtime.getRuntime();
+	String line;
+	while ((line = in.readLine()) != null){
+	    if (! line.equals("stats"))
+		continue;
+	    System.gc();
+	    Thread.sleep(200);
+	    System.gc();
+	    System.out.println("stats "+(runtime.totalMemory() - runtime.freeMemory())+" "+Thread.activeCount());
+	}
+	System.exit(0);
+    }
+}
@@ -0,0 +1,109 @@
+package com.wherehoo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests of <tt>WHNioServer</tt> over the loopback interface: connections that are idle, or have sent part
+ * of a line, are held by the event loops without a thread each, and a client is still answered meanwhile.
+ * <tt>WHNioLoadTest</tt> does the same with many more connections, and measures the memory they take.
+ */
+class WHNioServerTest {
+
+    static final int IDLE = 500;
+
+    static void run(){
+	WHNioServerTest.commands();
+	ArrayList<SocketChannel> idle = new ArrayList<SocketChannel>();
+	try {
+	    int port = WHNioServerTest.start();
+	    SocketChannel first = WHNioServerTest.connect(port);
+	    idle.add(first);
+	    int threads = Thread.activeCount();
+	    for (int i=1;i<IDLE;i++){
+		SocketChannel channel = WHNioServerTest.connect(port);
+		if (i % 2 == 1)
+		    channel.write(ByteBuffer.wrap("IDT idle".getBytes("ISO-8859-1")));
+		idle.add(channel);
+	    }
+	    WHTest.check(Thread.activeCount() <= threads, IDLE+" idle connections took "
+			 +(Thread.activeCount() - threads)+" more threads");
+	    SocketChannel client = WHNioServerTest.connect(port);
+	    client.write(ByteBuffer.wrap("NOP\r\n".getBytes("ISO-8859-1")));
+	    client.socket().setSoTimeout(5000);
+	    byte[] reply = new byte[64];
+	    int length = client.socket().getInputStream().read(reply);
+	    WHTest.check(length > 0 && new String(reply,0,length,"ISO-8859-1").trim().equals("ACK"),
+			 "NOP is answered while "+IDLE+" connections wait");
+	    client.close();
+	    int closed = 0;
+	    for (int i=0;i<idle.size();i++){
+		idle.get(i).configureBlocking(false);
+		if (idle.get(i).read(ByteBuffer.allocate(16)) < 0)
+		    closed++;
+	    }
+	    WHTest.check(closed == 0, closed+" idle connections were closed");
+	} catch (Exception e){
+	    WHTest.check(false, "non-blocking server test threw "+e);
+	} finally {
+	    for (int i=0;i<idle.size();i++){
+		try {
+		    idle.get(i).close();
+		} catch (IOException ioe){}
+	    }
+	}
+    }
+
+    //the lines the event loops answer, as the data collector splits and answers them
+    static void commands(){
+	String[] idt = WHDataCollector.splitLine("  IDT  some client ");
+	WHTest.check(idt[0].equals("idt") && idt[1].equals("some client"), "IDT line is split into command and parameters");
+	WHTest.check(WHDataCollector.splitLine("")[0].equals(""), "empty line has no command");
+	WHTest.check(WHDataCollector.immediateReply(WHServer.commandIndex("idt")) == WHDataCollector.REPLY_HEADER, "IDT gets the header");
+	WHTest.check(WHDataCollector.immediateReply(WHServer.commandIndex("nop")) == WHDataCollector.REPLY_ACK, "NOP gets ACK");
+	WHTest.check(WHDataCollector.immediateReply(WHServer.commandIndex("dat")) == WHDataCollector.REPLY_DATA, "DAT gets ACK after its payload");
+	WHTest.check(WHDataCollector.immediateReply(WHServer.commandIndex(".")) == WHDataCollector.REPLY_END, ". ends the block");
+	WHTest.check(WHDataCollector.immediateReply(WHServer.commandIndex("bye")) == WHDataCollector.REPLY_LEAVE, "BYE leaves");
+	WHTest.check(WHDataCollector.immediateReply(WHServer.commandIndex("xyz")) == WHDataCollector.REPLY_LEAVE, "an unknown command leaves");
+	WHTest.check(WHDataCollector.immediateReply(WHServer.commandIndex("act")) == WHDataCollector.REPLY_NONE, "ACT waits for its block");
+	WHTest.check(! WHDataCollector.isDataLength(0) && WHDataCollector.isDataLength(WHServer.MAXDATA)
+		     && ! WHDataCollector.isDataLength(WHServer.MAXDATA + 1), "DAT lengths from 1 to MAXDATA");
+    }
+
+    //serves on a free port from a daemon thread, and waits until it accepts connections
+    static int start() throws Exception {
+	ServerSocket probe = new ServerSocket(0);
+	final int port = probe.getLocalPort();
+	probe.close();
+	final WHSessionExecutor workers = new WHSessionExecutor(Executors.newCachedThreadPool(),4,16);
+	Thread server = new Thread("WHNioServerTest server"){
+		public void run(){
+		    try {
+			new WHNioServer(port,WHServer.NIO_BACKLOG,2,workers).serve();
+		    } catch (IOException ioe){
+			System.out.println("non-blocking server: "+ioe);
+		    }
+		}
+	    };
+	server.setDaemon(true);
+	server.start();
+	for (int i=0;i<100;i++){
+	    try {
+		WHNioServerTest.connect(port).close();
+		return port;
+	    } catch (IOException ioe){
+		Thread.sleep(50);
+	    }
+	}
+	throw new IOException("the server does not accept connections on port "+port);
+    }
+
+    static SocketChannel connect(int port) throws IOException {
+	return SocketChannel.open(new InetSocketAddress("127.0.0.1",port));
+    }
+}
@@ -0,0 +1,152 @@
+package com.wherehoo;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+
+/**
+ * Tests of <tt>WHPolygon</tt>: parsing, the overlap test against its definition, and the areas that
+ * cross the 0 meridian.
+ */
+class WHPolygonTest {
+
+    static void run(){
+	WHPolygonTest.malformed();
+	WHPolygonTest.overlapCases();
+	WHPolygonTest.overlapAgainstDefinition();
+	WHPolygonTest.zeroCrossing();
+	WHPolygonTest.batchDistances();
+    }
+
+    //the String constructor gives a zero-vertex polygon for a descriptor without vertices
+    static void malformed(){
+	String[] descriptors = {"", "((", "(((("};
+	WHPolygon square = new WHPolygon("((0,0),(0,2),(2,2),(2,0))");
+	for (int i=0;i<descriptors.length;i++){
+	    WHPolygon empty = new WHPolygon(descriptors[i]);
+	    String what = "descriptor \""+descriptors[i]+"\"";
+	    WHTest.check(empty.vertexCount() == 0, what+" has no vertices");
+	    WHTest.check(! empty.zeroCrossing(), what+" does not cross the 0 meridian");
+	    WHTest.check(! empty.contains(new Point2D.Double(0,0)), what+" contains nothing");
+	    WHTest.check(! empty.overlaps(square) && ! square.overlaps(empty), what+" overlaps nothing");
+	}
+    }
+
+    static void overlapCases(){
+	WHPolygon square = new WHPolygon("((0,0),(0,2),(2,2),(2,0))");
+	WHTest.check(square.overlaps(new WHPolygon("((1,1))")), "point inside");
+	WHTest.check(square.overlaps(new WHPolygon("((2,1))")), "point on a side");
+	WHTest.check(! square.overlaps(new WHPolygon("((3,1))")), "point outside");
+	WHTest.check(new WHPolygon("((1,1))").overlaps(square), "point inside, reversed");
+	WHTest.check(square.overlaps(new WHPolygon("((2,0),(2,2),(4,2),(4,0))")), "shared side");
+	WHTest.check(square.overlaps(new WHPolygon("((2,2),(2,4),(4,4),(4,2))")), "shared corner");
+	WHTest.check(! square.overlaps(new WHPolygon("((2.1,0),(2.1,2),(4,2),(4,0))")), "apart");
+	WHTest.check(square.overlaps(new WHPolygon("((0.5,0.5),(0.5,1),(1,1))")), "inside");
+	WHTest.check(new WHPolygon("((-5,-5),(-5,5),(5,5),(5,-5))").overlaps(square), "around");
+	WHTest.check(square.overlaps(new WHPolygon("((1,1),(3,3))")), "two vertices across a side");
+	//a star is not convex, though it turns the same way at every vertex
+	WHPolygon star = new WHPolygon("((1,0),(-0.809,0.588),(0.309,-0.951),(0.309,0.951),(-0.809,-0.588))");
+	WHTest.check(! star.overlaps(new WHPolygon("((0.8,0.3),(0.8,0.31),(0.81,0.31))")),
+		      "star, between its points");
+	WHTest.check(star.overlaps(new WHPolygon("((0,0),(0,0.01),(0.01,0.01))")), "star, at its center");
+    }
+
+    //random areas, convex or not, against the definition: a side meets a side, or a vertex lies inside
+    static void overlapAgainstDefinition(){
+	Random random = new Random(25);
+	int disagreements = 0;
+	for (int k=0;k<20000;k++){
+	    WHPolygon a = WHPolygonTest.randomPolygon(random);
+	    WHPolygon b = WHPolygonTest.randomPolygon(random);
+	    if (a.overlaps(b) != WHPolygonTest.overlapsByDefinition(a,b))
+		disagreements++;
+	}
+	WHTest.check(disagreements == 0, disagreements+" random pairs disagree with the definition of overlap");
+    }
+
+    static void zeroCrossing(){
+	WHPolygon crossing = new WHPolygon("((10,350),(10,10),(20,10),(20,350))");
+	WHTest.check(crossing.zeroCrossing(), "crosses the 0 meridian");
+	WHPolygon[] halves = crossing.splitAlongGreatMeridian();
+	WHTest.check(halves.length == 2, "two halves");
+	WHTest.check(crossing.contains(new Point2D.Double(15,5)) && crossing.contains(new Point2D.Double(15,355)),
+		     "contains points on both sides of the 0 meridian");
+	WHTest.check(! crossing.contains(new Point2D.Double(15,180)), "does not contain the far side");
+	WHTest.check(crossing.overlaps(new WHPolygon("((15,5),(15,6),(16,6))")), "overlaps east of the meridian");
+	WHTest.check(crossing.overlaps(new WHPolygon("((15,355),(15,356),(16,356))")), "overlaps west of the meridian");
+	WHTest.check(! crossing.overlaps(new WHPolygon("((15,180),(15,181),(16,181))")), "does not overlap the far side");
+    }
+
+    private static WHPolygon randomPolygon(Random random){
+	int n = 1 + random.nextInt(7);
+	double lat = random.nextDouble()*10;
+	double lon = random.nextDouble()*10;
+	double size = 0.5 + random.nextDouble()*4;
+	Point2D.Double[] vertices = new Point2D.Double[n];
+	if (random.nextBoolean()){
+	    //convex: points on an ellipse, in order of their angle
+	    double[] angles = new double[n];
+	    for (int i=0;i<n;i++)
+		angles[i] = random.nextDouble()*2*Math.PI;
+	    java.util.Arrays.sort(angles);
+	    for (int i=0;i<n;i++)
+		vertices[i] = new Point2D.Double(lat+size*Math.cos(angles[i]),lon+0.7*size*Math.sin(angles[i]));
+	} else {
+	    for (int i=0;i<n;i++)
+		vertices[i] = new Point2D.Double(lat+random.nextDouble()*size,lon+random.nextDouble()*size);
+	}
+	return new WHPolygon(vertices);
+    }
+
+    //the areas of a page of results get the distance and heading each would get alone
+    static void batchDistances(){
+	Point2D.Double origin = new Point2D.Double(42.36,288.91);
+	WHPolygon[] polies = new WHPolygon[200];
+	polies[0] = new WHPolygon("");
+	polies[1] = new WHPolygon("((42.37,288.91))");
+	polies[2] = new WHPolygon("((42.35,288.90),(42.37,288.90),(42.37,288.92),(42.35,288.92))");
+	//a square 0.01 degrees north of origin
+	polies[3] = new WHPolygon("((42.37,288.90),(42.38,288.90),(42.38,288.92),(42.37,288.92))");
+	Random random = new Random(24);
+	for (int i=4;i<polies.length;i++)
+	    polies[i] = WHPolygonTest.randomPolygon(random);
+	double[] distances = new double[polies.length];
+	double[] headings = new double[polies.length];
+	WHPolygon.distancesAndHeadings(polies,polies.length,origin,distances,headings);
+	WHTest.check(distances[0] == Double.POSITIVE_INFINITY, "an area without vertices is nowhere");
+	WHTest.checkNear(WHGeo.distance(origin,new Point2D.Double(42.37,288.91)),distances[1],1e-6,"distance to a point");
+	WHTest.check(distances[2] == 0 && headings[2] == 0, "origin inside an area");
+	WHTest.checkNear(1111,distances[3],5,"distance to an area to the north");
+	WHTest.checkNear(0,Math.min(headings[3],360-headings[3]),0.01,"heading to an area to the north");
+	int differ = 0;
+	for (int i=1;i<polies.length;i++){
+	    double[] alone = polies[i].distanceAndHeading(origin);
+	    if (alone[0] != distances[i] || alone[1] != headings[i])
+		differ++;
+	}
+	WHTest.check(differ == 0, differ+" areas of a page differ from the same area alone");
+    }
+
+    //poly_overlap as Postgres defines it, without the shortcuts of WHPolygon.overlaps()
+    private static boolean overlapsByDefinition(WHPolygon a, WHPolygon b){
+	Point2D.Double[] va = a.getVertices();
+	Point2D.Double[] vb = b.getVertices();
+	for (int i=0;i<va.length;i++){
+	    for (int j=0;j<vb.length;j++){
+		java.awt.geom.Line2D.Double sa = new java.awt.geom.Line2D.Double(va[i],va[(i+1)%va.length]);
+		java.awt.geom.Line2D.Double sb = new java.awt.geom.Line2D.Double(vb[j],vb[(j+1)%vb.length]);
+		if (WHPolygonTest.meet(sa,sb))
+		    return true;
+	    }
+	}
+	return a.contains(vb[0]) || b.contains(va[0]);
+    }
+
+    //Line2D does not take a side of no length for a point
+    private static boolean meet(java.awt.geom.Line2D.Double sa, java.awt.geom.Line2D.Double sb){
+	if (sa.getP1().equals(sa.getP2()))
+	    return sb.ptSegDist(sa.getP1()) == 0;
+	if (sb.getP1().equals(sb.getP2()))
+	    return sa.ptSegDist(sb.getP1()) == 0;
+	return sa.intersectsLine(sb);
+    }
+}
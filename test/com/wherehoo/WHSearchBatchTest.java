@@ -0,0 +1,255 @@
+package com.wherehoo;
+
+import java.awt.geom.Point2D;
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests of the batch delivery of search results, <tt>BAT n [META] [DATA]</tt> and its binary frame.  A search
+ * runs on a pool whose database holds a few records, for a client whose answers are written in advance.  The
+ * records of a batch must reach the socket with one write and one flush, in the same bytes as when the client
+ * asks for them one at a time, and a batch the results do not fill is sent when they run out.
+ */
+class WHSearchBatchTest {
+
+    static final int ROWS = 5;
+
+    static void run(){
+	try {
+	    WHSearchBatchTest.batchCommands(false);
+	    WHSearchBatchTest.batchCommands(true);
+	    WHSearchBatchTest.oneWrite(false);
+	    WHSearchBatchTest.oneWrite(true);
+	    WHSearchBatchTest.resultsRunOut(false);
+	    WHSearchBatchTest.resultsRunOut(true);
+	} catch (Exception e){
+	    WHTest.check(false, "search batch test threw "+e);
+	}
+    }
+
+    //the batch commands are read with their options, and at most MAXBATCH records are sent at once
+    static void batchCommands(boolean binary) throws IOException {
+	String protocol = (binary) ? "binary" : "text";
+	WHProtocol in = WHSearchBatchTest.session(binary,new String[] {"bat 1000 meta", "bat 3 data meta", "bat 0", "next"},
+						  new ByteArrayOutputStream()).getProtocol();
+	WHTest.check(in.readRowCommand() == WHProtocol.ROW_BATCH, protocol+" batch command is read");
+	WHTest.check(in.getBatchSize() == WHServer.MAXBATCH, protocol+" batch of 1000 is cut to MAXBATCH: "+in.getBatchSize());
+	WHTest.check(in.getBatchMeta() && ! in.getBatchData(), protocol+" batch with the metadata only");
+	WHTest.check(in.readRowCommand() == WHProtocol.ROW_BATCH && in.getBatchSize() == 3, protocol+" batch of 3");
+	WHTest.check(in.getBatchMeta() && in.getBatchData(), protocol+" batch with the metadata and data");
+	WHTest.check(in.readRowCommand() == WHProtocol.ROW_STOP, protocol+" empty batch stops the delivery");
+	WHTest.check(in.readRowCommand() == WHProtocol.ROW_NEXT, protocol+" row command after the batch commands");
+	if (! binary){
+	    in = WHSearchBatchTest.session(false,new String[] {"BAT ten", "BAT 2 META ALL"},new ByteArrayOutputStream()).getProtocol();
+	    WHTest.check(in.readRowCommand() == WHProtocol.ROW_STOP, "batch without a number stops the delivery");
+	    WHTest.check(in.readRowCommand() == WHProtocol.ROW_STOP, "batch with an unknown option stops the delivery");
+	}
+    }
+
+    //a batch sends what meta, data and next would, with one write and one flush
+    static void oneWrite(boolean binary) throws Exception {
+	String protocol = (binary) ? "binary" : "text";
+	Recorder one_by_one = WHSearchBatchTest.search(ROWS,binary,new String[] {
+		"next", "meta", "data", "next", "meta", "data", "next", "next", "next"});
+	Recorder batched = WHSearchBatchTest.search(ROWS,binary,new String[] {
+		"bat 2 meta data", "next", "next", "next"});
+	WHTest.check(Arrays.equals(one_by_one.sent(),batched.sent()),
+		     protocol+" batch sends the same bytes as asking for each record");
+	int write = batched.writeOf("meta of row 2");
+	WHTest.check(write >= 0 && batched.holds(write,"data of row 3"), protocol+" batch goes out with one write");
+	WHTest.check(batched.flushedAfter(write), protocol+" batch is flushed after its write");
+    }
+
+    //the results end before the batch is full: what was collected is sent, and the client is not waited for
+    static void resultsRunOut(boolean binary) throws Exception {
+	String protocol = (binary) ? "binary" : "text";
+	Recorder batched = WHSearchBatchTest.search(3,binary,new String[] {"bat 100 meta"});
+	int write = batched.writeOf("meta of row 2");
+	WHTest.check(write >= 0 && batched.holds(write,"meta of row 3"), protocol+" batch of the last results goes out with one write");
+	WHTest.check(write == batched.writes.size() - 1 && batched.flushedAfter(write),
+		     protocol+" batch of the last results is flushed at the end of the search");
+    }
+
+    //
+    //HELPERS
+    //
+
+    //runs a search of rows records for a client that answers the headers with answers
+    private static Recorder search(int rows, boolean binary, String[] answers) throws IOException {
+	Recorder sent = new Recorder();
+	WHSession session = WHSearchBatchTest.session(binary,answers,sent);
+	Point2D.Double client = new Point2D.Double(42.36,288.91);
+	WHSearchOperation search = new WHSearchOperation(new WHSearchArea(new WHPolygon(client,1000),client,0,0));
+	search.setConnectionPool(new FakePool(rows));
+	search.executeAndOutputToClient(session);
+	return sent;
+    }
+
+    //a session of a client that sends the row commands, as lines or as frames
+    private static WHSession session(boolean binary, String[] commands, final OutputStream out) throws IOException {
+	ByteArrayOutputStream input = new ByteArrayOutputStream();
+	if (binary){
+	    input.write(WHBinaryProtocol.MAGIC);
+	    input.write(WHBinaryProtocol.VERSION);
+	}
+	for (int i=0;i<commands.length;i++){
+	    if (binary)
+		WHSearchBatchTest.frame(input,commands[i]);
+	    else
+		WHBinaryProtocolTest.line(input,commands[i].toUpperCase());
+	}
+	final InputStream in = new ByteArrayInputStream(input.toByteArray());
+	WHSession session = new WHSession(new Socket(){
+		public InputStream getInputStream(){
+		    return in;
+		}
+		public OutputStream getOutputStream(){
+		    return out;
+		}
+	    });
+	WHTest.check(session.negotiate() && session.isBinary() == binary, "session negotiates the "+(binary ? "binary" : "text")+" protocol");
+	return session;
+    }
+
+    private static void frame(OutputStream out, String command) throws IOException {
+	String[] words = command.split(" ");
+	if (words[0].equals("bat")){
+	    int flags = 0;
+	    for (int i=2;i<words.length;i++)
+		flags |= words[i].equals("meta") ? WHBinaryProtocol.BATCH_META : WHBinaryProtocol.BATCH_DATA;
+	    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+	    WHBinaryProtocol.writeVarint(payload,Integer.parseInt(words[1]));
+	    payload.write(flags);
+	    WHBinaryProtocolTest.frame(out,WHBinaryProtocol.OP_BATCH,payload.toByteArray());
+	} else {
+	    int opcode = words[0].equals("next") ? WHBinaryProtocol.OP_NEXT
+		: words[0].equals("meta") ? WHBinaryProtocol.OP_META : WHBinaryProtocol.OP_DATA;
+	    WHBinaryProtocolTest.frame(out,opcode,new byte[0]);
+	}
+    }
+
+    //the stream to the client: every write, and the number of writes made before every flush
+    private static class Recorder extends OutputStream {
+	ArrayList<byte[]> writes = new ArrayList<byte[]>();
+	ArrayList<Integer> flushes = new ArrayList<Integer>();
+
+	public void write(int b){
+	    this.write(new byte[] {(byte) b},0,1);
+	}
+	public void write(byte[] b, int off, int len){
+	    byte[] write = new byte[len];
+	    System.arraycopy(b,off,write,0,len);
+	    writes.add(write);
+	}
+	public void flush(){
+	    flushes.add(Integer.valueOf(writes.size()));
+	}
+
+	byte[] sent(){
+	    ByteArrayOutputStream all = new ByteArrayOutputStream();
+	    for (int i=0;i<writes.size();i++)
+		all.write(writes.get(i),0,writes.get(i).length);
+	    return all.toByteArray();
+	}
+	//the first write that holds text, -1 if none
+	int writeOf(String text){
+	    for (int i=0;i<writes.size();i++)
+		if (this.holds(i,text))
+		    return i;
+	    return -1;
+	}
+	boolean holds(int write, String text){
+	    try {
+		return new String(writes.get(write),"ISO-8859-1").indexOf(text) >= 0;
+	    } catch (UnsupportedEncodingException uee){
+		return false;
+	    }
+	}
+	boolean flushedAfter(int write){
+	    return flushes.contains(Integer.valueOf(write + 1));
+	}
+    }
+
+    //a pool whose connections find rows records, named "row 1" to "row rows", each with its own metadata and data
+    private static class FakePool extends WHConnectionPool {
+	private int rows;
+
+	FakePool(int _rows){
+	    super(null, null, null, 1, 60000, 0, 60000);
+	    rows = _rows;
+	}
+	public Connection getConnection(){
+	    return (Connection) FakePool.fake(Connection.class, new Database(rows, ""));
+	}
+	public void releaseConnection(Connection C){}
+
+	private static Object fake(Class<?> type, InvocationHandler handler){
+	    return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+	}
+
+	//the connection, a statement on it, or the result of the statement
+	private static class Database implements InvocationHandler {
+	    private int rows;
+	    private String sql;
+	    private String uid = "";
+	    private int row = 0;
+
+	    Database(int _rows, String _sql){
+		rows = _rows;
+		sql = _sql;
+	    }
+
+	    public Object invoke(Object proxy, Method method, Object[] args){
+		String name = method.getName();
+		//the pool keeps the statements of a connection in a map
+		if (name.equals("hashCode"))
+		    return Integer.valueOf(System.identityHashCode(proxy));
+		if (name.equals("equals"))
+		    return Boolean.valueOf(proxy == args[0]);
+		if (name.equals("prepareStatement"))
+		    return FakePool.fake(PreparedStatement.class, new Database(rows, (String) args[0]));
+		if (name.equals("setString"))
+		    uid = (String) args[1];
+		if (name.equals("executeQuery")){
+		    Database result = new Database(rows, sql);
+		    result.uid = uid;
+		    return FakePool.fake(ResultSet.class, result);
+		}
+		//the select of uniqueidsha finds one record, the search all of them
+		boolean payload = sql.indexOf("uniqueidsha = ?") >= 0;
+		if (name.equals("next"))
+		    return Boolean.valueOf(++row <= (payload ? 1 : rows));
+		if (name.equals("getString")){
+		    String column = (String) args[0];
+		    if (column.equals("meta"))
+			return "meta of "+uid;
+		    if (column.equals("uniqueidsha"))
+			return "row "+row;
+		    if (column.equals("area"))
+			return "(("+(42.36 + row*0.001)+",288.91),("+(42.361 + row*0.001)+",288.91),("+(42.36 + row*0.001)+",288.911))";
+		    return column.equals("mimetype") ? "text/plain" : "HTTP";
+		}
+		if (name.equals("getBytes"))
+		    return ("data of "+uid).getBytes();
+		if (name.equals("getInt"))
+		    return Integer.valueOf(("data of row "+row).length());
+		//the records live longer than MAXTTL, so their headers do not change between two searches
+		if (name.equals("getDate"))
+		    return new java.sql.Date(Long.MAX_VALUE / 2);
+		if (method.getReturnType() == boolean.class)
+		    return Boolean.valueOf(name.equals("getBoolean"));
+		if (method.getReturnType() == int.class)
+		    return Integer.valueOf(0);
+		return null;
+	    }
+	}
+    }
+}
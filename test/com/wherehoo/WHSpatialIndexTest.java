@@ -0,0 +1,178 @@
+package com.wherehoo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Tests of the in-memory indexes: the R-tree and the grid must find the same records as a scan
+ * of all the areas with <tt>WHPolygon.overlaps()</tt>, after inserts and after removals.
+ */
+class WHSpatialIndexTest {
+
+    static void run(){
+	WHSpatialIndexTest.agreement("rtree");
+	WHSpatialIndexTest.agreement("grid");
+	WHSpatialIndexTest.meridian("rtree");
+	WHSpatialIndexTest.meridian("grid");
+	WHSpatialIndexTest.expiry();
+	WHSpatialIndexTest.types();
+    }
+
+    //the types of -index
+    static void types(){
+	WHTest.check(WHSpatialIndex.create("none") == null, "no index for none");
+	WHTest.check(WHSpatialIndex.create("rtree") instanceof WHTimeBuckets, "time buckets of R-trees");
+	WHTest.check(WHSpatialIndex.create("grid") instanceof WHTimeBuckets, "time buckets of grids");
+	try {
+	    WHSpatialIndex.create("quadtree");
+	    WHTest.check(false, "an unknown index type is refused");
+	} catch (IllegalArgumentException iae){}
+    }
+
+    //the halves of an area across the 0 meridian end at longitude 360 and 0, at the edges of the index
+    static void meridian(String type){
+	long now = 1000000000000L;
+	WHSpatialIndex index = WHSpatialIndex.newIndex(type);
+	WHPolygon[] halves = new WHPolygon("((51.4,359.9),(51.6,359.9),(51.6,0.1),(51.4,0.1))").splitAlongGreatMeridian();
+	WHTest.check(halves.length == 2, type+" area across the meridian is split");
+	for (int i=0;i<halves.length;i++)
+	    index.insert("greenwich", halves[i], now + 1000);
+	String[] searches = {"((51.5,359.95),(51.55,359.95),(51.55,360),(51.5,360))",
+			     "((51.5,0),(51.55,0),(51.55,0.05),(51.5,0.05))",
+			     "((51.5,359.99),(51.55,359.99),(51.52,359.995))",
+			     "((51.5,0.01),(51.55,0.01),(51.52,0.005))"};
+	for (int i=0;i<searches.length;i++){
+	    HashSet<String> result = new HashSet<String>();
+	    index.collect(new WHPolygon(searches[i]), now, result);
+	    WHTest.check(result.contains("greenwich"), type+" finds the area from "+searches[i]);
+	}
+	HashSet<String> result = new HashSet<String>();
+	index.collect(new WHPolygon("((51.5,10),(51.55,10),(51.55,10.05),(51.5,10.05))"), now, result);
+	WHTest.check(result.isEmpty(), type+" does not find the area from a search away from the meridian");
+    }
+
+    static void agreement(String type){
+	Random random = new Random(16);
+	long now = 1000000000000L;
+	WHSpatialIndex index = WHSpatialIndex.newIndex(type);
+	ArrayList<Row> rows = new ArrayList<Row>();
+	for (int i=0;i<3000;i++){
+	    //some records have ended; a record of two rows has both under its uid
+	    Row row = new Row("uid"+i, WHSpatialIndexTest.randomArea(random), now + (random.nextInt(200) - 20) * 1000L);
+	    rows.add(row);
+	    index.insert(row.uid, row.area, row.end_time);
+	    if (random.nextInt(20) == 0){
+		Row second = new Row(row.uid, WHSpatialIndexTest.randomArea(random), row.end_time);
+		rows.add(second);
+		index.insert(second.uid, second.area, second.end_time);
+	    }
+	}
+	WHTest.check(index.size() == rows.size(), type+" holds every row");
+	WHSpatialIndexTest.checkSearches(type+" after inserts", index, rows, now, random);
+
+	//remove every third record
+	for (int i=0;i<3000;i+=3)
+	    WHTest.check(index.remove("uid"+i), type+" removes uid"+i);
+	WHTest.check(! index.remove("uid0"), type+" does not remove a record twice");
+	WHTest.check(! index.remove("nosuchuid"), type+" does not remove an unknown record");
+	ArrayList<Row> kept = new ArrayList<Row>();
+	for (int i=0;i<rows.size();i++){
+	    Row row = rows.get(i);
+	    if (Integer.parseInt(row.uid.substring(3)) % 3 != 0)
+		kept.add(row);
+	}
+	WHTest.check(index.size() == kept.size(), type+" size after removals");
+	WHSpatialIndexTest.checkSearches(type+" after removals", index, kept, now, random);
+    }
+
+    //records ending over four days, in the time buckets
+    static void expiry(){
+	Random random = new Random(17);
+	long now = System.currentTimeMillis();
+	WHTimeBuckets index = new WHTimeBuckets("rtree");
+	ArrayList<Row> rows = new ArrayList<Row>();
+	for (int i=0;i<2000;i++){
+	    Row row = new Row("uid"+i, WHSpatialIndexTest.randomArea(random),
+			      now + (long) (4 * WHTimeBuckets.BUCKET_MSEC * random.nextDouble()));
+	    rows.add(row);
+	    index.insert(row.uid, row.area, row.end_time);
+	}
+	WHTest.check(index.size() == rows.size(), "time buckets hold every row");
+	WHTest.check(index.expire(now) == 0, "no bucket has ended yet");
+
+	//two days later the buckets that ended before the day began are dropped whole
+	long later = now + 2 * WHTimeBuckets.BUCKET_MSEC;
+	long day = later - ((later % WHTimeBuckets.BUCKET_MSEC) + WHTimeBuckets.BUCKET_MSEC) % WHTimeBuckets.BUCKET_MSEC;
+	int ended = 0;
+	ArrayList<Row> kept = new ArrayList<Row>();
+	for (int i=0;i<rows.size();i++){
+	    if (rows.get(i).end_time < day)
+		ended++;
+	    else
+		kept.add(rows.get(i));
+	}
+	WHTest.check(index.expire(later) == ended, "expire drops the "+ended+" rows of the ended buckets");
+	WHTest.check(index.size() == kept.size(), "rows left after expiry");
+	WHTest.check(index.expire(later) == 0, "expiring again drops nothing");
+	//the bucket of later still holds rows that ended earlier that day; searches skip them
+	WHSpatialIndexTest.checkSearches("time buckets after expiry", index, kept, later, random);
+	WHTest.check(index.remove(kept.get(0).uid), "time buckets remove a live record");
+	String expired_uid = null;
+	for (int i=0;i<rows.size() && expired_uid == null;i++)
+	    if (rows.get(i).end_time < day)
+		expired_uid = rows.get(i).uid;
+	WHTest.check(! index.remove(expired_uid), "time buckets do not remove an expired record");
+    }
+
+    //searches of every scale, from a point to a quarter of the earth
+    static void checkSearches(String what, WHSpatialIndex index, ArrayList<Row> rows, long now, Random random){
+	int mismatches = 0;
+	int found = 0;
+	for (int i=0;i<500;i++){
+	    WHPolygon search = WHSpatialIndexTest.randomArea(random);
+	    long time = now + (random.nextInt(100) - 10) * 1000L;
+	    HashSet<String> result = new HashSet<String>();
+	    index.collect(search, time, result);
+	    HashSet<String> expected = WHSpatialIndexTest.scan(rows, search, time);
+	    if (! result.equals(expected))
+		mismatches++;
+	    found += expected.size();
+	}
+	WHTest.check(mismatches == 0, what+": "+mismatches+" of 500 searches differ from a scan");
+	WHTest.check(found > 500, what+": the searches find records ("+found+")");
+    }
+
+    static HashSet<String> scan(ArrayList<Row> rows, WHPolygon search, long now){
+	HashSet<String> result = new HashSet<String>();
+	for (int i=0;i<rows.size();i++){
+	    Row row = rows.get(i);
+	    if (row.end_time >= now && row.area.overlaps(search))
+		result.add(row.uid);
+	}
+	return result;
+    }
+
+    //a rectangle or a triangle in the Wherehoo ranges, not crossing the 0 meridian, 10 m to 50 degrees across
+    static WHPolygon randomArea(Random random){
+	double size = Math.pow(10, -4 + 5.7 * random.nextDouble());
+	double lat = -80 + (160 - size) * random.nextDouble();
+	double lon = (360 - size) * random.nextDouble();
+	if (random.nextBoolean())
+	    return new WHPolygon("(("+lat+","+lon+"),("+(lat+size)+","+lon+"),("+(lat+size)+","+(lon+size)+"),("+lat+","+(lon+size)+"))");
+	return new WHPolygon("(("+lat+","+lon+"),("+(lat+size)+","+(lon+size/2)+"),("+lat+","+(lon+size)+"))");
+    }
+
+    //one row of a record, as the index holds it
+    static class Row {
+	String uid;
+	WHPolygon area;
+	long end_time;
+
+	Row(String _uid, WHPolygon _area, long _end_time){
+	    uid = _uid;
+	    area = _area;
+	    end_time = _end_time;
+	}
+    }
+}
@@ -0,0 +1,46 @@
+package com.wherehoo;
+
+/**
+ * <tt>WHTest</tt> runs the tests of the parts of the server that need no database.
+ * Each test class has a static <tt>run()</tt> that checks its class with <tt>check()</tt>, and is called from
+ * <tt>main()</tt>.  A failed check is printed, and the run goes on.<br>
+ * Run it with <tt>test/runtests</tt>, which compiles the server and the tests first.
+ */
+public class WHTest {
+
+    private static int checks = 0;
+    private static int failures = 0;
+
+    /**
+     * Counts one check, and prints <tt>what</tt> if it failed.
+     * @param passed the outcome of the check
+     * @param what description of the check
+     */
+    static void check(boolean passed, String what){
+	checks++;
+	if (! passed){
+	    failures++;
+	    System.out.println("FAILED: "+what);
+	}
+    }
+
+    /**
+     * Checks that <tt>actual</tt> is within <tt>tolerance</tt> of <tt>expected</tt>.
+     */
+    static void checkNear(double expected, double actual, double tolerance, String what){
+	WHTest.check(Math.abs(expected - actual) <= tolerance, what+": expected "+expected+", got "+actual);
+    }
+
+    public static void main(String[] args){
+	WHDatabaseCheckTest.run();
+	WHNioServerTest.run();
+	WHLineInputStreamTest.run();
+	WHBinaryProtocolTest.run();
+	WHSearchBatchTest.run();
+	WHSpatialIndexTest.run();
+	WHPolygonTest.run();
+	WHGeoTest.run();
+	System.out.println(checks+" checks, "+failures+" failed");
+	System.exit((failures == 0) ? 0 : 1);
+    }
+}